@@ -1,15 +1,9 @@
 package org.wahlzeit.agents;
 
-import com.google.appengine.api.taskqueue.Queue;
-import com.google.appengine.api.taskqueue.QueueFactory;
-import com.google.appengine.api.taskqueue.RetryOptions;
-import com.google.appengine.api.taskqueue.TaskOptions;
 import org.wahlzeit.model.Photo;
 
 import java.util.logging.Logger;
 
-import static com.google.appengine.api.taskqueue.RetryOptions.Builder.withTaskRetryLimit;
-
 /**
  * Class to combine all calls for async task to use Task API from Google.
  * 
@@ -22,12 +16,11 @@ public class AsyncTaskExecutor {
 	/**
 	 * @methodtype command
 	 *
-	 * Starts a task in the default queue to save the photo with the specified ID.
+	 * Schedules the photo to be saved. Saves are coalesced and written in batches by the PhotoWriteBehindQueue instead
+	 * of starting one task per call.
 	 */
-	public static void savePhotoAsync(String photoId) {
-		log.info("Calling async push task to persist PhotoId " + photoId);
-		Queue queue = QueueFactory.getDefaultQueue();
-		RetryOptions retryOptions = withTaskRetryLimit(3);
-		queue.add(TaskOptions.Builder.withUrl("/persistPhoto").param(Photo.ID, photoId).retryOptions(retryOptions));
+	public static void savePhotoAsync(Photo photo) {
+		log.info("Enqueue PhotoId " + photo.getIdAsString() + " in write-behind queue");
+		PhotoWriteBehindQueue.getInstance().enqueue(photo);
 	}
 }
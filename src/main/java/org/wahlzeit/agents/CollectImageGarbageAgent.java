@@ -0,0 +1,26 @@
+package org.wahlzeit.agents;
+
+import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.model.persistence.ImageStorage;
+
+/**
+ * An agent class to remove stored image data that no photo refers to any more, see ImageStorage.collectGarbage(),
+ * and sprite sheets that were issued to pages long ago, see PhotoManager.removeOldIssuedThumbSpriteSheets().
+ */
+public class CollectImageGarbageAgent extends Agent {
+
+	public static final String NAME = "collectImageGarbage";
+
+	public CollectImageGarbageAgent() {
+		initialize(NAME);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void doRun() {
+		ImageStorage.getInstance().collectGarbage();
+		PhotoManager.getInstance().removeOldIssuedThumbSpriteSheets();
+	}
+
+}
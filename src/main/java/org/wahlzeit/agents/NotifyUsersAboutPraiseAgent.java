@@ -38,13 +38,14 @@ public class NotifyUsersAboutPraiseAgent extends Agent {
 	 * Notifies all users that want to get informed if their photos have been praised.
 	 */
 	protected void doRun() {
-		Map<PhotoId, Photo> photoCache = PhotoManager.getInstance().getPhotoCache();
-		Collection<Photo> photos = photoCache.values();
+		PhotoManager photoManager = PhotoManager.getInstance();
+		Map<PhotoId, Photo> photoCache = photoManager.getPhotoCache();
 
 		ArrayList<Photo> arrayListOfPhotos;
 		HashMap<String, ArrayList<Photo>> ownerIdPhotosMap = new HashMap<String, ArrayList<Photo>>();
-		for (Photo photo : photos) {
-			if (photo != null && photo.isVisible() && photo.hasNewPraise()) {
+		for (int visiblePhotoId : photoManager.getVisiblePhotoIds().toArray()) {
+			Photo photo = photoCache.get(PhotoId.getIdFromInt(visiblePhotoId));
+			if (photo != null && photo.hasNewPraise()) {
 				String ownerId = photo.getOwnerId();
 				if (ownerId != null) {
 					log.config(LogBuilder.createSystemMessage().addParameter("ownerId", ownerId).toString());
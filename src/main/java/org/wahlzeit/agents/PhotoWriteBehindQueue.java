@@ -0,0 +1,548 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.agents;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoId;
+import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.services.BatchWriteReport;
+import org.wahlzeit.services.LogBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * A coalescing write-behind queue for photos. Saving the same photo several times before the queue is flushed results
+ * in a single write. The queue is flushed when it holds maxSize photos or when its oldest entry is older than
+ * maxAgeInMillis; all photos of a flush are written in batches via PhotoManager.savePhotos(Collection). Photos that
+ * could not be written are put back into the queue and retried with a later flush. Writes of data that can be derived
+ * again, like deferred images, can be queued as well; they are not retried.
+ *
+ * The queue lives in the memory of one instance, like the photo cache it writes from, so it is always flushed by that
+ * instance; handing the ids to a task that may run elsewhere would write clean copies loaded from the datastore.
+ */
+public class PhotoWriteBehindQueue {
+
+	private static final Logger log = Logger.getLogger(PhotoWriteBehindQueue.class.getName());
+
+	/**
+	 * How a flush is executed.
+	 */
+	public enum FlushMode {
+		/**
+		 * Flushes are written by a background executor of this instance; no App Engine task queue is needed.
+		 */
+		IN_PROCESS,
+
+		/**
+		 * Flushes are written on the thread of a request that ends while the queue is full or too old, so writes
+		 * coalesce across requests and most requests do not write at all. Only one request flushes at a time, the
+		 * others do not wait. Used where background threads can not outlive a request, as on App Engine.
+		 */
+		END_OF_REQUEST
+	}
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_MAX_SIZE = 50;
+	public static final long DEFAULT_MAX_AGE_IN_MILLIS = 5000;
+
+	/**
+	 *
+	 */
+	protected static PhotoWriteBehindQueue instance = null;
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized PhotoWriteBehindQueue getInstance() {
+		if (instance == null) {
+			log.config(LogBuilder.createSystemMessage().addAction("create in-process write-behind queue").toString());
+			instance = new PhotoWriteBehindQueue(FlushMode.IN_PROCESS, DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE_IN_MILLIS);
+		}
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static synchronized void setInstance(PhotoWriteBehindQueue newInstance) {
+		if (instance != null) {
+			instance.shutDown();
+		}
+		instance = newInstance;
+	}
+
+	/**
+	 *
+	 */
+	protected final FlushMode flushMode;
+	protected final int maxSize;
+	protected final long maxAgeInMillis;
+
+	/**
+	 * Pending photo ids with the time they were first enqueued, in enqueue order
+	 */
+	protected final Map<PhotoId, Long> pendingPhotoIds = new LinkedHashMap<PhotoId, Long>();
+
+	/**
+	 * Pending writes of derived data with the time they were enqueued, in enqueue order
+	 */
+	protected final Map<Runnable, Long> pendingWrites = new LinkedHashMap<Runnable, Long>();
+
+	/**
+	 * Only used in IN_PROCESS mode
+	 */
+	protected ScheduledExecutorService executor = null;
+
+	/**
+	 * Held while a request flushes in END_OF_REQUEST mode
+	 */
+	protected final Lock flushLock = new ReentrantLock();
+
+	/**
+	 * Metrics
+	 */
+	protected long noEnqueued = 0;
+	protected long noCoalesced = 0;
+	protected long noRequeued = 0;
+	protected long noFlushes = 0;
+	protected long noFlushedPhotos = 0;
+	protected long totalFlushLatencyInMillis = 0;
+	protected long lastFlushLatencyInMillis = 0;
+	protected long maxFlushLatencyInMillis = 0;
+	protected long lastQueueDelayInMillis = 0;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoWriteBehindQueue(FlushMode flushMode, int maxSize, long maxAgeInMillis) {
+		if (flushMode == null) {
+			throw new IllegalArgumentException("flushMode should not be null");
+		}
+		if (maxSize <= 0 || maxAgeInMillis <= 0) {
+			throw new IllegalArgumentException("maxSize and maxAgeInMillis must be positive");
+		}
+
+		this.flushMode = flushMode;
+		this.maxSize = maxSize;
+		this.maxAgeInMillis = maxAgeInMillis;
+
+		if (flushMode == FlushMode.IN_PROCESS) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread result = new Thread(runnable, "photo-write-behind");
+					result.setDaemon(true);
+					return result;
+				}
+			});
+			long period = Math.max(1, maxAgeInMillis / 2);
+			executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					flushIfTooOld();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * The photo is put back into the PhotoManager's cache if it was evicted while the caller held it, so that the
+	 * flush writes this instance rather than a clean copy loaded by id.
+	 *
+	 * @methodtype command
+	 */
+	public void enqueue(Photo photo) {
+		PhotoManager.getInstance().readmitPhoto(photo);
+		enqueue(photo.getId());
+	}
+
+	/**
+	 * Adds the photo id to the queue; a photo id that is already pending is not added again.
+	 *
+	 * @methodtype command
+	 */
+	public void enqueue(PhotoId photoId) {
+		if (photoId == null || photoId.isNullId()) {
+			throw new IllegalArgumentException("invalid photo id: " + photoId);
+		}
+
+		boolean isFull;
+		synchronized (this) {
+			noEnqueued++;
+			if (pendingPhotoIds.containsKey(photoId)) {
+				noCoalesced++;
+			} else {
+				pendingPhotoIds.put(photoId, System.currentTimeMillis());
+			}
+			isFull = getQueueDepth() >= maxSize;
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("enqueued photo", photoId.asString()).
+				addParameter("queue depth", getQueueDepth()).toString());
+
+		if (flushMode == FlushMode.IN_PROCESS && (isFull || isTooOld())) {
+			requestFlush();
+		}
+	}
+
+	/**
+	 * Adds a write of data that can be derived again, e.g. a deferred image, to the queue. It runs with the next flush
+	 * and is dropped if it fails.
+	 *
+	 * @methodtype command
+	 */
+	public void enqueueWrite(Runnable write) {
+		if (write == null) {
+			throw new IllegalArgumentException("write should not be null");
+		}
+
+		boolean isFull;
+		synchronized (this) {
+			noEnqueued++;
+			pendingWrites.put(write, System.currentTimeMillis());
+			isFull = getQueueDepth() >= maxSize;
+		}
+
+		if (flushMode == FlushMode.IN_PROCESS && (isFull || isTooOld())) {
+			requestFlush();
+		}
+	}
+
+	/**
+	 * Called when a request ends; in END_OF_REQUEST mode, the queue is flushed if it is full or too old and no other
+	 * request is flushing it. Never throws, so that neither the outcome of the request nor its clean-up is affected;
+	 * photos that could not be written stay in the queue.
+	 *
+	 * @methodtype command
+	 */
+	public void endRequest() {
+		if (flushMode != FlushMode.END_OF_REQUEST || !isDue() || !flushLock.tryLock()) {
+			return;
+		}
+
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("could not flush write-behind queue", e).toString());
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected synchronized boolean isDue() {
+		return getQueueDepth() >= maxSize || isTooOld();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected synchronized boolean isTooOld() {
+		long now = System.currentTimeMillis();
+		if (!pendingPhotoIds.isEmpty() && now - pendingPhotoIds.values().iterator().next() >= maxAgeInMillis) {
+			return true;
+		}
+		return !pendingWrites.isEmpty() && now - pendingWrites.values().iterator().next() >= maxAgeInMillis;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void flushIfTooOld() {
+		if (isTooOld()) {
+			flush();
+		}
+	}
+
+	/**
+	 * Flushes the queue on the background executor.
+	 *
+	 * @methodtype command
+	 */
+	protected void requestFlush() {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	/**
+	 * Removes all pending photo ids from the queue and returns them in enqueue order.
+	 *
+	 * @methodtype command
+	 */
+	protected synchronized List<PhotoId> drain() {
+		List<PhotoId> result = new ArrayList<PhotoId>(pendingPhotoIds.keySet());
+		if (!pendingPhotoIds.isEmpty()) {
+			lastQueueDelayInMillis = System.currentTimeMillis() - pendingPhotoIds.values().iterator().next();
+		}
+		pendingPhotoIds.clear();
+		return result;
+	}
+
+	/**
+	 * Removes all pending writes from the queue and returns them in enqueue order.
+	 *
+	 * @methodtype command
+	 */
+	protected synchronized List<Runnable> drainWrites() {
+		List<Runnable> result = new ArrayList<Runnable>(pendingWrites.keySet());
+		pendingWrites.clear();
+		return result;
+	}
+
+	/**
+	 * Puts photo ids that could not be written back into the queue. They count as just enqueued, so they are retried
+	 * with the next flush that is due rather than at once.
+	 *
+	 * @methodtype command
+	 */
+	protected synchronized void requeue(Collection<PhotoId> photoIds) {
+		long now = System.currentTimeMillis();
+		for (PhotoId photoId : photoIds) {
+			if (!pendingPhotoIds.containsKey(photoId)) {
+				pendingPhotoIds.put(photoId, now);
+			}
+		}
+		noRequeued += photoIds.size();
+	}
+
+	/**
+	 * Writes all pending photos on the calling thread. If the write fails, the photos are put back into the queue
+	 * before the exception is passed on.
+	 *
+	 * @methodtype command
+	 */
+	public BatchWriteReport flush() {
+		final List<PhotoId> photoIds = drain();
+		final List<Runnable> writes = drainWrites();
+		if (photoIds.isEmpty() && writes.isEmpty()) {
+			return new BatchWriteReport();
+		}
+
+		try {
+			return ObjectifyService.run(new Work<BatchWriteReport>() {
+				@Override
+				public BatchWriteReport run() {
+					runWrites(writes);
+					return photoIds.isEmpty() ? new BatchWriteReport() : savePhotos(photoIds);
+				}
+			});
+		} catch (RuntimeException e) {
+			requeue(photoIds);
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs the given writes; a failing write is logged and dropped, as its data can be derived again.
+	 *
+	 * @methodtype command
+	 */
+	protected void runWrites(List<Runnable> writes) {
+		for (Runnable write : writes) {
+			try {
+				write.run();
+			} catch (RuntimeException e) {
+				log.warning(LogBuilder.createSystemMessage().
+						addException("could not run queued write", e).toString());
+			}
+		}
+	}
+
+	/**
+	 * Writes the given photos in batches and records the flush latency.
+	 *
+	 * @methodtype command
+	 */
+	public BatchWriteReport savePhotos(Collection<PhotoId> photoIds) {
+		long startTime = System.currentTimeMillis();
+
+		PhotoManager photoManager = PhotoManager.getInstance();
+		List<Photo> photos = new ArrayList<Photo>(photoIds.size());
+		for (PhotoId photoId : photoIds) {
+			Photo photo = photoManager.getPhoto(photoId);
+			if (photo != null) {
+				photos.add(photo);
+			} else {
+				log.warning(LogBuilder.createSystemMessage().
+						addParameter("Could not find Photo with ID", photoId.asString()).toString());
+			}
+		}
+		BatchWriteReport result = photoManager.savePhotos(photos);
+
+		// photos of failed chunks stay dirty and are written again later
+		List<PhotoId> failedPhotoIds = new ArrayList<PhotoId>();
+		for (Photo photo : photos) {
+			if (photo.isDirty()) {
+				failedPhotoIds.add(photo.getId());
+			}
+		}
+		if (!failedPhotoIds.isEmpty()) {
+			requeue(failedPhotoIds);
+		}
+
+		recordFlush(photos.size(), System.currentTimeMillis() - startTime);
+		log.info(LogBuilder.createSystemMessage().
+				addAction("flushed write-behind queue").
+				addParameter("photos", photos.size()).
+				addParameter("report", result.asString()).toString());
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected synchronized void recordFlush(int noPhotos, long latencyInMillis) {
+		noFlushes++;
+		noFlushedPhotos += noPhotos;
+		lastFlushLatencyInMillis = latencyInMillis;
+		totalFlushLatencyInMillis += latencyInMillis;
+		maxFlushLatencyInMillis = Math.max(maxFlushLatencyInMillis, latencyInMillis);
+	}
+
+	/**
+	 * Writes all pending photos and stops the background executor, if any.
+	 *
+	 * @methodtype command
+	 */
+	public void shutDown() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+		flush();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public FlushMode getFlushMode() {
+		return flushMode;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int getQueueDepth() {
+		return pendingPhotoIds.size() + pendingWrites.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getNoEnqueued() {
+		return noEnqueued;
+	}
+
+	/**
+	 * Number of enqueued writes that were merged into an already pending write.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized long getNoCoalesced() {
+		return noCoalesced;
+	}
+
+	/**
+	 * Number of photo writes that failed and were put back into the queue.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized long getNoRequeued() {
+		return noRequeued;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getNoFlushes() {
+		return noFlushes;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getNoFlushedPhotos() {
+		return noFlushedPhotos;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getLastFlushLatencyInMillis() {
+		return lastFlushLatencyInMillis;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getMaxFlushLatencyInMillis() {
+		return maxFlushLatencyInMillis;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getAverageFlushLatencyInMillis() {
+		return noFlushes == 0 ? 0 : totalFlushLatencyInMillis / noFlushes;
+	}
+
+	/**
+	 * Time the oldest photo of the last flush spent in the queue.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized long getLastQueueDelayInMillis() {
+		return lastQueueDelayInMillis;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public synchronized String getMetricsAsString() {
+		return "depth: " + getQueueDepth() + ", enqueued: " + noEnqueued + ", coalesced: " + noCoalesced +
+				", requeued: " + noRequeued + ", flushes: " + noFlushes + ", flushed photos: " + noFlushedPhotos +
+				", last flush latency: " + lastFlushLatencyInMillis + "ms, max flush latency: " +
+				maxFlushLatencyInMillis + "ms";
+	}
+
+}
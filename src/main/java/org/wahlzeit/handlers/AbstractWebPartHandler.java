@@ -26,6 +26,7 @@ import org.wahlzeit.model.ModelConfig;
 import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.PhotoSize;
+import org.wahlzeit.model.ThumbSpriteSheet;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.Language;
@@ -38,6 +39,7 @@ import org.wahlzeit.webparts.WebPartTemplate;
 import org.wahlzeit.webparts.WebPartTemplateService;
 
 import java.io.File;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -85,7 +87,13 @@ public abstract class AbstractWebPartHandler implements WebPartHandler {
 	 */
 	protected String getPhotoThumb(UserSession us, Photo photo) {
 		String result = null;
-		if (photo != null) {
+		ThumbSpriteSheet sheet = getThumbSpriteSheet(us, photo);
+		if (sheet != null) {
+			int index = sheet.indexOf(photo.getId());
+			String spriteLink = HtmlUtil.asPath(getThumbSpriteAsRelativeResourcePathString(sheet));
+			result = HtmlUtil.asSprite(spriteLink, photo.getThumbWidth(), photo.getThumbHeight(),
+					ThumbSpriteSheet.getX(index), ThumbSpriteSheet.getY(index));
+		} else if (photo != null) {
 			String imageLink = getPhotoAsRelativeResourcePathString(photo, PhotoSize.THUMB);
 			result = HtmlUtil.asImg(HtmlUtil.asPath(imageLink), photo.getThumbWidth(), photo.getThumbHeight());
 		} else {
@@ -95,12 +103,38 @@ public abstract class AbstractWebPartHandler implements WebPartHandler {
 		return result;
 	}
 
+	/**
+	 * Returns the sprite sheet of the page that holds the thumbnail of the photo, if any.
+	 *
+	 * @methodtype get
+	 */
+	protected ThumbSpriteSheet getThumbSpriteSheet(UserSession us, Photo photo) {
+		List<ThumbSpriteSheet> sheets = us.getThumbSpriteSheets();
+		if (photo == null || sheets == null) {
+			return null;
+		}
+		for (ThumbSpriteSheet sheet : sheets) {
+			if (sheet.indexOf(photo.getId()) != -1) {
+				return sheet;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 *
+	 */
+	protected String getThumbSpriteAsRelativeResourcePathString(ThumbSpriteSheet sheet) {
+		return SysConfig.getPhotosDir().getRelativeDir() + "/?type=sprite&sheet=" + sheet.getId() + "&v=" +
+				sheet.getVersion();
+	}
+
 	/**
 	 *
 	 */
 	protected String getPhotoAsRelativeResourcePathString(Photo photo, PhotoSize size) {
 		return SysConfig.getPhotosDir().getRelativeDir() + "/?type=image&photoId=" + photo.getId().asString() +
-				"&size=" + String.valueOf(size.asInt());
+				"&size=" + String.valueOf(size.asInt()) + "&v=" + photo.getImageVersion();
 	}
 
 	/**
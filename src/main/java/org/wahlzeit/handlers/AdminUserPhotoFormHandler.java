@@ -74,7 +74,7 @@ public class AdminUserPhotoFormHandler extends AbstractWebFormHandler {
 		String status = us.getAndSaveAsString(args, Photo.STATUS);
 		photo.setStatus(PhotoStatus.getFromString(status));
 
-		AsyncTaskExecutor.savePhotoAsync(id);
+		AsyncTaskExecutor.savePhotoAsync(photo);
 
 		log.info(LogBuilder.createUserMessage().
 				addAction("AdminUserPhoto").
@@ -20,6 +20,7 @@
 
 package org.wahlzeit.handlers;
 
+import org.wahlzeit.agents.AsyncTaskExecutor;
 import org.wahlzeit.model.AccessRights;
 import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoCase;
@@ -98,6 +99,7 @@ public class EditPhotoCaseFormHandler extends AbstractWebFormHandler {
 		}
 
 		photo.setStatus(status);
+		AsyncTaskExecutor.savePhotoAsync(photo);
 
 		log.info(LogBuilder.createUserMessage().
 				addAction("EditPhotoCase").
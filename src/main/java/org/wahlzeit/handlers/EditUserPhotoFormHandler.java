@@ -103,7 +103,7 @@ public class EditUserPhotoFormHandler extends AbstractWebFormHandler {
 		PhotoStatus ps = photo.getStatus().asInvisible(isInvisible);
 		photo.setStatus(ps);
 
-		AsyncTaskExecutor.savePhotoAsync(id);
+		AsyncTaskExecutor.savePhotoAsync(photo);
 
 		log.info(LogBuilder.createUserMessage().
 				addAction("EditUserPhoto").
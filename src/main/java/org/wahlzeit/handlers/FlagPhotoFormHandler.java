@@ -100,7 +100,7 @@ public class FlagPhotoFormHandler extends AbstractWebFormHandler {
 
 		Photo photo = PhotoManager.getInstance().getPhoto(id);
 		photo.setStatus(photo.getStatus().asFlagged(true));
-		AsyncTaskExecutor.savePhotoAsync(id);
+		AsyncTaskExecutor.savePhotoAsync(photo);
 
 		PhotoCase photoCase = new PhotoCase(photo);
 		photoCase.setFlagger(flagger);
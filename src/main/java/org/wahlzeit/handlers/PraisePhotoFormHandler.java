@@ -20,6 +20,7 @@
 
 package org.wahlzeit.handlers;
 
+import org.wahlzeit.agents.AsyncTaskExecutor;
 import org.wahlzeit.model.AccessRights;
 import org.wahlzeit.model.Client;
 import org.wahlzeit.model.Photo;
@@ -84,6 +85,7 @@ public class PraisePhotoFormHandler extends AbstractWebFormHandler {
 				photo.addToPraise(value);
 				client.addPraisedPhotoId(photo.getId());
 				us.addProcessedPhoto(photo);
+				AsyncTaskExecutor.savePhotoAsync(photo);
 				wasPraised = true;
 			}
 		}
@@ -21,14 +21,18 @@
 package org.wahlzeit.handlers;
 
 import org.wahlzeit.model.AccessRights;
+import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoCase;
 import org.wahlzeit.model.PhotoCaseManager;
+import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.utils.HtmlUtil;
 import org.wahlzeit.webparts.WebPart;
 import org.wahlzeit.webparts.Writable;
 import org.wahlzeit.webparts.WritableList;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 
@@ -54,10 +58,22 @@ public class ShowPhotoCasesPageHandler extends AbstractWebPageHandler {
 		PhotoCaseManager pcm = PhotoCaseManager.getInstance();
 		PhotoCase[] flaggedCases = pcm.getOpenPhotoCasesByAscendingAge();
 		if (flaggedCases.length != 0) {
+			List<Photo> photos = new ArrayList<Photo>(flaggedCases.length);
+			for (int i = 0; i < flaggedCases.length; i++) {
+				Photo photo = flaggedCases[i].getPhoto();
+				if (photo != null && !photos.contains(photo)) {
+					photos.add(photo);
+				}
+			}
+
+			// all thumbnails of the queue come from a few sprite sheets instead of one request each; the photos are
+			// flagged, so the sheets are only served to moderators
+			us.setThumbSpriteSheets(PhotoManager.getInstance().issueThumbSpriteSheets(photos, true));
 			WritableList openCases = new WritableList();
 			for (int i = 0; i < flaggedCases.length; i++) {
 				openCases.append(makePhotoCaseForm(us, flaggedCases[i]));
 			}
+			us.setThumbSpriteSheets(null);
 			page.addWritable("openCases", openCases);
 		} else {
 			page.addString("openCases",
@@ -30,6 +30,9 @@ import org.wahlzeit.webparts.WebPart;
 import org.wahlzeit.webparts.Writable;
 import org.wahlzeit.webparts.WritableList;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A handler class for a specific web page.
  */
@@ -53,16 +56,24 @@ public class ShowUserHomePageHandler extends AbstractWebPageHandler {
 		Photo[] photos = user.getPhotos();
 		boolean wasEmpty = true;
 		if (photos.length != 0) {
-			WritableList list = new WritableList();
+			List<Photo> shownPhotos = new ArrayList<Photo>(photos.length);
 			for (Photo photo : photos) {
 				// load it from the PhotoManager to make sure the same copy is used
 				photo = PhotoManager.getInstance().getPhotoFromId(photo.getId());
 				if (photo != null && !photo.getStatus().isDeleted()) {
-					part = makeUserPhotoForm(us, photo);
-					list.append(part);
-					wasEmpty = false;
+					shownPhotos.add(photo);
 				}
 			}
+
+			// all thumbnails of the page come from a few sprite sheets instead of one request each
+			us.setThumbSpriteSheets(PhotoManager.getInstance().issueThumbSpriteSheets(shownPhotos));
+			WritableList list = new WritableList();
+			for (Photo photo : shownPhotos) {
+				part = makeUserPhotoForm(us, photo);
+				list.append(part);
+				wasEmpty = false;
+			}
+			us.setThumbSpriteSheets(null);
 			page.addWritable("photos", list);
 		}
 
@@ -26,10 +26,12 @@ import org.wahlzeit.model.AccessRights;
 import org.wahlzeit.model.ModelConfig;
 import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.model.PhotoUtil;
 import org.wahlzeit.model.Tags;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.utils.HtmlUtil;
 import org.wahlzeit.utils.StringUtil;
 import org.wahlzeit.webparts.WebPart;
 
@@ -77,7 +79,22 @@ public class UploadPhotoFormHandler extends AbstractWebFormHandler {
 			String fileName = us.getAsString(args, "fileName");
 			User user = (User) us.getClient();
 			Image uploadedImage = user.getUploadedImage();
-			Photo photo = pm.createPhoto(fileName, uploadedImage);
+			user.setUploadedImage(null); // do not keep the original image with the user
+
+			// near-duplicates link to the existing photo instead of getting images of their own
+			Long perceptualHash = PhotoUtil.getPerceptualHash(uploadedImage);
+			Photo nearDuplicate = pm.getNearDuplicatePhoto(perceptualHash);
+			if (nearDuplicate != null) {
+				String photoId = nearDuplicate.getId().asString();
+				log.info(LogBuilder.createUserMessage().
+						addAction("Upload Photo").
+						addMessage("rejected near-duplicate").
+						addParameter("Photo", photoId).toString());
+				us.setTwoLineMessage(config.getPhotoIsNearDuplicate(), HtmlUtil.asHref(photoId + ".html", photoId));
+				return PartUtil.UPLOAD_PHOTO_PAGE_NAME;
+			}
+
+			Photo photo = pm.createPhoto(fileName, uploadedImage, perceptualHash);
 
 			user.addPhoto(photo);
 
@@ -93,7 +110,7 @@ public class UploadPhotoFormHandler extends AbstractWebFormHandler {
 					addAction("Calling async task to save Photo").
 					addParameter("ID", photo.getId().asString()).toString());
 
-			AsyncTaskExecutor.savePhotoAsync(photo.getId().asString());
+			AsyncTaskExecutor.savePhotoAsync(photo);
 		} catch (Exception ex) {
 			log.warning(LogBuilder.createSystemMessage().addException("uploading photo failed", ex).toString());
 			us.setMessage(config.getPhotoUploadFailed());
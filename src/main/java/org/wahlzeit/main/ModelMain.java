@@ -22,7 +22,13 @@ package org.wahlzeit.main;
 
 import com.google.appengine.api.images.Image;
 import com.google.appengine.api.images.ImagesServiceFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import org.wahlzeit.agents.PhotoWriteBehindQueue;
 import org.wahlzeit.model.GlobalsManager;
+import org.wahlzeit.model.ImageScaler;
+import org.wahlzeit.model.ImagesServiceScaler;
+import org.wahlzeit.model.JavaImageScaler;
 import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoCaseManager;
 import org.wahlzeit.model.PhotoFactory;
@@ -30,7 +36,9 @@ import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserManager;
 import org.wahlzeit.model.persistence.DatastoreAdapter;
+import org.wahlzeit.model.persistence.FileSystemAdapter;
 import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.services.BatchWriteReport;
 import org.wahlzeit.services.LogBuilder;
 
 import java.io.File;
@@ -38,6 +46,7 @@ import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 /**
@@ -56,7 +65,8 @@ public abstract class ModelMain extends AbstractMain {
 
 		log.config(LogBuilder.createSystemMessage().addAction("load image storage").toString());
 		//GcsAdapter.Builder gcsAdapterBuilder = new GcsAdapter.Builder();
-		ImageStorage.setInstance(new DatastoreAdapter());
+		ImageStorage.setInstance(createImageStorage());
+		ImageScaler.setInstance(createImageScaler());
 
 		log.config(LogBuilder.createSystemMessage().addAction("load globals").toString());
 		GlobalsManager.getInstance().loadGlobals();
@@ -68,7 +78,75 @@ public abstract class ModelMain extends AbstractMain {
 		PhotoFactory.initialize();
 
 		log.config(LogBuilder.createSystemMessage().addAction("load Photos").toString());
+		long startTime = System.currentTimeMillis();
 		PhotoManager.getInstance().init();
+		log.info(LogBuilder.createSystemMessage().addAction("loaded Photos").
+				addParameter("duration in ms", System.currentTimeMillis() - startTime).toString());
+
+		log.config(LogBuilder.createSystemMessage().addAction("init write-behind queue").toString());
+		PhotoWriteBehindQueue.setInstance(createPhotoWriteBehindQueue());
+		PhotoManager.getInstance().setDeferredImageWriter(new Executor() {
+			@Override
+			public void execute(Runnable write) {
+				PhotoWriteBehindQueue.getInstance().enqueueWrite(write);
+			}
+		});
+
+		int noWarmUpPhotos = Integer.getInteger(PhotoManager.IMAGE_WARM_UP_PROPERTY, 0);
+		if (noWarmUpPhotos > 0) {
+			log.config(LogBuilder.createSystemMessage().addAction("start image warm-up").toString());
+			startImageWarmUp(noWarmUpPhotos);
+		}
+	}
+
+	/**
+	 * Self-hosted instances may keep images in the file system, see FileSystemAdapter.ROOT_DIR_PROPERTY.
+	 */
+	protected ImageStorage createImageStorage() throws IOException {
+		String rootDir = System.getProperty(FileSystemAdapter.ROOT_DIR_PROPERTY);
+		if (rootDir == null || rootDir.isEmpty()) {
+			return new DatastoreAdapter();
+		}
+		log.config(LogBuilder.createSystemMessage().addParameter("image directory", rootDir).toString());
+		return new FileSystemAdapter(Paths.get(rootDir));
+	}
+
+	/**
+	 * The images service is only available within App Engine; "java" selects the scaler that runs anywhere.
+	 */
+	protected ImageScaler createImageScaler() {
+		String scaler = System.getProperty(ImageScaler.IMAGE_SCALER_PROPERTY);
+		if ("java".equals(scaler)) {
+			return new JavaImageScaler();
+		}
+		return new ImagesServiceScaler();
+	}
+
+	/**
+	 * Tools load the images on a background daemon thread.
+	 */
+	protected void startImageWarmUp(final int noPhotos) {
+		Thread warmUpThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ObjectifyService.run(new VoidWork() {
+					@Override
+					public void vrun() {
+						PhotoManager.getInstance().warmUpImages(noPhotos);
+					}
+				});
+			}
+		}, "image-warm-up");
+		warmUpThread.setDaemon(true);
+		warmUpThread.start();
+	}
+
+	/**
+	 * Tools run without the App Engine task queue, so photos are written by an in-process executor.
+	 */
+	protected PhotoWriteBehindQueue createPhotoWriteBehindQueue() {
+		return new PhotoWriteBehindQueue(PhotoWriteBehindQueue.FlushMode.IN_PROCESS,
+				PhotoWriteBehindQueue.DEFAULT_MAX_SIZE, PhotoWriteBehindQueue.DEFAULT_MAX_AGE_IN_MILLIS);
 	}
 
 
@@ -76,6 +154,7 @@ public abstract class ModelMain extends AbstractMain {
 	 *
 	 */
 	protected void shutDown() throws Exception {
+		PhotoWriteBehindQueue.getInstance().shutDown();
 		saveAll();
 
 		super.shutDown();
@@ -85,12 +164,24 @@ public abstract class ModelMain extends AbstractMain {
 	 *
 	 */
 	public void saveAll() throws IOException{
-		PhotoCaseManager.getInstance().savePhotoCases();
-		PhotoManager.getInstance().savePhotos();
-		UserManager.getInstance().saveClients();
+		logBatchWriteReport("photo cases", PhotoCaseManager.getInstance().savePhotoCases());
+		logBatchWriteReport("photos", PhotoManager.getInstance().savePhotos());
+		logBatchWriteReport("clients", UserManager.getInstance().saveClients());
 		GlobalsManager.getInstance().saveGlobals();
 	}
 
+	/**
+	 *
+	 */
+	protected void logBatchWriteReport(String label, BatchWriteReport report) {
+		if (report.isSuccess()) {
+			log.info(LogBuilder.createSystemMessage().addParameter("saved " + label, report.asString()).toString());
+		} else {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("could not save all " + label, report.asString()).toString());
+		}
+	}
+
 	/**
 	 *
 	 */
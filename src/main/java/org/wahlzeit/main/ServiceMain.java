@@ -22,6 +22,7 @@ package org.wahlzeit.main;
 
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.VoidWork;
+import org.wahlzeit.agents.PhotoWriteBehindQueue;
 import org.wahlzeit.handlers.*;
 import org.wahlzeit.model.AccessRights;
 import org.wahlzeit.model.EnglishModelConfig;
@@ -239,6 +240,30 @@ public class ServiceMain extends ModelMain {
 		});
 	}
 
+	/**
+	 * In production, App Engine sends a warmup request to each new instance; WarmupServlet loads the images in that
+	 * request, on the instance that will serve them.
+	 */
+	@Override
+	protected void startImageWarmUp(int noPhotos) {
+		if (!isInProduction()) {
+			super.startImageWarmUp(noPhotos);
+		}
+	}
+
+	/**
+	 * In production, no background thread may outlive a request, so the queue is flushed by the page requests that end
+	 * once it is full or too old; image requests never flush it.
+	 */
+	@Override
+	protected PhotoWriteBehindQueue createPhotoWriteBehindQueue() {
+		if (!isInProduction()) {
+			return super.createPhotoWriteBehindQueue();
+		}
+		return new PhotoWriteBehindQueue(PhotoWriteBehindQueue.FlushMode.END_OF_REQUEST,
+				PhotoWriteBehindQueue.DEFAULT_MAX_SIZE, PhotoWriteBehindQueue.DEFAULT_MAX_AGE_IN_MILLIS);
+	}
+
 	/**
 	 *
 	 */
@@ -576,6 +576,13 @@ public abstract class AbstractModelConfig extends AbstractConfig implements Mode
 		return doGetValue("PhotoUploadSucceeded");
 	}
 
+	/**
+	 *
+	 */
+	public String getPhotoIsNearDuplicate() {
+		return doGetValue("PhotoIsNearDuplicate");
+	}
+
 	/**
 	 *
 	 */
@@ -1,9 +1,11 @@
 package org.wahlzeit.model;
 
+import org.wahlzeit.services.BatchWriteReport;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.ObjectManager;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -156,8 +158,17 @@ public abstract class ClientManager extends ObjectManager {
 	/**
 	 * @methodtype command
 	 */
-	public void saveClients() {
-		updateObjects(idClientMap.values());
+	public BatchWriteReport saveClients() {
+		return updateObjects(idClientMap.values());
+	}
+
+	/**
+	 * Saves the given clients with batched writes, see updateObjects().
+	 *
+	 * @methodtype command
+	 */
+	public BatchWriteReport saveClients(Collection<? extends Client> clients) {
+		return updateObjects(clients);
 	}
 
 
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import org.wahlzeit.services.LogBuilder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * An ImageScaler scales the images of photos; PhotoUtil scales all sizes with the current instance. The default is
+ * the ImagesServiceScaler of App Engine; the JavaImageScaler runs anywhere, e.g. to benchmark scaling locally.
+ */
+public abstract class ImageScaler {
+
+	private static final Logger log = Logger.getLogger(ImageScaler.class.getName());
+
+	/**
+	 * System property to select the scaler, see ModelMain.createImageScaler()
+	 */
+	public static final String IMAGE_SCALER_PROPERTY = "wahlzeit.imageScaler";
+
+	/**
+	 * Number of images scaled at the same time by scaleAsync, over all uploads
+	 */
+	public static final int MAX_SCALING_THREADS = 3;
+
+	/**
+	 * Scalings waiting for a thread; when the queue is full, the caller scales the image itself
+	 */
+	protected static final int MAX_QUEUED_SCALINGS = 16;
+
+	/**
+	 *
+	 */
+	protected static ImageScaler instance = null;
+
+	/**
+	 * Executor of scaleAsync, shared by all uploads; created on first use
+	 */
+	protected static ExecutorService scalingExecutor = null;
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized ImageScaler getInstance() {
+		if (instance == null) {
+			instance = new ImagesServiceScaler();
+		}
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static synchronized void setInstance(ImageScaler newInstance) {
+		log.config(LogBuilder.createSystemMessage().
+				addAction("set ImageScaler instance").
+				addParameter("instance", newInstance).toString());
+		instance = newInstance;
+	}
+
+	/**
+	 * Returns a new image of the given size; the source is not changed.
+	 *
+	 * @methodtype factory
+	 * @methodproperty wrapper
+	 */
+	public Image scale(Image source, int targetWidth, int targetHeight) throws Exception {
+		if (source == null) {
+			throw new IllegalArgumentException("source should not be null");
+		}
+		if (targetWidth <= 0 || targetHeight <= 0) {
+			throw new IllegalArgumentException("invalid target size: " + targetWidth + "x" + targetHeight);
+		}
+
+		return doScale(source, targetWidth, targetHeight);
+	}
+
+	/**
+	 * Starts scaling the image and returns the result as a future, so that several sizes can be scaled at once.
+	 *
+	 * @methodtype factory
+	 * @methodproperty wrapper
+	 */
+	public Future<Image> scaleAsync(Image source, int targetWidth, int targetHeight) throws Exception {
+		if (source == null) {
+			throw new IllegalArgumentException("source should not be null");
+		}
+		if (targetWidth <= 0 || targetHeight <= 0) {
+			throw new IllegalArgumentException("invalid target size: " + targetWidth + "x" + targetHeight);
+		}
+
+		return doScaleAsync(source, targetWidth, targetHeight);
+	}
+
+	/**
+	 * Runs doScale on the shared scaling executor.
+	 *
+	 * @methodtype factory
+	 * @methodproperty hook
+	 */
+	protected Future<Image> doScaleAsync(final Image source, final int targetWidth, final int targetHeight)
+			throws Exception {
+		return getScalingExecutor().submit(new Callable<Image>() {
+			@Override
+			public Image call() throws Exception {
+				return doScale(source, targetWidth, targetHeight);
+			}
+		});
+	}
+
+	/**
+	 * @methodtype factory
+	 * @methodproperty hook
+	 */
+	protected abstract Image doScale(Image source, int targetWidth, int targetHeight) throws Exception;
+
+	/**
+	 * Threads are daemons that end when idle, so the executor needs no shutdown.
+	 *
+	 * @methodtype get
+	 */
+	protected static synchronized ExecutorService getScalingExecutor() {
+		if (scalingExecutor == null) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_SCALING_THREADS, MAX_SCALING_THREADS, 60,
+					TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_SCALINGS), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread result = new Thread(runnable, "image-scaling");
+							result.setDaemon(true);
+							return result;
+						}
+					}, new ThreadPoolExecutor.CallerRunsPolicy());
+			executor.allowCoreThreadTimeOut(true);
+			scalingExecutor = executor;
+		}
+		return scalingExecutor;
+	}
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.api.images.Transform;
+
+import java.util.concurrent.Future;
+
+/**
+ * Scales images with the App Engine images service; only works within App Engine.
+ */
+public class ImagesServiceScaler extends ImageScaler {
+
+	/**
+	 * applyTransform replaces the data of the image it is given, so it gets a new image; makeImage does not copy the
+	 * data.
+	 */
+	@Override
+	protected Image doScale(Image source, int targetWidth, int targetHeight) {
+		ImagesService imagesService = ImagesServiceFactory.getImagesService();
+		Transform resize = ImagesServiceFactory.makeResize(targetWidth, targetHeight);
+		return imagesService.applyTransform(resize, ImagesServiceFactory.makeImage(source.getImageData()));
+	}
+
+	/**
+	 * The images service scales remotely, so asynchronous calls need no threads of this instance; threads would have
+	 * to be made per request anyway, as only request threads may call App Engine services.
+	 */
+	@Override
+	protected Future<Image> doScaleAsync(Image source, int targetWidth, int targetHeight) {
+		ImagesService imagesService = ImagesServiceFactory.getImagesService();
+		Transform resize = ImagesServiceFactory.makeResize(targetWidth, targetHeight);
+		return imagesService.applyTransformAsync(resize, ImagesServiceFactory.makeImage(source.getImageData()));
+	}
+
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.wahlzeit.utils.ImageFormat;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Scales images in plain Java with a separable Lanczos filter: rows are filtered first, then columns. Both passes are
+ * cut into bands of rows that are filtered in parallel. JPEG images that are reduced by a factor of four or more are
+ * decoded with subsampling, which saves most of the decoding work and memory for thumbnails.
+ *
+ * Images with transparency are filtered with premultiplied alpha and written as PNG, all others as JPEG.
+ */
+public class JavaImageScaler extends ImageScaler {
+
+	/**
+	 *
+	 */
+	public static final float JPEG_QUALITY = 0.9f;
+
+	/**
+	 * Lanczos filter with three lobes
+	 */
+	protected static final int FILTER_RADIUS = 3;
+
+	/**
+	 * Bands have at least this many rows, so that small images are not cut into tasks that cost more than they save
+	 */
+	protected static final int MIN_ROWS_PER_BAND = 32;
+
+	/**
+	 *
+	 */
+	protected final int noThreads;
+	protected final ExecutorService executor;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public JavaImageScaler() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public JavaImageScaler(int noThreads) {
+		if (noThreads <= 0) {
+			throw new IllegalArgumentException("noThreads must be positive");
+		}
+
+		this.noThreads = noThreads;
+		this.executor = Executors.newFixedThreadPool(noThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread result = new Thread(runnable, "image-scaler");
+				result.setDaemon(true);
+				return result;
+			}
+		});
+	}
+
+	@Override
+	protected Image doScale(Image source, int targetWidth, int targetHeight) throws Exception {
+		byte[] imageData = source.getImageData();
+		byte[] header = Arrays.copyOf(imageData, Math.min(imageData.length, ImageFormat.MAX_MAGIC_NUMBER_LENGTH));
+		boolean isJpeg = ImageFormat.getFromHeader(header) == ImageFormat.JPEG;
+
+		BufferedImage decoded = decode(imageData, isJpeg, targetWidth, targetHeight);
+		BufferedImage scaled = resample(decoded, targetWidth, targetHeight);
+		return ImagesServiceFactory.makeImage(encode(scaled));
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected BufferedImage decode(byte[] imageData, boolean isJpeg, int targetWidth, int targetHeight)
+			throws IOException {
+		ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(imageData));
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) {
+				throw new IOException("unsupported image format");
+			}
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				if (isJpeg) {
+					int subsampling = getSubsampling(reader.getWidth(0), reader.getHeight(0), targetWidth, targetHeight);
+					param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				}
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * The decoded image stays at least twice as large as the target, so the filter still sees enough pixels.
+	 *
+	 * @methodtype get
+	 */
+	protected static int getSubsampling(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight) {
+		return Math.max(1, Math.min(sourceWidth / (2 * targetWidth), sourceHeight / (2 * targetHeight)));
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected BufferedImage resample(BufferedImage source, final int targetWidth, final int targetHeight)
+			throws Exception {
+		final int sourceWidth = source.getWidth();
+		final int sourceHeight = source.getHeight();
+		final boolean hasAlpha = source.getColorModel().hasAlpha();
+		final int[] sourcePixels = source.getRGB(0, 0, sourceWidth, sourceHeight, null, 0, sourceWidth);
+
+		final FilterWeights horizontalWeights = new FilterWeights(sourceWidth, targetWidth);
+		final float[] rows = new float[targetWidth * sourceHeight * 4];
+		filterInBands(sourceHeight, new Band() {
+			@Override
+			public void filter(int from, int to) {
+				filterRows(sourcePixels, sourceWidth, hasAlpha, horizontalWeights, rows, targetWidth, from, to);
+			}
+		});
+
+		final FilterWeights verticalWeights = new FilterWeights(sourceHeight, targetHeight);
+		final int[] targetPixels = new int[targetWidth * targetHeight];
+		filterInBands(targetHeight, new Band() {
+			@Override
+			public void filter(int from, int to) {
+				filterColumns(rows, targetWidth, hasAlpha, verticalWeights, targetPixels, from, to);
+			}
+		});
+
+		int type = hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		BufferedImage result = new BufferedImage(targetWidth, targetHeight, type);
+		result.setRGB(0, 0, targetWidth, targetHeight, targetPixels, 0, targetWidth);
+		return result;
+	}
+
+	/**
+	 * Filters the source rows from (inclusive) to (exclusive) horizontally into rows, four premultiplied channels
+	 * per pixel.
+	 *
+	 * @methodtype command
+	 */
+	protected static void filterRows(int[] sourcePixels, int sourceWidth, boolean hasAlpha, FilterWeights weights,
+			float[] rows, int targetWidth, int from, int to) {
+		for (int y = from; y < to; y++) {
+			int sourceOffset = y * sourceWidth;
+			int rowOffset = y * targetWidth * 4;
+			for (int x = 0; x < targetWidth; x++) {
+				float a = 0, r = 0, g = 0, b = 0;
+				float[] xWeights = weights.weights[x];
+				int first = weights.first[x];
+				for (int i = 0; i < xWeights.length; i++) {
+					int pixel = sourcePixels[sourceOffset + first + i];
+					float weight = xWeights[i];
+					float alpha = hasAlpha ? (pixel >>> 24) / 255f : 1f;
+					a += weight * alpha;
+					r += weight * alpha * ((pixel >> 16) & 0xFF);
+					g += weight * alpha * ((pixel >> 8) & 0xFF);
+					b += weight * alpha * (pixel & 0xFF);
+				}
+				int offset = rowOffset + x * 4;
+				rows[offset] = a;
+				rows[offset + 1] = r;
+				rows[offset + 2] = g;
+				rows[offset + 3] = b;
+			}
+		}
+	}
+
+	/**
+	 * Filters the filtered rows vertically into the target rows from (inclusive) to (exclusive). Whole rows are
+	 * accumulated at once, which keeps the inner loop sequential in memory.
+	 *
+	 * @methodtype command
+	 */
+	protected static void filterColumns(float[] rows, int targetWidth, boolean hasAlpha, FilterWeights weights,
+			int[] targetPixels, int from, int to) {
+		int rowLength = targetWidth * 4;
+		float[] sums = new float[rowLength];
+		for (int y = from; y < to; y++) {
+			Arrays.fill(sums, 0f);
+			float[] yWeights = weights.weights[y];
+			int first = weights.first[y];
+			for (int i = 0; i < yWeights.length; i++) {
+				float weight = yWeights[i];
+				int rowOffset = (first + i) * rowLength;
+				for (int j = 0; j < rowLength; j++) {
+					sums[j] += weight * rows[rowOffset + j];
+				}
+			}
+
+			int targetOffset = y * targetWidth;
+			for (int x = 0; x < targetWidth; x++) {
+				float alpha = sums[x * 4];
+				float factor = alpha > 0f ? 1f / alpha : 0f;
+				int a = hasAlpha ? asChannel(alpha * 255f) : 0xFF;
+				int r = asChannel(sums[x * 4 + 1] * factor);
+				int g = asChannel(sums[x * 4 + 2] * factor);
+				int b = asChannel(sums[x * 4 + 3] * factor);
+				targetPixels[targetOffset + x] = (a << 24) | (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static int asChannel(float value) {
+		int result = (int) (value + 0.5f);
+		return result < 0 ? 0 : (result > 255 ? 255 : result);
+	}
+
+	/**
+	 * Cuts noRows rows into bands for the executor and waits for all of them.
+	 *
+	 * @methodtype command
+	 */
+	protected void filterInBands(int noRows, final Band band) throws Exception {
+		int noBands = Math.min(noThreads, Math.max(1, noRows / MIN_ROWS_PER_BAND));
+		if (noBands == 1) {
+			band.filter(0, noRows);
+			return;
+		}
+
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(noBands);
+		for (int i = 0; i < noBands; i++) {
+			final int from = (int) ((long) noRows * i / noBands);
+			final int to = (int) ((long) noRows * (i + 1) / noBands);
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					band.filter(from, to);
+					return null;
+				}
+			}));
+		}
+
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static byte[] encode(BufferedImage image) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		if (image.getColorModel().hasAlpha()) {
+			ImageIO.write(image, "png", result);
+			return result.toByteArray();
+		}
+
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ImageOutputStream output = ImageIO.createImageOutputStream(result);
+		try {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(JPEG_QUALITY);
+			writer.setOutput(output);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+			output.close();
+		}
+		return result.toByteArray();
+	}
+
+	/**
+	 * Stops the threads of the scaler.
+	 *
+	 * @methodtype command
+	 */
+	public void shutDown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoThreads() {
+		return noThreads;
+	}
+
+	/**
+	 * A range of rows filtered by one task.
+	 */
+	protected interface Band {
+		void filter(int from, int to);
+	}
+
+	/**
+	 * Weights of the source pixels for each target pixel of one dimension. When scaling down, the filter is widened
+	 * by the scale factor; weights are normalized, so pixels at the border only use the taps inside the image.
+	 */
+	protected static class FilterWeights {
+
+		/**
+		 * Index of the first source pixel and the weights of the following ones, per target pixel
+		 */
+		protected final int[] first;
+		protected final float[][] weights;
+
+		/**
+		 * @methodtype constructor
+		 */
+		protected FilterWeights(int sourceSize, int targetSize) {
+			first = new int[targetSize];
+			weights = new float[targetSize][];
+
+			double scale = (double) targetSize / sourceSize;
+			double filterScale = Math.min(scale, 1.0);
+			double support = FILTER_RADIUS / filterScale;
+			for (int i = 0; i < targetSize; i++) {
+				double center = (i + 0.5) / scale;
+				int left = Math.max(0, (int) Math.floor(center - support));
+				int right = Math.min(sourceSize, (int) Math.ceil(center + support));
+
+				double[] values = new double[right - left];
+				double sum = 0;
+				for (int j = left; j < right; j++) {
+					values[j - left] = lanczos((j + 0.5 - center) * filterScale);
+					sum += values[j - left];
+				}
+
+				first[i] = left;
+				weights[i] = new float[values.length];
+				for (int j = 0; j < values.length; j++) {
+					weights[i][j] = (float) (values[j] / sum);
+				}
+			}
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		protected static double lanczos(double x) {
+			x = Math.abs(x);
+			if (x < 1e-8) {
+				return 1.0;
+			}
+			if (x >= FILTER_RADIUS) {
+				return 0.0;
+			}
+			double px = Math.PI * x;
+			return FILTER_RADIUS * Math.sin(px) * Math.sin(px / FILTER_RADIUS) / (px * px);
+		}
+	}
+
+}
@@ -184,6 +184,8 @@ public interface ModelConfig extends Configuration, Serializable {
 
 	String getPhotoUploadSucceeded();
 
+	String getPhotoIsNearDuplicate();
+
 	// LOGOUT_PAGE
 	String getLogoutSucceeded();
 
@@ -20,7 +20,6 @@
 
 package org.wahlzeit.model;
 
-import com.google.api.client.util.ArrayMap;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.images.Image;
 import com.googlecode.objectify.annotation.Entity;
@@ -33,6 +32,7 @@ import org.wahlzeit.services.Language;
 import org.wahlzeit.services.ObjectManager;
 
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A photo represents a user-provided (uploaded) photo.
@@ -79,9 +79,10 @@ public class Photo extends DataObject {
 	/**
 	 * Each photo can be viewed in different sizes (XS, S, M, L, XL)
 	 * Images are pre-computed in these sizes to optimize bandwidth when requested.
+	 * They are only held here until they are persisted; afterwards the ImageCache serves them.
 	 */
 	@Ignore
-	transient protected Map<PhotoSize, Image> images = new ArrayMap<PhotoSize, Image>();
+	transient protected Map<PhotoSize, Image> images = new ConcurrentHashMap<PhotoSize, Image>();
 	
 	/**
 	 *
@@ -97,6 +98,11 @@ public class Photo extends DataObject {
 	protected int height;
 	protected PhotoSize maxPhotoSize = PhotoSize.MEDIUM; // derived
 	
+	/**
+	 * DifferenceHash of the uploaded image; null for photos uploaded before hashes were computed
+	 */
+	protected Long perceptualHash = null;
+	
 	/**
 	 *
 	 */
@@ -138,6 +144,7 @@ public class Photo extends DataObject {
 	 */
 	public Photo() {
 		id = PhotoId.getNextId();
+		idLong = (long) id.asInt();
 		incWriteCount();
 	}
 
@@ -146,7 +153,35 @@ public class Photo extends DataObject {
 	 */
 	public Photo(PhotoId myId) {
 		id = myId;
+		idLong = myId == null ? null : (long) myId.asInt(); // subclasses reject a null id
+
+		incWriteCount();
+	}
+
+	/**
+	 * Photos are stored under their PhotoId int, so that PhotoFactory.loadPhoto can load them by key. Photos written
+	 * before that got an id allocated by the datastore.
+	 *
+	 * @methodtype boolean-query
+	 */
+	public boolean isStoredUnderPhotoId() {
+		return idLong != null && idLong == id.asInt();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Long getDatastoreId() {
+		return idLong;
+	}
 
+	/**
+	 * Moves the photo to the key of its PhotoId int; the caller saves it and deletes the entity under the old key.
+	 *
+	 * @methodtype command
+	 */
+	public void storeUnderPhotoId() {
+		idLong = (long) id.asInt();
 		incWriteCount();
 	}
 
@@ -173,6 +208,20 @@ public class Photo extends DataObject {
 		this.images.put(photoSize, image);
 	}
 
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasImages() {
+		return !images.isEmpty();
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void removeImage(PhotoSize photoSize) {
+		this.images.remove(photoSize);
+	}
+
 	/**
 	 * @methodtype get
 	 */
@@ -200,6 +249,7 @@ public class Photo extends DataObject {
 	public void setOwnerId(String newName) {
 		ownerId = newName;
 		incWriteCount();
+		updateIndexes();
 	}
 
 	/**
@@ -316,6 +366,21 @@ public class Photo extends DataObject {
 		incWriteCount();
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public Long getPerceptualHash() {
+		return perceptualHash;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setPerceptualHash(Long newPerceptualHash) {
+		perceptualHash = newPerceptualHash;
+		incWriteCount();
+	}
+
 	/**
 	 * Can this photo satisfy provided photo size?
 	 *
@@ -353,6 +418,7 @@ public class Photo extends DataObject {
 		praiseSum += value;
 		noVotes += 1;
 		incWriteCount();
+		PhotoManager.getInstance().updatePhotoPraise(this);
 	}
 
 	/**
@@ -375,6 +441,7 @@ public class Photo extends DataObject {
 	public void setStatus(PhotoStatus newStatus) {
 		status = newStatus;
 		incWriteCount();
+		updateIndexes();
 	}
 
 	/**
@@ -397,6 +464,16 @@ public class Photo extends DataObject {
 	public void setTags(Tags newTags) {
 		tags = newTags;
 		incWriteCount();
+		updateIndexes();
+	}
+
+	/**
+	 * Keeps the in-memory indexes of the PhotoManager consistent with this photo.
+	 *
+	 * @methodtype command
+	 */
+	protected void updateIndexes() {
+		PhotoManager.getInstance().updatePhotoIndexes(this);
 	}
 
 	/**
@@ -406,6 +483,15 @@ public class Photo extends DataObject {
 		return creationTime;
 	}
 
+	/**
+	 * The scaled images of a photo never change once they are created, so the creation time identifies their content.
+	 *
+	 * @methodtype get
+	 */
+	public String getImageVersion() {
+		return Long.toString(creationTime, 36);
+	}
+
 
 	public String getEnding() {
 		return ending;
@@ -20,6 +20,7 @@
 
 package org.wahlzeit.model;
 
+import org.wahlzeit.services.BatchWriteReport;
 import org.wahlzeit.services.ObjectManager;
 
 import java.util.Arrays;
@@ -111,10 +112,11 @@ public class PhotoCaseManager extends ObjectManager {
 	/**
 	 * @methodtype command
 	 */
-	public void savePhotoCases() {
+	public BatchWriteReport savePhotoCases() {
 		if (openPhotoCases != null && openPhotoCases.size() > 0) {
-			updateObjects(openPhotoCases.values());
+			return updateObjects(openPhotoCases.values());
 		}
+		return new BatchWriteReport();
 	}
 
 	/**
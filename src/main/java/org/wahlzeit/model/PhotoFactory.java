@@ -21,6 +21,8 @@
 package org.wahlzeit.model;
 
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.ObjectManager;
+import org.wahlzeit.services.OfyService;
 import org.wahlzeit.utils.PatternInstance;
 
 import java.util.logging.Logger;
@@ -94,27 +96,31 @@ public class PhotoFactory {
 	}
 
 	/**
-	 * Loads a photo. The Java object is loaded from the Google Datastore, the Images in all sizes are loaded from the
-	 * Google Cloud storage.
+	 * Loads a photo from the Google Datastore by its key, which is derived from the PhotoId. Returns null if there is
+	 * no such photo. Scaled images are loaded separately by the PhotoManager.
 	 */
 	public Photo loadPhoto(PhotoId id) {
-	   /* Photo result =
-                OfyService.ofy().load().type(Photo.class).ancestor(KeyFactory.createKey("Application", "Wahlzeit")).filter(Photo.ID, id).first().now();
-        for (PhotoSize size : PhotoSize.values()) {
-            GcsFilename gcsFilename = new GcsFilename("picturebucket", filename);
-
-
-
-        }*/
-		return null;
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("Datastore: load Photo with ID", id.asString()).toString());
+		return OfyService.ofy().load().type(Photo.class).parent(ObjectManager.applicationRootKey).
+				id((long) id.asInt()).now();
 	}
 
-
 	/**
-	 *
+	 * New filters select photos as configured by PhotoFilter.SELECTION_MODE_PROPERTY, uniformly by default.
 	 */
 	public PhotoFilter createPhotoFilter() {
-		return new PhotoFilter();
+		PhotoFilter result = new PhotoFilter();
+		String selectionMode = System.getProperty(PhotoFilter.SELECTION_MODE_PROPERTY);
+		if (selectionMode != null && !selectionMode.isEmpty()) {
+			try {
+				result.setSelectionMode(PhotoFilter.SelectionMode.valueOf(selectionMode));
+			} catch (IllegalArgumentException ex) {
+				log.warning(LogBuilder.createSystemMessage().
+						addParameter("unknown photo selection mode", selectionMode).toString());
+			}
+		}
+		return result;
 	}
 
 	/**
@@ -20,13 +20,12 @@
 
 package org.wahlzeit.model;
 
-import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.utils.CompressedBitmap;
 import org.wahlzeit.utils.StringUtil;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.logging.Logger;
@@ -45,18 +44,66 @@ public class PhotoFilter implements Serializable {
 	public static final String USER_NAME = "userName";
 	public static final String TAGS = "tags";
 
+	/**
+	 * How getRandomDisplayablePhotoId picks among the displayable photos.
+	 */
+	public enum SelectionMode {
+		/**
+		 * Every displayable photo is equally likely
+		 */
+		UNIFORM,
+
+		/**
+		 * Photos are picked with a probability proportional to their praise
+		 */
+		PRAISE_WEIGHTED
+	}
+
+	/**
+	 * System property for the selection mode of new filters, e.g. set in appengine-web.xml; UNIFORM or
+	 * PRAISE_WEIGHTED
+	 */
+	public static final String SELECTION_MODE_PROPERTY = "wahlzeit.photoSelection";
+
+	/**
+	 * Number of draws from the PhotoPraiseIndex before the remaining photos are drawn from exactly; draws are
+	 * rejected if the photo does not match the filter or was processed or skipped already
+	 */
+	protected static final int MAX_PRAISE_WEIGHTED_DRAWS = 8;
+
+	/**
+	 * Filters matching less than this share of all displayable photos skip the draws from the PhotoPraiseIndex, most
+	 * of which they would reject
+	 */
+	protected static final int MIN_PRAISE_WEIGHTED_DRAW_SHARE = 4;
+
+	/**
+	 * Number of uniform draws from the candidates before the processed and skipped photos are removed exactly
+	 */
+	protected static final int MAX_UNIFORM_DRAWS = 16;
+
 	/**
 	 *
 	 */
 	protected String userName = "";
 	protected Tags tags = Tags.EMPTY_TAGS;
+	protected SelectionMode selectionMode = SelectionMode.UNIFORM;
 
 	/**
-	 *
+	 * PhotoId ints of the photos matching the filter, shared with all sessions using the same filter conditions, see
+	 * PhotoManager.getCandidatePhotoIds(); never modified in place. Processed and skipped photos are rejected when
+	 * sampling. Once few candidates are left, they are replaced by an own copy of the remaining ones. Not part of the
+	 * session state.
 	 */
-	protected List<PhotoId> displayablePhotoIds;
-	protected List<PhotoId> processedPhotoIds = new LinkedList<PhotoId>();
-	protected List<PhotoId> skippedPhotoIds = new LinkedList<PhotoId>();
+	protected transient CompressedBitmap displayablePhotoIds;
+	protected transient long displayablePhotoIdsVersion = -1;
+	protected transient boolean hasOwnDisplayablePhotoIds = false;
+
+	/**
+	 * PhotoId ints of processed and skipped photos; kept as compressed bitmaps as they live in the session
+	 */
+	protected CompressedBitmap processedPhotoIds = new CompressedBitmap();
+	protected CompressedBitmap skippedPhotoIds = new CompressedBitmap();
 
 	/**
 	 *
@@ -83,7 +130,6 @@ public class PhotoFilter implements Serializable {
 	public void clear() {
 		setUserName("");
 		setTags(Tags.EMPTY_TAGS);
-		displayablePhotoIds.clear();
 		processedPhotoIds.clear();
 	}
 
@@ -110,6 +156,23 @@ public class PhotoFilter implements Serializable {
 		resetDisplayablePhotoIds();
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public SelectionMode getSelectionMode() {
+		return selectionMode;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setSelectionMode(SelectionMode newSelectionMode) {
+		if (newSelectionMode == null) {
+			throw new IllegalArgumentException("selection mode should not be null");
+		}
+		selectionMode = newSelectionMode;
+	}
+
 	/**
 	 *
 	 */
@@ -137,50 +200,126 @@ public class PhotoFilter implements Serializable {
 	}
 
 	/**
+	 * Looks up the candidates of the filter if the photo indexes changed since they were fetched; otherwise this is a
+	 * constant-time check. The candidates are shared, so a deserialized filter does not rebuild them.
+	 *
 	 * @methodtype command
 	 */
 	public void generateDisplayablePhotoIds() {
-		displayablePhotoIds = getFilteredPhotoIds();
+		long indexVersion = PhotoManager.getInstance().getPhotoIndexVersion();
+		if (displayablePhotoIds == null || displayablePhotoIdsVersion != indexVersion) {
+			displayablePhotoIds = PhotoManager.getInstance().getCandidatePhotoIds(getFilterConditions());
+			displayablePhotoIdsVersion = indexVersion;
+			hasOwnDisplayablePhotoIds = false;
+		}
 	}
 
 	/**
 	 * Get a random photo that has not been rated. If possible avoid skipped photos.
 	 */
 	public PhotoId getRandomDisplayablePhotoId() {
-		if (!displayablePhotoIds.isEmpty()) {
-			int size = displayablePhotoIds.size();
-			int index = ((randomNumber.nextInt() % size) + size) / 2;
-			return displayablePhotoIds.get(index);
+		if (displayablePhotoIds != null && !displayablePhotoIds.isEmpty()) {
+			if (selectionMode == SelectionMode.PRAISE_WEIGHTED) {
+				PhotoId result = getPraiseWeightedDisplayablePhotoId();
+				if (!result.isNullId()) {
+					return result;
+				}
+			}
+			PhotoId result = getUniformDisplayablePhotoId();
+			if (!result.isNullId()) {
+				return result;
+			}
+		}
+
+		if (!skippedPhotoIds.isEmpty()) {
+			return PhotoId.getIdFromInt(skippedPhotoIds.select(randomNumber.nextInt(skippedPhotoIds.size())));
 		} else {
 			return PhotoId.NULL_ID;
 		}
 	}
 
+	/**
+	 * Draws uniformly from the shared candidates and rejects processed and skipped photos. Once most candidates were
+	 * processed, draws keep failing; then the remaining photos are computed exactly, which is linear in the number of
+	 * candidates, and kept until the photo indexes change. Returns NULL_ID if no candidate is left.
+	 */
+	protected PhotoId getUniformDisplayablePhotoId() {
+		int noCandidates = displayablePhotoIds.size();
+		for (int i = 0; i < MAX_UNIFORM_DRAWS; i++) {
+			int photoId = displayablePhotoIds.select(randomNumber.nextInt(noCandidates));
+			if (isDisplayablePhotoId(photoId)) {
+				return PhotoId.getIdFromInt(photoId);
+			}
+		}
+
+		CompressedBitmap remainingPhotoIds = CompressedBitmap.andNot(displayablePhotoIds, processedPhotoIds);
+		remainingPhotoIds = CompressedBitmap.andNot(remainingPhotoIds, skippedPhotoIds);
+		displayablePhotoIds = remainingPhotoIds;
+		hasOwnDisplayablePhotoIds = true;
+		if (remainingPhotoIds.isEmpty()) {
+			return PhotoId.NULL_ID;
+		}
+		return PhotoId.getIdFromInt(remainingPhotoIds.select(randomNumber.nextInt(remainingPhotoIds.size())));
+	}
+
+	/**
+	 * Draws from the global PhotoPraiseIndex until a displayable photo of this filter comes up; each draw is O(log n).
+	 * Narrow filters, and filters whose draws keep being rejected, draw from their remaining photos instead, which is
+	 * linear in their number. Returns NULL_ID if none of them has praise.
+	 */
+	protected PhotoId getPraiseWeightedDisplayablePhotoId() {
+		PhotoManager photoManager = PhotoManager.getInstance();
+		PhotoPraiseIndex photoPraiseIndex = photoManager.getPhotoPraiseIndex();
+		int noPhotos = photoManager.getCandidatePhotoIds(Collections.<String>emptyList()).size();
+		if (displayablePhotoIds.size() * MIN_PRAISE_WEIGHTED_DRAW_SHARE >= noPhotos) {
+			for (int i = 0; i < MAX_PRAISE_WEIGHTED_DRAWS; i++) {
+				int photoId = photoPraiseIndex.getRandomPhotoId(randomNumber);
+				if (displayablePhotoIds.contains(photoId) && isDisplayablePhotoId(photoId)) {
+					return PhotoId.getIdFromInt(photoId);
+				}
+			}
+		}
+
+		CompressedBitmap remainingPhotoIds = CompressedBitmap.andNot(displayablePhotoIds, processedPhotoIds);
+		remainingPhotoIds = CompressedBitmap.andNot(remainingPhotoIds, skippedPhotoIds);
+		return PhotoId.getIdFromInt(photoPraiseIndex.getRandomPhotoId(randomNumber, remainingPhotoIds.toArray()));
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isDisplayablePhotoId(int photoId) {
+		return !processedPhotoIds.contains(photoId) && !skippedPhotoIds.contains(photoId);
+	}
+
 	/**
 	 *
 	 */
-	public List<PhotoId> getDisplayablePhotoIds() {
+	public CompressedBitmap getDisplayablePhotoIds() {
 		return displayablePhotoIds;
 	}
 
 	/**
 	 *
 	 */
-	public void setDisplayablePhotoIds(List<PhotoId> newPhotoIds) {
+	public void setDisplayablePhotoIds(CompressedBitmap newPhotoIds) {
 		displayablePhotoIds = newPhotoIds;
+		hasOwnDisplayablePhotoIds = false;
 	}
 
 	/**
 	 *
 	 */
 	public void resetDisplayablePhotoIds() {
-		displayablePhotoIds = new ArrayList<PhotoId>();
+		displayablePhotoIds = new CompressedBitmap();
+		displayablePhotoIdsVersion = -1;
+		hasOwnDisplayablePhotoIds = true;
 	}
 
 	/**
 	 *
 	 */
-	public List<PhotoId> getProcessedPhotoIds() {
+	public CompressedBitmap getProcessedPhotoIds() {
 		return processedPhotoIds;
 	}
 
@@ -188,11 +327,7 @@ public class PhotoFilter implements Serializable {
 	 *
 	 */
 	public boolean isProcessedPhotoId(PhotoId photoId) {
-		log.info("photoId: " + photoId.asString());
-		for (PhotoId id : processedPhotoIds) {
-			log.info("Processed id: " + id.asString());
-		}
-		return processedPhotoIds.contains(photoId);
+		return processedPhotoIds.contains(photoId.asInt());
 	}
 
 	/**
@@ -200,10 +335,10 @@ public class PhotoFilter implements Serializable {
 	 */
 	public void addProcessedPhoto(Photo photo) {
 		PhotoId photoId = photo.getId();
-		processedPhotoIds.add(photoId);
-		skippedPhotoIds.remove(photoId);
-		if (displayablePhotoIds != null) {
-			displayablePhotoIds.remove(photoId);
+		processedPhotoIds.add(photoId.asInt());
+		skippedPhotoIds.remove(photoId.asInt());
+		if (hasOwnDisplayablePhotoIds) {
+			displayablePhotoIds.remove(photoId.asInt());
 		}
 	}
 
@@ -211,14 +346,14 @@ public class PhotoFilter implements Serializable {
 	/**
 	 * @methodtype get
 	 */
-	public List<PhotoId> getSkippedPhotoIds() {
+	public CompressedBitmap getSkippedPhotoIds() {
 		return skippedPhotoIds;
 	}
 
 	/**
 	 * @methodtype set
 	 */
-	public void setSkippedPhotoIds(List<PhotoId> skippedPhotoIds) {
+	public void setSkippedPhotoIds(CompressedBitmap skippedPhotoIds) {
 		this.skippedPhotoIds = skippedPhotoIds;
 	}
 
@@ -226,54 +361,9 @@ public class PhotoFilter implements Serializable {
 	 * @methodtype set
 	 */
 	public void addSkippedPhotoId(PhotoId skippedPhotoId) {
-		if (!skippedPhotoIds.contains(skippedPhotoId)) {
-			skippedPhotoIds.add(skippedPhotoId);
-		}
-	}
-
-	/**
-	 *
-	 */
-	protected List<PhotoId> getFilteredPhotoIds() {
-		// get all tags that match the filter conditions
-		List<PhotoId> result = new LinkedList<PhotoId>();
-		int noFilterConditions = getFilterConditions().size();
-		log.config(LogBuilder.createSystemMessage().
-				addParameter("Number of filter conditions", String.valueOf(noFilterConditions)).toString());
-
-		Collection<PhotoId> candidates;
-		if (noFilterConditions == 0) {
-			candidates = PhotoManager.getInstance().getPhotoCache().keySet();
-		} else {
-			List<Tag> tags = new LinkedList<Tag>();
-			candidates = new LinkedList<PhotoId>();
-			for (String condition : getFilterConditions()) {
-				PhotoManager.getInstance().addTagsThatMatchCondition(tags, condition);
-			}
-			// get the list of all photo ids that correspond to the tags
-			for (Tag tag : tags) {
-				candidates.add(PhotoId.getIdFromString(tag.getPhotoId()));
-			}
+		skippedPhotoIds.add(skippedPhotoId.asInt());
+		if (hasOwnDisplayablePhotoIds) {
+			displayablePhotoIds.remove(skippedPhotoId.asInt());
 		}
-
-		int newPhotos = 0;
-		for (PhotoId candidateId : candidates) {
-			Photo photoCandidate = PhotoManager.getInstance().getPhoto(candidateId);
-			if (!processedPhotoIds.contains(candidateId) && !skippedPhotoIds.contains(candidateId) &&
-					photoCandidate.isVisible()) {
-				result.add(candidateId);
-				++newPhotos;
-			}
-		}
-		int skippedPhotos = skippedPhotoIds.size();
-		if (newPhotos == 0 && skippedPhotos > 0) {
-			result.addAll(skippedPhotoIds);
-			newPhotos = skippedPhotos;
-		}
-
-		log.config(LogBuilder.createSystemMessage().addParameter("Number of photos to show", newPhotos)
-				.toString());
-
-		return result;
 	}
 }
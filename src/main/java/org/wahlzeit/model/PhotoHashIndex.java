@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.BKTree;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the perceptual hashes of all displayable photos in a BKTree, so that photos looking like an upload can be found
+ * without comparing its hash to every photo. Photos without a hash, e.g. those uploaded before hashes were computed,
+ * are not indexed.
+ */
+public class PhotoHashIndex {
+
+	/**
+	 *
+	 */
+	protected final BKTree hashTree = new BKTree();
+
+	/**
+	 * Hash each indexed photo is stored under in the tree
+	 */
+	protected final Map<Integer, Long> hashesByPhotoId = new HashMap<Integer, Long>();
+
+	/**
+	 * (Re-)indexes the photo with its current hash and status. Photos that are not displayable are removed.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized void updatePhoto(Photo photo) {
+		int photoId = photo.getId().asInt();
+		Long hash = photo.isVisible() ? photo.getPerceptualHash() : null;
+		Long indexedHash = hashesByPhotoId.get(photoId);
+		if (hash == null ? indexedHash == null : hash.equals(indexedHash)) {
+			return;
+		}
+
+		if (indexedHash != null) {
+			hashTree.remove(indexedHash, photoId);
+			hashesByPhotoId.remove(photoId);
+		}
+		if (hash != null) {
+			hashTree.add(hash, photoId);
+			hashesByPhotoId.put(photoId, hash);
+		}
+	}
+
+	/**
+	 * Returns the PhotoId int of the displayable photo whose hash is closest to the given one, or PhotoId.NULL_ID's
+	 * int if no hash is within maxDistance bits.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized int getClosestPhotoId(long hash, int maxDistance) {
+		List<BKTree.Match> matches = hashTree.findWithin(hash, maxDistance);
+		return matches.isEmpty() ? PhotoId.NULL_ID.asInt() : matches.get(0).getValue();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int size() {
+		return hashTree.size();
+	}
+
+}
@@ -21,23 +21,50 @@
 package org.wahlzeit.model;
 
 import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
 import com.googlecode.objectify.Work;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import org.wahlzeit.model.persistence.CachedImage;
+import org.wahlzeit.model.persistence.ImageCache;
 import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.services.BatchWriteReport;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.ObjectManager;
+import org.wahlzeit.services.OfyService;
 import org.wahlzeit.services.Persistent;
+import org.wahlzeit.utils.CompressedBitmap;
 
 import java.io.IOException;
-import java.io.Serializable;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 /**
@@ -53,175 +80,1167 @@ public class PhotoManager extends ObjectManager {
 	private static final Logger log = Logger.getLogger(PhotoManager.class.getName());
 
 	/**
-	 * In-memory cache for photos
+	 * System property for the maximum number of cached photos, e.g. set in appengine-web.xml
 	 */
-	protected Map<PhotoId, Photo> photoCache = new HashMap<PhotoId, Photo>();
+	public static final String MAX_CACHE_SIZE_PROPERTY = "wahlzeit.photoCache.maxSize";
+	public static final int DEFAULT_MAX_CACHE_SIZE = 10000;
 
 	/**
+	 * System property for the number of most praised photos whose images are loaded in the background at startup;
+	 * 0 turns the warm-up off
+	 */
+	public static final String IMAGE_WARM_UP_PROPERTY = "wahlzeit.imageWarmUp.noPhotos";
+
+	/**
+	 * Sizes loaded by the warm-up: thumbnails for lists and the default page size
+	 */
+	protected static final PhotoSize[] WARM_UP_PHOTO_SIZES = {PhotoSize.THUMB, PhotoSize.MEDIUM};
+
+	/**
+	 * Uploads whose perceptual hash differs from that of a displayable photo in at most this many of its 64 bits are
+	 * near-duplicates of it
+	 */
+	public static final int MAX_NEAR_DUPLICATE_DISTANCE = 4;
+
+	/**
+	 * Number of filters whose candidate photo ids are kept, see getCandidatePhotoIds()
+	 */
+	protected static final int MAX_CANDIDATE_SETS = 64;
+
+	/**
+	 * Sprite sheets are cached in the ImageCache under this prefix and their version, next to the photos' images
+	 */
+	protected static final String THUMB_SPRITE_ID_PREFIX = "sprite-";
+
+	/**
+	 * Number of issued sprite sheets kept in memory; the others are looked up in the datastore
+	 */
+	protected static final int MAX_ISSUED_THUMB_SPRITE_SHEETS = 1024;
+
+	/**
+	 * Issued sprite sheets not given to a page for this long are removed, see removeOldIssuedThumbSpriteSheets()
+	 */
+	public static final long MAX_ISSUED_THUMB_SPRITE_SHEET_AGE_IN_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * Old issued sprite sheets are read and deleted in pages of this size
+	 */
+	protected static final int ISSUED_THUMB_SPRITE_SHEET_PAGE_SIZE = 500;
+
+	/**
+	 * In-memory cache for photos; reads are lock-free. It holds at most maxCacheSize photos that are not dirty,
+	 * evicted in approximate LRU order (CLOCK). The indexes keep covering evicted photos, which are loaded again
+	 * on demand.
+	 */
+	protected final ConcurrentMap<PhotoId, Photo> photoCache = new ConcurrentHashMap<PhotoId, Photo>();
+
+	/**
+	 * Eviction state: the clock queue of cached ids and the ids used since the clock last passed them
+	 */
+	protected final Queue<PhotoId> evictionQueue = new ConcurrentLinkedQueue<PhotoId>();
+	protected final Set<PhotoId> recentlyUsedPhotoIds =
+			Collections.newSetFromMap(new ConcurrentHashMap<PhotoId, Boolean>());
+	protected final Lock evictionLock = new ReentrantLock();
+	protected volatile int maxCacheSize = Integer.getInteger(MAX_CACHE_SIZE_PROPERTY, DEFAULT_MAX_CACHE_SIZE);
+
+	/**
+	 * Cache metrics
+	 */
+	protected final AtomicLong noCacheHits = new AtomicLong();
+	protected final AtomicLong noCacheMisses = new AtomicLong();
+	protected final AtomicLong noEvictions = new AtomicLong();
+	protected final AtomicLong noReadmissions = new AtomicLong();
+
+	/**
+	 * Loads in progress, so that concurrent misses on the same id trigger only one PhotoFactory.loadPhoto
+	 */
+	protected final ConcurrentMap<PhotoId, FutureTask<Photo>> pendingLoads =
+			new ConcurrentHashMap<PhotoId, FutureTask<Photo>>();
+
+	/**
+	 * Sizes being scaled on first request, so that concurrent requests for the same size trigger only one scaling
+	 */
+	protected final ConcurrentMap<String, FutureTask<Image>> pendingScalings =
+			new ConcurrentHashMap<String, FutureTask<Image>>();
+
+	/**
+	 * Cache modifications share this lock, snapshots take it exclusively; see getPhotoSnapshot()
+	 */
+	protected final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Tags of each cached photo as they are currently stored in the datastore; rebuilt when a photo is loaded again
+	 */
+	protected Map<PhotoId, Set<String>> persistedTags = new ConcurrentHashMap<PhotoId, Set<String>>();
+
+	/**
+	 *
+	 */
+	protected PhotoTagCollector photoTagCollector = null;
+
+	/**
+	 * In-memory inverted index of the tags of all displayable photos
+	 */
+	protected PhotoTagIndex photoTagIndex = null;
+
+	/**
+	 * PhotoId ints of all displayable photos, kept in sync with Photo.setStatus
+	 */
+	protected final CompressedBitmap visiblePhotoIds = new CompressedBitmap();
+	protected long visiblePhotoIdsVersion = 0;
+
+	/**
+	 * Candidate photo ids per filter conditions, shared by all sessions and kept in LRU order; an index change costs
+	 * one rebuild per filter instead of one per session
+	 */
+	protected final Map<List<String>, CandidatePhotoIds> candidatePhotoIds =
+			new LinkedHashMap<List<String>, CandidatePhotoIds>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<List<String>, CandidatePhotoIds> eldest) {
+					return size() > MAX_CANDIDATE_SETS;
+				}
+			};
+
+	/**
+	 * Writes deferred images off the request path, see createDeferredImage(); set up by ModelMain
+	 */
+	protected volatile Executor deferredImageWriter = null;
+
+	/**
+	 * Sprite sheets issued to pages by their ids, see issueThumbSpriteSheets(); kept in LRU order
+	 */
+	protected final Map<String, IssuedThumbSpriteSheet> issuedThumbSpriteSheets =
+			new LinkedHashMap<String, IssuedThumbSpriteSheet>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, IssuedThumbSpriteSheet> eldest) {
+					return size() > MAX_ISSUED_THUMB_SPRITE_SHEETS;
+				}
+			};
+
+	/**
+	 * Praise of all displayable photos, for praise-weighted selection
+	 */
+	protected PhotoPraiseIndex photoPraiseIndex = new PhotoPraiseIndex();
+
+	/**
+	 * Perceptual hashes of all displayable photos, to find near-duplicates of uploads
+	 */
+	protected PhotoHashIndex photoHashIndex = new PhotoHashIndex();
+
+	/**
+	 *
+	 */
+	public PhotoManager() {
+		photoTagCollector = PhotoFactory.getInstance().createPhotoTagCollector();
+		photoTagIndex = new PhotoTagIndex(photoTagCollector);
+	}
+
+	/**
+	 *
+	 */
+	public static final PhotoManager getInstance() {
+		return instance;
+	}
+
+	/**
+	 *
+	 */
+	public final boolean hasPhoto(String id) {
+		return hasPhoto(PhotoId.getIdFromString(id));
+	}
+
+	/**
+	 *
+	 */
+	public final boolean hasPhoto(PhotoId id) {
+		return getPhoto(id) != null;
+	}
+
+	/**
+	 *
+	 */
+	public final Photo getPhoto(PhotoId id) {
+		return instance.getPhotoFromId(id);
+	}
+
+	/**
+	 *
+	 */
+	public Photo getPhotoFromId(PhotoId id) {
+		if (id == null) {
+			return null;
+		}
+
+		Photo result = doGetPhotoFromId(id);
+
+		if (result != null) {
+			noCacheHits.incrementAndGet();
+			if (!recentlyUsedPhotoIds.contains(id)) {
+				recentlyUsedPhotoIds.add(id);
+			}
+		} else if (!id.isNullId()) {
+			noCacheMisses.incrementAndGet();
+			result = loadPhotoOnce(id);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Loads the photo with the PhotoFactory and adds it to the cache. If several threads miss on the same id, only the
+	 * first one loads; the others wait for its result.
+	 *
+	 * @methodtype command
+	 */
+	protected Photo loadPhotoOnce(final PhotoId id) {
+		FutureTask<Photo> task = new FutureTask<Photo>(new Callable<Photo>() {
+			@Override
+			public Photo call() {
+				Photo cached = doGetPhotoFromId(id);
+				if (cached != null) {
+					return cached; // added while this task was being set up
+				}
+				Photo loaded = PhotoFactory.getInstance().loadPhoto(id);
+				if (loaded == null) {
+					return null;
+				}
+				loaded.resetWriteCount(); // same state as in the datastore
+				return doAddPhotoIfAbsent(loaded);
+			}
+		});
+
+		FutureTask<Photo> pendingLoad = pendingLoads.putIfAbsent(id, task);
+		if (pendingLoad == null) {
+			pendingLoad = task;
+			try {
+				task.run();
+			} finally {
+				pendingLoads.remove(id, task);
+			}
+		}
+
+		try {
+			return pendingLoad.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException ex) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("could not load photo " + id.asString(), ex.getCause()).toString());
+			return null;
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 * @methodproperties primitive
+	 */
+	protected Photo doGetPhotoFromId(PhotoId id) {
+		return photoCache.get(id);
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperties primitive
+	 */
+	protected void doAddPhoto(Photo myPhoto) {
+		Lock lock = snapshotLock.readLock();
+		lock.lock();
+		try {
+			if (photoCache.put(myPhoto.getId(), myPhoto) == null) {
+				evictionQueue.add(myPhoto.getId());
+			}
+			updateVisiblePhotoIds(myPhoto);
+			photoTagIndex.updatePhoto(myPhoto);
+			photoPraiseIndex.updatePhoto(myPhoto);
+			photoHashIndex.updatePhoto(myPhoto);
+		} finally {
+			lock.unlock();
+		}
+		evictIfFull();
+	}
+
+	/**
+	 * Adds the photo as loaded from the datastore unless a photo with the same id is cached already; returns the
+	 * cached photo.
+	 *
+	 * @methodtype command
+	 * @methodproperties primitive
+	 */
+	protected Photo doAddPhotoIfAbsent(Photo myPhoto) {
+		Lock lock = snapshotLock.readLock();
+		lock.lock();
+		try {
+			Photo cached = photoCache.putIfAbsent(myPhoto.getId(), myPhoto);
+			if (cached != null) {
+				return cached;
+			}
+			evictionQueue.add(myPhoto.getId());
+			rebuildPersistedTags(myPhoto);
+			updateVisiblePhotoIds(myPhoto);
+			photoTagIndex.updatePhoto(myPhoto);
+			photoPraiseIndex.updatePhoto(myPhoto);
+			photoHashIndex.updatePhoto(myPhoto);
+		} finally {
+			lock.unlock();
+		}
+		evictIfFull();
+		return myPhoto;
+	}
+
+	/**
+	 * Takes the tags of a photo as loaded from the datastore as its persisted tags, so that the tag difference is
+	 * right after the photo was evicted and loaded again, without reading its Tag entities; see updateTags().
+	 *
+	 * @methodtype command
+	 */
+	protected void rebuildPersistedTags(Photo photo) {
+		Set<String> tags = new HashSet<String>();
+		photoTagCollector.collect(tags, photo);
+		persistedTags.put(photo.getId(), tags);
+	}
+
+	/**
+	 * Evicts photos until the cache holds at most maxCacheSize photos. Photos used since the clock last passed them
+	 * get a second chance; dirty photos are never evicted, as their changes would be lost, and are retried once they
+	 * have been written. Only one thread evicts at a time, the others do not wait.
+	 *
+	 * @methodtype command
+	 */
+	protected void evictIfFull() {
+		if (photoCache.size() <= maxCacheSize || !evictionLock.tryLock()) {
+			return;
+		}
+
+		try {
+			int noCandidates = 2 * evictionQueue.size(); // every id at most twice per call
+			while (photoCache.size() > maxCacheSize && noCandidates-- > 0) {
+				PhotoId candidateId = evictionQueue.poll();
+				if (candidateId == null) {
+					break;
+				}
+				Photo candidate = photoCache.get(candidateId);
+				if (candidate == null) {
+					continue;
+				}
+				if (recentlyUsedPhotoIds.remove(candidateId) || candidate.isDirty()) {
+					evictionQueue.add(candidateId);
+				} else {
+					doEvictPhoto(candidate);
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the photo from the cache but not from the indexes.
+	 *
+	 * @methodtype command
+	 * @methodproperties primitive
+	 */
+	protected void doEvictPhoto(Photo photo) {
+		Lock lock = snapshotLock.readLock();
+		lock.lock();
+		try {
+			if (photoCache.remove(photo.getId(), photo)) {
+				persistedTags.remove(photo.getId());
+				noEvictions.incrementAndGet();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Makes the photo the cached instance of its id again if it was evicted while a caller still held it, so that its
+	 * changes are neither lost nor hidden by a clean copy loaded in the meantime. A cached copy with unsaved changes of
+	 * its own is kept.
+	 *
+	 * @methodtype command
+	 */
+	public void readmitPhoto(Photo photo) {
+		PhotoId id = photo.getId();
+		Lock lock = snapshotLock.readLock();
+		lock.lock();
+		try {
+			Photo cached = photoCache.get(id);
+			if (cached == photo || (cached != null && cached.isDirty())) {
+				return;
+			}
+			if (cached == null) {
+				if (photoCache.putIfAbsent(id, photo) != null) {
+					return;
+				}
+				evictionQueue.add(id);
+			} else if (!photoCache.replace(id, cached, photo)) {
+				return;
+			}
+			noReadmissions.incrementAndGet();
+			updateVisiblePhotoIds(photo);
+			photoTagIndex.updatePhoto(photo);
+			photoPraiseIndex.updatePhoto(photo);
+			photoHashIndex.updatePhoto(photo);
+		} finally {
+			lock.unlock();
+		}
+		evictIfFull();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getMaxCacheSize() {
+		return maxCacheSize;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setMaxCacheSize(int newMaxCacheSize) {
+		if (newMaxCacheSize <= 0) {
+			throw new IllegalArgumentException("maximum cache size must be positive");
+		}
+		maxCacheSize = newMaxCacheSize;
+		evictIfFull();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getCacheSize() {
+		return photoCache.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoCacheHits() {
+		return noCacheHits.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoCacheMisses() {
+		return noCacheMisses.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoEvictions() {
+		return noEvictions.get();
+	}
+
+	/**
+	 * Number of evicted photos that were put back into the cache because they were saved, see readmitPhoto().
+	 *
+	 * @methodtype get
+	 */
+	public long getNoReadmissions() {
+		return noReadmissions.get();
+	}
+
+	/**
+	 * Returns a point-in-time copy of all cached photos, for agents and bulk operations that iterate the cache.
+	 * Cache modifications hold the shared side of snapshotLock, so taking the exclusive side briefly blocks writers
+	 * while readers stay lock-free.
+	 *
+	 * @methodtype get
+	 */
+	public List<Photo> getPhotoSnapshot() {
+		Lock lock = snapshotLock.writeLock();
+		lock.lock();
+		try {
+			return new ArrayList<Photo>(photoCache.values());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Updates the in-memory indexes after the owner, tags or status of a photo changed. Photos that are not managed
+	 * (yet) are ignored; they are indexed when they are added.
+	 */
+	public void updatePhotoIndexes(Photo photo) {
+		if (photo != null && doGetPhotoFromId(photo.getId()) == photo) {
+			updateVisiblePhotoIds(photo);
+			photoTagIndex.updatePhoto(photo);
+			photoPraiseIndex.updatePhoto(photo);
+			photoHashIndex.updatePhoto(photo);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void updateVisiblePhotoIds(Photo photo) {
+		int photoId = photo.getId().asInt();
+		synchronized (visiblePhotoIds) {
+			boolean isChanged;
+			if (photo.isVisible()) {
+				isChanged = visiblePhotoIds.add(photoId);
+			} else {
+				isChanged = visiblePhotoIds.remove(photoId);
+			}
+			if (isChanged) {
+				visiblePhotoIdsVersion++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the ids of all displayable photos without looking at Photo objects; the result is a copy.
+	 *
+	 * @methodtype get
+	 */
+	public CompressedBitmap getVisiblePhotoIds() {
+		synchronized (visiblePhotoIds) {
+			return visiblePhotoIds.copy();
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isVisiblePhoto(PhotoId photoId) {
+		synchronized (visiblePhotoIds) {
+			return visiblePhotoIds.contains(photoId.asInt());
+		}
+	}
+
+	/**
+	 * Changes whenever the visible photos or the PhotoTagIndex change; lets callers detect outdated derived results.
+	 *
+	 * @methodtype get
+	 */
+	public long getPhotoIndexVersion() {
+		synchronized (visiblePhotoIds) {
+			return visiblePhotoIdsVersion + photoTagIndex.getVersion();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Updates the praise-weighted selection after a photo was praised; O(log n).
+	 */
+	public void updatePhotoPraise(Photo photo) {
+		if (photo != null && doGetPhotoFromId(photo.getId()) == photo) {
+			photoPraiseIndex.updatePhoto(photo);
+		}
+	}
+
+	/**
+	 * Returns the ids of the displayable photos that match any of the filter conditions, or of all displayable photos
+	 * if there are none. The result is shared between callers and must not be modified; it is rebuilt only when the
+	 * photo indexes changed.
+	 *
+	 * @methodtype get
+	 */
+	public CompressedBitmap getCandidatePhotoIds(List<String> filterConditions) {
+		long indexVersion = getPhotoIndexVersion();
+		synchronized (candidatePhotoIds) {
+			CandidatePhotoIds candidates = candidatePhotoIds.get(filterConditions);
+			if (candidates != null && candidates.version == indexVersion) {
+				return candidates.photoIds;
+			}
+		}
+
+		CompressedBitmap photoIds;
+		if (filterConditions.isEmpty()) {
+			photoIds = getVisiblePhotoIds();
+		} else {
+			// the index only holds displayable photos
+			photoIds = photoTagIndex.getPhotoIdsMatchingAny(filterConditions);
+		}
+
+		synchronized (candidatePhotoIds) {
+			CandidatePhotoIds candidates = candidatePhotoIds.get(filterConditions);
+			if (candidates == null || candidates.version < indexVersion) {
+				CandidatePhotoIds newCandidates = new CandidatePhotoIds(indexVersion, photoIds);
+				candidatePhotoIds.put(new ArrayList<String>(filterConditions), newCandidates);
+			}
+		}
+
+		log.config(LogBuilder.createSystemMessage().addParameter("Filter conditions", filterConditions)
+				.addParameter("Number of candidates", photoIds.size()).toString());
+
+		return photoIds;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoTagIndex getPhotoTagIndex() {
+		return photoTagIndex;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoPraiseIndex getPhotoPraiseIndex() {
+		return photoPraiseIndex;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoHashIndex getPhotoHashIndex() {
+		return photoHashIndex;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public final Photo getPhoto(String id) {
+		return getPhoto(PhotoId.getIdFromString(id));
+	}
+
+	/**
+	 * @methodtype init Loads all Photos from the Datastore and holds them in the cache
+	 */
+	public void init() {
+		loadPhotos();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Load all persisted photos. Executed when Wahlzeit is restarted. Photos are streamed from the datastore, so only
+	 * the indexes and at most maxCacheSize photos stay in memory. Photos that are not stored under their PhotoId int
+	 * yet are moved there, so that later cache misses can load them by key. Scaled images are not loaded here but on
+	 * first request, see getPhotoImage().
+	 */
+	public void loadPhotos() {
+		long startTime = System.currentTimeMillis();
+
+		ObjectifyService.run(new VoidWork() {
+			@Override
+			public void vrun() {
+				List<Photo> photosToMove = new ArrayList<Photo>();
+				List<Long> oldDatastoreIds = new ArrayList<Long>();
+
+				for (Photo photo : OfyService.ofy().load().type(Photo.class).ancestor(applicationRootKey)) {
+					if (doHasPhoto(photo.getId())) {
+						log.config(LogBuilder.createSystemMessage().
+								addParameter("Already loaded Photo", photo.getIdAsString()).toString());
+						continue;
+					}
+
+					log.config(LogBuilder.createSystemMessage().
+							addParameter("Load Photo with ID", photo.getIdAsString()).toString());
+					photo.resetWriteCount(); // same state as in the datastore
+					if (!photo.isStoredUnderPhotoId()) {
+						oldDatastoreIds.add(photo.getDatastoreId());
+						photo.storeUnderPhotoId();
+						photosToMove.add(photo);
+					}
+					doAddPhotoIfAbsent(photo);
+				}
+
+				if (!photosToMove.isEmpty()) {
+					movePhotos(photosToMove, oldDatastoreIds);
+				}
+			}
+		});
+
+		log.info(LogBuilder.createSystemMessage().addMessage("All photos loaded.").
+				addParameter("cached photos", getCacheSize()).
+				addParameter("visible photos", getVisiblePhotoIds().size()).
+				addParameter("duration in ms", System.currentTimeMillis() - startTime).toString());
+	}
+
+	/**
+	 * Writes the photos under their new keys first and deletes the old entities afterwards, so that no photo is lost
+	 * if writing fails. Images and tags are keyed by PhotoId and stay as they are.
+	 *
+	 * @methodtype command
+	 */
+	protected void movePhotos(List<Photo> photos, List<Long> oldDatastoreIds) {
+		int batchSize = getWriteBatchSize();
+		for (int i = 0; i < photos.size(); i += batchSize) {
+			int end = Math.min(i + batchSize, photos.size());
+			OfyService.ofy().save().entities(photos.subList(i, end)).now();
+			OfyService.ofy().delete().type(Photo.class).parent(applicationRootKey).
+					ids(oldDatastoreIds.subList(i, end)).now();
+			for (Photo photo : photos.subList(i, end)) {
+				photo.resetWriteCount();
+			}
+		}
+
+		log.info(LogBuilder.createSystemMessage().
+				addAction("moved photos to PhotoId keys").
+				addParameter("photos", photos.size()).toString());
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 * @methodproperty primitive
+	 */
+	protected boolean doHasPhoto(PhotoId id) {
+		return photoCache.containsKey(id);
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the scaled image of the photo, or null if the image does not exist; the caller must release it. Images
+	 * that were not persisted yet are taken from the photo; all others are served off the heap from the ImageCache and
+	 * read from the ImageStorage on a miss.
+	 */
+	public CachedImage getPhotoImage(PhotoId id, PhotoSize photoSize) {
+		Photo photo = photoCache.get(id);
+		Image image = photo == null ? null : photo.getImage(photoSize);
+		if (image != null) {
+			return CachedImage.wrap(image.getImageData());
+		}
+
+		String photoIdAsString = id.asString();
+		ImageStorage imageStorage = ImageStorage.getInstance();
+		if (imageStorage.hasImageFiles()) {
+			return getPhotoImageFile(photoIdAsString, photoSize);
+		}
+
+		ImageCache imageCache = ImageCache.getInstance();
+		CachedImage result = imageCache.get(photoIdAsString, photoSize.asInt());
+		if (result != null) {
+			return result;
+		}
+
+		try {
+			result = imageStorage.readImageData(photoIdAsString, photoSize.asInt());
+			if (result != null && imageCache.canCache(result.getLength())) {
+				imageCache.put(photoIdAsString, photoSize.asInt(), result.asByteArray());
+			}
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("size", photoSize.asString()).
+					addParameter("photo ID", photoIdAsString).
+					addException("Could not load image", e).toString());
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
 	 *
+	 * Scales a size that was not created at upload from the source image of the photo, see PhotoUtil.createPhoto().
+	 * If several threads ask for the same size, only the first one scales; the others wait for its result. The new
+	 * image is returned at once and written to the ImageStorage under its photo id and size off the request path, see
+	 * setDeferredImageWriter(); until the write is done, further requests get it from memory. The photo itself does
+	 * not change. Returns null if the photo does not come in that size or has no source image.
 	 */
-	protected PhotoTagCollector photoTagCollector = null;
+	public Image createDeferredImage(final Photo photo, final PhotoSize photoSize) {
+		if (photoSize.isWiderAndHigher(photo.getWidth(), photo.getHeight())) {
+			return null;
+		}
+
+		final String key = photo.getId().asString() + photoSize.asInt();
+		final AtomicBoolean isScaled = new AtomicBoolean(false);
+		final FutureTask<Image> task = new FutureTask<Image>(new Callable<Image>() {
+			@Override
+			public Image call() throws Exception {
+				CachedImage existing = getPhotoImage(photo.getId(), photoSize);
+				if (existing != null) {
+					try {
+						return ImagesServiceFactory.makeImage(existing.asByteArray()); // written by an earlier task
+					} finally {
+						existing.release();
+					}
+				}
+				Image image = scaleDeferredImage(photo, photoSize);
+				isScaled.set(image != null);
+				return image;
+			}
+		});
+
+		FutureTask<Image> pendingScaling = pendingScalings.putIfAbsent(key, task);
+		if (pendingScaling == null) {
+			pendingScaling = task;
+			boolean isWriting = false;
+			try {
+				task.run();
+				if (isScaled.get()) {
+					startDeferredImageWrite(photo.getId().asString(), photoSize, task.get(), new Runnable() {
+						@Override
+						public void run() {
+							pendingScalings.remove(key, task);
+						}
+					});
+					isWriting = true;
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException ex) {
+				// logged below
+			} finally {
+				if (!isWriting) {
+					pendingScalings.remove(key, task);
+				}
+			}
+		}
+
+		try {
+			return pendingScaling.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException ex) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("size", photoSize.asString()).
+					addException("could not scale image of photo " + photo.getId().asString(), ex.getCause()).
+					toString());
+			return null;
+		}
+	}
 
 	/**
+	 * Puts the deferred image into the ImageCache and hands its write to the deferred image writer, or writes it at
+	 * once if there is none. A failed write is only logged, the image is scaled again when it is asked for next time.
+	 * onWritten runs when the write is done, whether it failed or not.
 	 *
+	 * @methodtype command
 	 */
-	public PhotoManager() {
-		photoTagCollector = PhotoFactory.getInstance().createPhotoTagCollector();
+	protected void startDeferredImageWrite(final String photoIdAsString, final PhotoSize photoSize, final Image image,
+			final Runnable onWritten) {
+		ImageCache imageCache = ImageCache.getInstance();
+		if (!ImageStorage.getInstance().hasImageFiles() && imageCache.canCache(image.getImageData().length)) {
+			imageCache.put(photoIdAsString, photoSize.asInt(), image.getImageData());
+		}
+
+		Runnable write = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeDeferredImage(photoIdAsString, photoSize, image);
+				} catch (IOException e) {
+					log.warning(LogBuilder.createSystemMessage().
+							addParameter("size", photoSize.asString()).
+							addParameter("photo ID", photoIdAsString).
+							addException("Could not write deferred image", e).toString());
+				} finally {
+					onWritten.run();
+				}
+			}
+		};
+
+		Executor writer = deferredImageWriter;
+		if (writer == null) {
+			write.run();
+		} else {
+			writer.execute(write);
+		}
 	}
 
 	/**
-	 *
+	 * @methodtype factory
 	 */
-	public static final PhotoManager getInstance() {
-		return instance;
+	protected Image scaleDeferredImage(Photo photo, PhotoSize photoSize) throws Exception {
+		return PhotoUtil.createDeferredImage(photo, photoSize);
 	}
 
 	/**
-	 *
+	 * @methodtype command
 	 */
-	public final boolean hasPhoto(String id) {
-		return hasPhoto(PhotoId.getIdFromString(id));
+	protected void writeDeferredImage(String photoIdAsString, PhotoSize photoSize, Image image) throws IOException {
+		ImageStorage.getInstance().writeImage(image, photoIdAsString, photoSize.asInt());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Executor getDeferredImageWriter() {
+		return deferredImageWriter;
 	}
 
 	/**
+	 * Sets the executor that writes deferred images; without one, they are written on the requesting thread.
 	 *
+	 * @methodtype set
 	 */
-	public final boolean hasPhoto(PhotoId id) {
-		return getPhoto(id) != null;
+	public void setDeferredImageWriter(Executor newDeferredImageWriter) {
+		deferredImageWriter = newDeferredImageWriter;
 	}
 
 	/**
+	 * @methodtype command
 	 *
+	 * Splits the visible photos into sprite sheets for a page and records them, so that getIssuedThumbSpriteSheet()
+	 * serves them, also on other instances. Photos that are not visible are left out and keep their own links.
 	 */
-	public final Photo getPhoto(PhotoId id) {
-		return instance.getPhotoFromId(id);
+	public List<ThumbSpriteSheet> issueThumbSpriteSheets(List<Photo> photos) {
+		return issueThumbSpriteSheets(photos, false);
 	}
 
 	/**
+	 * @methodtype command
 	 *
+	 * Like issueThumbSpriteSheets(List), but sheets for moderators also show flagged and moderated photos; only
+	 * deleted photos are left out. Such sheets are only to be served to moderators, see isForModerators().
 	 */
-	public Photo getPhotoFromId(PhotoId id) {
-		if (id == null) {
-			return null;
+	public List<ThumbSpriteSheet> issueThumbSpriteSheets(List<Photo> photos, boolean isForModerators) {
+		List<Photo> shownPhotos = new ArrayList<Photo>(photos.size());
+		for (Photo photo : photos) {
+			if (isShownInThumbSprite(photo, isForModerators)) {
+				shownPhotos.add(photo);
+			}
 		}
 
-		Photo result = doGetPhotoFromId(id);
-
-		if (result == null) {
-			result = PhotoFactory.getInstance().loadPhoto(id);
-			if (result != null) {
-				doAddPhoto(result);
+		long now = System.currentTimeMillis();
+		List<ThumbSpriteSheet> result = ThumbSpriteSheet.createSheets(shownPhotos, isForModerators);
+		List<IssuedThumbSpriteSheet> recordedSheets = new ArrayList<IssuedThumbSpriteSheet>();
+		synchronized (issuedThumbSpriteSheets) {
+			for (ThumbSpriteSheet sheet : result) {
+				IssuedThumbSpriteSheet issuedSheet = issuedThumbSpriteSheets.get(sheet.getId());
+				boolean isRecent = issuedSheet != null &&
+						now - issuedSheet.getIssuedOn() < MAX_ISSUED_THUMB_SPRITE_SHEET_AGE_IN_MILLIS / 2;
+				if (!isRecent) {
+					issuedSheet = new IssuedThumbSpriteSheet(sheet.getId(), sheet.getKey(), isForModerators, now);
+					issuedThumbSpriteSheets.put(sheet.getId(), issuedSheet);
+					recordedSheets.add(issuedSheet);
+				}
 			}
 		}
-
+		if (!recordedSheets.isEmpty()) {
+			// other instances must find the sheets as soon as the page asks for them; one write for all of them
+			OfyService.ofy().save().entities(recordedSheets).now();
+		}
 		return result;
 	}
 
 	/**
 	 * @methodtype get
-	 * @methodproperties primitive
+	 *
+	 * Returns the issued sprite sheet with the current image versions of its photos, or null if no sheet of that id
+	 * was issued or none of its photos is shown any more.
 	 */
-	protected Photo doGetPhotoFromId(PhotoId id) {
-		return photoCache.get(id);
+	public ThumbSpriteSheet getIssuedThumbSpriteSheet(final String sheetId) {
+		IssuedThumbSpriteSheet issuedSheet;
+		synchronized (issuedThumbSpriteSheets) {
+			issuedSheet = issuedThumbSpriteSheets.get(sheetId);
+		}
+		if (issuedSheet == null) {
+			issuedSheet = OfyService.ofy().load().type(IssuedThumbSpriteSheet.class).id(sheetId).now();
+			if (issuedSheet == null) {
+				return null;
+			}
+			synchronized (issuedThumbSpriteSheets) {
+				issuedThumbSpriteSheets.put(sheetId, issuedSheet);
+			}
+		}
+
+		List<PhotoId> photoIds = ThumbSpriteSheet.getPhotoIdsFromKey(issuedSheet.getKey());
+		if (photoIds == null) {
+			return null;
+		}
+		List<Photo> photos = getThumbSpritePhotos(photoIds, issuedSheet.isForModerators());
+		if (photos.equals(Collections.nCopies(photos.size(), null))) {
+			return null;
+		}
+		return new ThumbSpriteSheet(photoIds, photos, issuedSheet.isForModerators());
 	}
 
 	/**
 	 * @methodtype command
-	 * @methodproperties primitive
+	 *
+	 * Deletes issued sprite sheets that have not been issued again for MAX_ISSUED_THUMB_SPRITE_SHEET_AGE_IN_MILLIS,
+	 * page by page, and returns their number. Pages that still link to such a sheet get a 404 and show no thumbnails.
 	 */
-	protected void doAddPhoto(Photo myPhoto) {
-		photoCache.put(myPhoto.getId(), myPhoto);
+	public int removeOldIssuedThumbSpriteSheets() {
+		final long issuedBefore = System.currentTimeMillis() - MAX_ISSUED_THUMB_SPRITE_SHEET_AGE_IN_MILLIS;
+		synchronized (issuedThumbSpriteSheets) {
+			Iterator<IssuedThumbSpriteSheet> issuedSheets = issuedThumbSpriteSheets.values().iterator();
+			while (issuedSheets.hasNext()) {
+				if (issuedSheets.next().getIssuedOn() < issuedBefore) {
+					issuedSheets.remove();
+				}
+			}
+		}
+
+		int result = ObjectifyService.run(new Work<Integer>() {
+			@Override
+			public Integer run() {
+				int noDeleted = 0;
+				List<Key<IssuedThumbSpriteSheet>> keys;
+				do {
+					keys = OfyService.ofy().load().type(IssuedThumbSpriteSheet.class).
+							filter(IssuedThumbSpriteSheet.ISSUED_ON + " <", issuedBefore).
+							limit(ISSUED_THUMB_SPRITE_SHEET_PAGE_SIZE).keys().list();
+					OfyService.ofy().delete().keys(keys).now();
+					noDeleted += keys.size();
+				} while (keys.size() == ISSUED_THUMB_SPRITE_SHEET_PAGE_SIZE);
+				return noDeleted;
+			}
+		});
+
+		log.info(LogBuilder.createSystemMessage().
+				addAction("remove old issued sprite sheets").
+				addParameter("deleted sheets", result).toString());
+		return result;
 	}
 
 	/**
+	 * Returns the photo of each id, or null for photos that do not exist or are not shown.
+	 *
 	 * @methodtype get
 	 */
-	public final Photo getPhoto(String id) {
-		return getPhoto(PhotoId.getIdFromString(id));
+	protected List<Photo> getThumbSpritePhotos(List<PhotoId> photoIds, boolean isForModerators) {
+		List<Photo> result = new ArrayList<Photo>(photoIds.size());
+		for (PhotoId photoId : photoIds) {
+			Photo photo = isForModerators || isVisiblePhoto(photoId) ? getPhotoFromId(photoId) : null;
+			result.add(photo != null && isShownInThumbSprite(photo, isForModerators) ? photo : null);
+		}
+		return result;
 	}
 
 	/**
-	 * @methodtype init Loads all Photos from the Datastore and holds them in the cache
+	 * @methodtype boolean-query
 	 */
-	public void init() {
-		loadPhotos();
+	protected boolean isShownInThumbSprite(Photo photo, boolean isForModerators) {
+		return photo.isVisible() || (isForModerators && !photo.getStatus().isDeleted());
 	}
 
 	/**
-	 * @methodtype command
+	 * @methodtype get
 	 *
-	 * Load all persisted photos. Executed when Wahlzeit is restarted.
+	 * Returns the sprite sheet of the thumbnails of the photos, taken from the ImageCache or created and cached on the
+	 * first request. Cells of photos that are not visible stay empty. The image must be released after use.
 	 */
-	public void loadPhotos() {
-		Collection<Photo> existingPhotos = ObjectifyService.run(new Work<Collection<Photo>>() {
-			@Override
-			public Collection<Photo> run() {
-				Collection<Photo> existingPhotos = new ArrayList<Photo>();
-				readObjects(existingPhotos, Photo.class);
-				return existingPhotos;
+	public CachedImage getThumbSpriteImage(ThumbSpriteSheet sheet) {
+		List<Photo> photos = getThumbSpritePhotos(sheet.getPhotoIds(), sheet.isForModerators());
+
+		String spriteId = THUMB_SPRITE_ID_PREFIX + sheet.getVersion();
+		ImageCache imageCache = ImageCache.getInstance();
+		CachedImage result = imageCache.get(spriteId, PhotoSize.THUMB.asInt());
+		if (result != null) {
+			return result;
+		}
+
+		try {
+			byte[] spriteData = PhotoUtil.createThumbSprite(sheet, photos);
+			if (imageCache.canCache(spriteData.length)) {
+				imageCache.put(spriteId, PhotoSize.THUMB.asInt(), spriteData);
 			}
-		});
+			return CachedImage.wrap(spriteData);
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("sprite", sheet.getKey()).
+					addException("Could not create thumb sprite", e).toString());
+			return null;
+		}
+	}
 
-		for (Photo photo : existingPhotos) {
-			if (!doHasPhoto(photo.getId())) {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("Load Photo with ID", photo.getIdAsString()).toString());
-				loadScaledImages(photo);
-				doAddPhoto(photo);
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the images of the photos in the given size, reading those that are neither with their photo nor in the
+	 * ImageCache from the ImageStorage in one batch; photos without that image are left out. The images must be
+	 * released after use.
+	 */
+	public Map<PhotoId, CachedImage> getPhotoImages(Collection<PhotoId> ids, PhotoSize photoSize) {
+		Map<PhotoId, CachedImage> result = new HashMap<PhotoId, CachedImage>();
+		ImageStorage imageStorage = ImageStorage.getInstance();
+		ImageCache imageCache = ImageCache.getInstance();
+		Map<String, PhotoId> missingIds = new HashMap<String, PhotoId>();
+		for (PhotoId id : ids) {
+			Photo photo = photoCache.get(id);
+			Image image = photo == null ? null : photo.getImage(photoSize);
+			CachedImage cachedImage = null;
+			if (image != null) {
+				cachedImage = CachedImage.wrap(image.getImageData());
+			} else if (imageStorage.hasImageFiles()) {
+				cachedImage = getPhotoImageFile(id.asString(), photoSize);
 			} else {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("Already loaded Photo", photo.getIdAsString()).toString());
+				cachedImage = imageCache.get(id.asString(), photoSize.asInt());
+				if (cachedImage == null) {
+					missingIds.put(id.asString(), id);
+				}
+			}
+			if (cachedImage != null) {
+				result.put(id, cachedImage);
 			}
 		}
 
-		log.info(LogBuilder.createSystemMessage().addMessage("All photos loaded.").toString());
+		if (!missingIds.isEmpty()) {
+			try {
+				Map<String, CachedImage> images = imageStorage.readImageData(missingIds.keySet(), photoSize.asInt());
+				for (Map.Entry<String, CachedImage> image : images.entrySet()) {
+					CachedImage cachedImage = image.getValue();
+					if (imageCache.canCache(cachedImage.getLength())) {
+						imageCache.put(image.getKey(), photoSize.asInt(), cachedImage.asByteArray());
+					}
+					result.put(missingIds.get(image.getKey()), cachedImage);
+				}
+			} catch (IOException e) {
+				log.warning(LogBuilder.createSystemMessage().
+						addParameter("size", photoSize.asString()).
+						addParameter("photos", missingIds.size()).
+						addException("Could not load images", e).toString());
+			}
+		}
+		return result;
 	}
 
 	/**
-	 * @methodtype boolean-query
-	 * @methodproperty primitive
+	 * @methodtype get
+	 *
+	 * Image files are streamed from the file system, whose page cache takes the place of the ImageCache.
 	 */
-	protected boolean doHasPhoto(PhotoId id) {
-		return photoCache.containsKey(id);
+	protected CachedImage getPhotoImageFile(String photoIdAsString, PhotoSize photoSize) {
+		Path imageFile = ImageStorage.getInstance().getImageFile(photoIdAsString, photoSize.asInt());
+		if (imageFile == null) {
+			return null;
+		}
+
+		try {
+			return CachedImage.wrap(imageFile);
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("size", photoSize.asString()).
+					addParameter("photo ID", photoIdAsString).
+					addException("Could not open image file", e).toString());
+			return null;
+		}
 	}
 
 	/**
 	 * @methodtype command
 	 *
-	 * Loads all scaled Images of this Photo from Google Cloud Storage
+	 * Loads the thumbnail and medium images of the noPhotos most praised photos, so that their first requests are
+	 * served from memory. Returns the number of loaded images.
 	 */
-	protected void loadScaledImages(Photo photo) {
-		String photoIdAsString = photo.getId().asString();
-		ImageStorage imageStorage = ImageStorage.getInstance();
-
-		for (PhotoSize photoSize : PhotoSize.values()) {
-			log.config(LogBuilder.createSystemMessage().
-					addAction("loading image").
-					addParameter("image size", photoSize.asString()).
-					addParameter("photo ID", photoIdAsString).toString());
-			if (imageStorage.doesImageExist(photoIdAsString, photoSize.asInt())) {
-				try {
-					Serializable rawImage = imageStorage.readImage(photoIdAsString, photoSize.asInt());
-					if (rawImage != null && rawImage instanceof Image) {
-						photo.setImage(photoSize, (Image) rawImage);
-					}
-				} catch (IOException e) {
-					log.warning(LogBuilder.createSystemMessage().
-							addParameter("size", photoSize.asString()).
-							addParameter("photo ID", photoIdAsString).
-							addException("Could not load image although it exists", e).toString());
+	public int warmUpImages(int noPhotos) {
+		long startTime = System.currentTimeMillis();
+		int result = 0;
+		for (int photoId : photoPraiseIndex.getTopPhotoIds(noPhotos)) {
+			for (PhotoSize photoSize : WARM_UP_PHOTO_SIZES) {
+				CachedImage image = getPhotoImage(PhotoId.getIdFromInt(photoId), photoSize);
+				if (image != null) {
+					image.release();
+					result++;
 				}
-			} else {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("Size does not exist", photoSize.asString()).toString());
 			}
 		}
+
+		log.info(LogBuilder.createSystemMessage().
+				addAction("warm up images").
+				addParameter("photos", noPhotos).
+				addParameter("loaded images", result).
+				addParameter("duration in ms", System.currentTimeMillis() - startTime).toString());
+		return result;
 	}
 
 	/**
 	 *
 	 */
 	public void savePhoto(Photo photo) {
+		readmitPhoto(photo);
+		updatePhotoIndexes(photo);
 		updateObject(photo);
 	}
 
@@ -231,9 +1250,46 @@ public class PhotoManager extends ObjectManager {
 			Photo photo = (Photo) obj;
 			saveScaledImages(photo);
 			updateTags(photo);
-			UserManager userManager = UserManager.getInstance();
-			Client owner = userManager.getClientById(photo.getOwnerId());
-			userManager.saveClient(owner);
+			saveOwners(Collections.singleton(photo.getOwnerId()));
+		}
+	}
+
+	/**
+	 * Chunk version of updateDependents; owners of several photos in the chunk are saved only once.
+	 */
+	@Override
+	protected void updateDependents(Collection<? extends Persistent> chunk) {
+		List<Photo> photos = new ArrayList<Photo>();
+		Set<String> ownerIds = new HashSet<String>();
+		for (Persistent obj : chunk) {
+			if (obj instanceof Photo) {
+				photos.add((Photo) obj);
+			}
+		}
+		saveScaledImages(photos);
+		for (Photo photo : photos) {
+			updateTags(photo);
+			ownerIds.add(photo.getOwnerId());
+		}
+		saveOwners(ownerIds);
+	}
+
+	/**
+	 * Saves the dirty owners of the given ids with one batched write instead of one write each.
+	 *
+	 * @methodtype command
+	 */
+	protected void saveOwners(Collection<String> ownerIds) {
+		UserManager userManager = UserManager.getInstance();
+		List<Client> owners = new ArrayList<Client>(ownerIds.size());
+		for (String ownerId : ownerIds) {
+			Client owner = ownerId == null ? null : userManager.getClientById(ownerId);
+			if (owner != null) {
+				owners.add(owner);
+			}
+		}
+		if (!owners.isEmpty()) {
+			userManager.saveClients(owners);
 		}
 	}
 
@@ -247,86 +1303,177 @@ public class PhotoManager extends ObjectManager {
 
 	/**
 	 * @methodtype command
-	 *
-	 * Persists all available sizes of the Photo. If one size exceeds the limit of the persistence layer, e.g. > 1MB for
-	 * the Datastore, it is simply not persisted.
 	 */
 	protected void saveScaledImages(Photo photo) {
-		String photoIdAsString = photo.getId().asString();
+		saveScaledImages(Collections.singletonList(photo));
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Persists all sizes of the Photos that are still held in memory. If writing one size fails, it and all larger
+	 * sizes stay in memory and are written with the next save. Which sizes exist already is checked for all photos at
+	 * once, and only for photos that hold images at all. The persisted images are not put into the ImageCache; sizes
+	 * that are actually asked for get there with their first read, see getPhotoImage().
+	 */
+	protected void saveScaledImages(Collection<Photo> photos) {
+		List<Photo> photosWithImages = new ArrayList<Photo>();
+		for (Photo photo : photos) {
+			if (photo.hasImages()) {
+				photosWithImages.add(photo);
+			}
+		}
+		if (photosWithImages.isEmpty()) {
+			return;
+		}
+
 		ImageStorage imageStorage = ImageStorage.getInstance();
-		PhotoSize photoSize;
-		int it = 0;
-		boolean moreSizesExist = true;
-		do{
-			photoSize = PhotoSize.values()[it];
-			it++;
-			Image image = photo.getImage(photoSize);
-			if (image != null) {
+		List<String> photoIdsAsStrings = new ArrayList<String>(photosWithImages.size());
+		for (Photo photo : photosWithImages) {
+			photoIdsAsStrings.add(photo.getId().asString());
+		}
+		Map<String, Set<Integer>> existingSizes = imageStorage.getExistingImageSizes(photoIdsAsStrings);
+
+		for (Photo photo : photosWithImages) {
+			String photoIdAsString = photo.getId().asString();
+			Set<Integer> photoSizes = existingSizes.get(photoIdAsString);
+			for (PhotoSize photoSize : PhotoSize.values()) {
+				Image image = photo.getImage(photoSize);
+				if (image == null) {
+					log.config(LogBuilder.createSystemMessage().
+							addParameter("No image for size", photoSize.asString()).toString());
+					continue;
+				}
 				try {
-					if (!imageStorage.doesImageExist(photoIdAsString, photoSize.asInt())) {
+					if (photoSizes == null || !photoSizes.contains(photoSize.asInt())) {
 						imageStorage.writeImage(image, photoIdAsString, photoSize.asInt());
 					}
+					photo.removeImage(photoSize);
 				} catch (Exception e) {
 					log.warning(LogBuilder.createSystemMessage().
 							addException("Problem when storing image", e).toString());
-					moreSizesExist = false;
+					break;
 				}
-			} else {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("No image for size", photoSize.asString()).toString());
-				moreSizesExist = false;
 			}
-		} while (it < PhotoSize.values().length && moreSizesExist);
+		}
 	}
 
 	/**
 	 * Removes all tags of the Photo (obj) in the datastore that have been removed by the user and adds all new tags of
-	 * the photo to the datastore.
+	 * the photo to the datastore. Only the difference to the persisted tags is written; if neither the tags nor the
+	 * owner of the photo changed, nothing is written at all. A failed write throws, so that the photo stays dirty and
+	 * its tags are written again with the next save.
 	 */
 	protected void updateTags(Photo photo) {
-		// delete all existing tags, for the case that some have been removed
-		deleteObjects(Tag.class, Tag.PHOTO_ID, photo.getId().asString());
-
-		// add all current tags to the datastore
 		Set<String> tags = new HashSet<String>();
 		photoTagCollector.collect(tags, photo);
-		for (Iterator<String> i = tags.iterator(); i.hasNext(); ) {
-			Tag tag = new Tag(i.next(), photo.getId().asString());
-			log.config(LogBuilder.createSystemMessage().addParameter("Writing Tag", tag.asString()).toString());
-			writeObject(tag);
+
+		Set<String> oldTags = getPersistedTags(photo);
+		if (tags.equals(oldTags)) {
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("Tags unchanged for photo", photo.getIdAsString()).toString());
+			return;
+		}
+
+		String photoIdAsString = photo.getId().asString();
+		Set<String> removedTags = new HashSet<String>(oldTags);
+		removedTags.removeAll(tags);
+		Set<String> addedTags = new HashSet<String>(tags);
+		addedTags.removeAll(oldTags);
+
+		// the tags must be read again in case an update fails, so drop them until the delta is written
+		persistedTags.remove(photo.getId());
+
+		if (!removedTags.isEmpty()) {
+			List<Tag> existingTags = new ArrayList<Tag>();
+			readObjects(existingTags, Tag.class, Tag.PHOTO_ID, photoIdAsString);
+			List<Tag> obsoleteTags = new ArrayList<Tag>();
+			for (Tag tag : existingTags) {
+				if (removedTags.contains(tag.getText())) {
+					obsoleteTags.add(tag);
+				}
+			}
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("Deleting tags", obsoleteTags.size()).toString());
+			deleteObjects(obsoleteTags);
+		}
+
+		if (!addedTags.isEmpty()) {
+			List<Tag> newTags = new ArrayList<Tag>();
+			for (String text : addedTags) {
+				Tag tag = new Tag(text, photoIdAsString);
+				log.config(LogBuilder.createSystemMessage().addParameter("Writing Tag", tag.asString()).toString());
+				newTags.add(tag);
+			}
+			if (!updateObjects(newTags).isSuccess()) {
+				throw new IllegalStateException("could not write tags of photo " + photoIdAsString);
+			}
+		}
+
+		persistedTags.put(photo.getId(), tags);
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the tags of the photo that are currently stored in the datastore. They are kept in memory and only read
+	 * from the Tag entities if they are not known, e.g. after a failed update.
+	 */
+	protected Set<String> getPersistedTags(Photo photo) {
+		Set<String> result = persistedTags.get(photo.getId());
+		if (result == null) {
+			List<Tag> existingTags = new ArrayList<Tag>();
+			readObjects(existingTags, Tag.class, Tag.PHOTO_ID, photo.getId().asString());
+			result = new HashSet<String>();
+			for (Tag tag : existingTags) {
+				result.add(tag.getText());
+			}
+			persistedTags.put(photo.getId(), result);
 		}
+		return result;
 	}
 
 	/**
 	 *
 	 */
-	public void savePhotos() throws IOException{
-		updateObjects(photoCache.values());
+	public BatchWriteReport savePhotos() throws IOException{
+		return updateObjects(getPhotoSnapshot());
+	}
+
+	/**
+	 * Saves the given photos in batches.
+	 */
+	public BatchWriteReport savePhotos(Collection<? extends Photo> photos) {
+		return updateObjects(photos);
 	}
 
 	/**
+	 * Lock-free view of the cache; use getPhotoSnapshot() to iterate.
+	 *
 	 * @methodtype get
 	 */
 	public Map<PhotoId, Photo> getPhotoCache() {
-		return photoCache;
+		return Collections.unmodifiableMap(photoCache);
 	}
 
 	/**
 	 *
 	 */
 	public Set<Photo> findPhotosByOwner(String ownerName) {
-		Set<Photo> result = new HashSet<Photo>();
-		readObjects(result, Photo.class, Photo.OWNER_ID, ownerName);
+		Set<Photo> storedPhotos = new HashSet<Photo>();
+		readObjects(storedPhotos, Photo.class, Photo.OWNER_ID, ownerName);
 
-		for (Iterator<Photo> i = result.iterator(); i.hasNext(); ) {
-			doAddPhoto(i.next());
+		// prefer cached instances, they may hold changes that are not written yet
+		Set<Photo> result = new HashSet<Photo>();
+		for (Iterator<Photo> i = storedPhotos.iterator(); i.hasNext(); ) {
+			result.add(doAddPhotoIfAbsent(i.next()));
 		}
 
 		return result;
 	}
 
 	/**
-	 *
+	 * Picks the next photo for the filter, uniformly or weighted by praise depending on its selection mode.
 	 */
 	public Photo getVisiblePhoto(PhotoFilter filter) {
 		filter.generateDisplayablePhotoIds();
@@ -337,12 +1484,38 @@ public class PhotoManager extends ObjectManager {
 	 *
 	 */
 	public Photo createPhoto(String filename, Image uploadedImage) throws Exception {
+		return createPhoto(filename, uploadedImage, PhotoUtil.getPerceptualHash(uploadedImage));
+	}
+
+	/**
+	 * @methodtype creation
+	 */
+	public Photo createPhoto(String filename, Image uploadedImage, Long perceptualHash) throws Exception {
 		PhotoId id = PhotoId.getNextId();
 		Photo result = PhotoUtil.createPhoto(filename, id, uploadedImage);
+		result.setPerceptualHash(perceptualHash);
 		addPhoto(result);
 		return result;
 	}
 
+	/**
+	 * Returns the displayable photo that looks most like an image with the given perceptual hash, or null if none is
+	 * within MAX_NEAR_DUPLICATE_DISTANCE bits. Only photos indexed on this instance are found.
+	 *
+	 * @methodtype get
+	 */
+	public Photo getNearDuplicatePhoto(Long perceptualHash) {
+		if (perceptualHash == null) {
+			return null;
+		}
+
+		int photoId = photoHashIndex.getClosestPhotoId(perceptualHash, MAX_NEAR_DUPLICATE_DISTANCE);
+		if (photoId == PhotoId.NULL_ID.asInt()) {
+			return null;
+		}
+		return getPhotoFromId(PhotoId.getIdFromInt(photoId));
+	}
+
 	/**
 	 * @methodtype command
 	 */
@@ -350,17 +1523,89 @@ public class PhotoManager extends ObjectManager {
 		PhotoId id = photo.getId();
 		assertIsNewPhoto(id);
 		doAddPhoto(photo);
+		persistedTags.put(id, new HashSet<String>());
 
 		GlobalsManager.getInstance().saveGlobals();
 	}
 
 	/**
+	 * New ids are handed out after all persisted ones, so only the in-memory cache and index are checked; hasPhoto()
+	 * would load the photo from the datastore on every upload.
+	 *
 	 * @methodtype assertion
 	 */
 	protected void assertIsNewPhoto(PhotoId id) {
-		if (hasPhoto(id)) {
+		if (doHasPhoto(id) || isVisiblePhoto(id)) {
 			throw new IllegalStateException("Photo already exists!");
 		}
 	}
 
+	/**
+	 * Candidate photo ids of one filter and the index version they were built from
+	 */
+	protected static class CandidatePhotoIds {
+
+		protected final long version;
+		protected final CompressedBitmap photoIds;
+
+		protected CandidatePhotoIds(long version, CompressedBitmap photoIds) {
+			this.version = version;
+			this.photoIds = photoIds;
+		}
+	}
+
+	/**
+	 * Records a sprite sheet issued to a page by its id, so that any instance can serve it
+	 */
+	@Entity
+	public static class IssuedThumbSpriteSheet {
+
+		public static final String ISSUED_ON = "issuedOn";
+
+		@Id
+		private String id;
+
+		private String key;
+
+		private boolean isForModerators;
+
+		/**
+		 * When the sheet was last recorded; it is recorded again when it is issued after half its maximum age
+		 */
+		@Index
+		private long issuedOn;
+
+		public IssuedThumbSpriteSheet() {
+			// just for Objectify to load it from Datastore
+		}
+
+		public IssuedThumbSpriteSheet(String id, String key, boolean isForModerators, long issuedOn) {
+			this.id = id;
+			this.key = key;
+			this.isForModerators = isForModerators;
+			this.issuedOn = issuedOn;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * @methodtype boolean-query
+		 */
+		public boolean isForModerators() {
+			return isForModerators;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public long getIssuedOn() {
+			return issuedOn;
+		}
+	}
+
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.FenwickTree;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Keeps the praise of all displayable photos in a FenwickTree so that a photo can be drawn with a probability
+ * proportional to its praise in O(log n). Each PhotoId int gets a slot in the tree when it is first seen; photos that
+ * are not displayable keep their slot with weight zero.
+ */
+public class PhotoPraiseIndex {
+
+	/**
+	 *
+	 */
+	protected final FenwickTree praiseTree = new FenwickTree();
+
+	/**
+	 *
+	 */
+	protected final Map<Integer, Integer> slotsByPhotoId = new HashMap<Integer, Integer>();
+	protected int[] photoIdsBySlot = new int[16];
+
+	/**
+	 * Sets the weight of the photo to its praise, or to zero if it is not displayable.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized void updatePhoto(Photo photo) {
+		double weight = photo.isVisible() ? Math.max(0, photo.getPraise()) : 0;
+		int photoId = photo.getId().asInt();
+		Integer slot = slotsByPhotoId.get(photoId);
+		if (slot == null) {
+			if (weight == 0) {
+				return;
+			}
+			slot = addSlot(photoId);
+		}
+		praiseTree.setWeight(slot, weight);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected int addSlot(int photoId) {
+		int slot = slotsByPhotoId.size();
+		if (slot == photoIdsBySlot.length) {
+			photoIdsBySlot = Arrays.copyOf(photoIdsBySlot, slot * 2);
+		}
+		photoIdsBySlot[slot] = photoId;
+		slotsByPhotoId.put(photoId, slot);
+		return slot;
+	}
+
+	/**
+	 * Returns the PhotoId int of a displayable photo drawn with probability proportional to its praise, or
+	 * PhotoId.NULL_ID's int if there is none.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized int getRandomPhotoId(Random random) {
+		int slot = praiseTree.findIndex(random.nextDouble() * praiseTree.getTotalWeight());
+		return slot < 0 ? PhotoId.NULL_ID.asInt() : photoIdsBySlot[slot];
+	}
+
+	/**
+	 * Returns one of the given PhotoId ints drawn with probability proportional to its praise, or PhotoId.NULL_ID's
+	 * int if none of them has praise. Linear in the number of given photos; for small subsets of all photos.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized int getRandomPhotoId(Random random, int[] photoIds) {
+		double totalPraise = 0;
+		for (int photoId : photoIds) {
+			totalPraise += getPraise(photoId);
+		}
+		if (totalPraise <= 0) {
+			return PhotoId.NULL_ID.asInt();
+		}
+
+		double target = random.nextDouble() * totalPraise;
+		int result = PhotoId.NULL_ID.asInt();
+		for (int photoId : photoIds) {
+			double praise = getPraise(photoId);
+			if (praise > 0) {
+				result = photoId;
+				target -= praise;
+				if (target < 0) {
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the PhotoId ints of the noPhotos most praised displayable photos, most praised first.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized int[] getTopPhotoIds(int noPhotos) {
+		if (noPhotos <= 0) {
+			return new int[0];
+		}
+
+		// min-heap of the best slots seen so far
+		PriorityQueue<Integer> topSlots = new PriorityQueue<Integer>(noPhotos, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(praiseTree.getWeight(a), praiseTree.getWeight(b));
+			}
+		});
+		for (int slot = 0; slot < slotsByPhotoId.size(); slot++) {
+			if (praiseTree.getWeight(slot) <= 0) {
+				continue;
+			}
+			if (topSlots.size() < noPhotos) {
+				topSlots.add(slot);
+			} else if (praiseTree.getWeight(slot) > praiseTree.getWeight(topSlots.peek())) {
+				topSlots.poll();
+				topSlots.add(slot);
+			}
+		}
+
+		int[] result = new int[topSlots.size()];
+		for (int i = result.length - 1; i >= 0; i--) {
+			result[i] = photoIdsBySlot[topSlots.poll()];
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized double getPraise(PhotoId photoId) {
+		return getPraise(photoId.asInt());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected double getPraise(int photoId) {
+		Integer slot = slotsByPhotoId.get(photoId);
+		return slot == null ? 0 : praiseTree.getWeight(slot);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized double getTotalPraise() {
+		return praiseTree.getTotalWeight();
+	}
+
+}
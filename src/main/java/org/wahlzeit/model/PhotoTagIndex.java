@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.CompressedBitmap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory inverted index from the terms of a PhotoTagCollector ("un:..." and "tg:...") to the PhotoId ints of
+ * all displayable photos carrying the term. It lets a PhotoFilter evaluate its conditions without datastore queries.
+ * Posting lists are compressed bitmaps, so matches can be combined with other photo id sets by and/andNot.
+ */
+public class PhotoTagIndex {
+
+	/**
+	 *
+	 */
+	protected final PhotoTagCollector photoTagCollector;
+
+	/**
+	 *
+	 */
+	protected final Map<String, CompressedBitmap> postings = new HashMap<String, CompressedBitmap>();
+
+	/**
+	 * Terms each displayable photo is currently indexed with, possibly none
+	 */
+	protected final Map<Integer, Set<String>> termsByPhotoId = new HashMap<Integer, Set<String>>();
+
+	/**
+	 * Incremented whenever the indexed photos or their terms change
+	 */
+	protected long version = 0;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoTagIndex(PhotoTagCollector photoTagCollector) {
+		this.photoTagCollector = photoTagCollector;
+	}
+
+	/**
+	 * (Re-)indexes the photo with its current owner, tags and status. Photos that are not displayable are removed.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized void updatePhoto(Photo photo) {
+		Set<String> terms = null;
+		if (photo.isVisible()) {
+			terms = new HashSet<String>();
+			photoTagCollector.collect(terms, photo);
+		}
+		setTerms(photo.getId().asInt(), terms);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void removePhoto(PhotoId photoId) {
+		setTerms(photoId.asInt(), null);
+	}
+
+	/**
+	 * Sets the terms of the photo; null terms remove the photo from the index.
+	 *
+	 * @methodtype command
+	 */
+	protected void setTerms(int photoId, Set<String> newTerms) {
+		Set<String> oldTerms = termsByPhotoId.get(photoId);
+		if (oldTerms == null ? newTerms == null : oldTerms.equals(newTerms)) {
+			return;
+		}
+
+		if (oldTerms == null) {
+			oldTerms = Collections.emptySet();
+		}
+		Set<String> terms = newTerms == null ? Collections.<String>emptySet() : newTerms;
+
+		for (String term : oldTerms) {
+			if (!terms.contains(term)) {
+				CompressedBitmap postingList = postings.get(term);
+				postingList.remove(photoId);
+				if (postingList.isEmpty()) {
+					postings.remove(term);
+				}
+			}
+		}
+		for (String term : terms) {
+			if (!oldTerms.contains(term)) {
+				CompressedBitmap postingList = postings.get(term);
+				if (postingList == null) {
+					postingList = new CompressedBitmap();
+					postings.put(term, postingList);
+				}
+				postingList.add(photoId);
+			}
+		}
+
+		if (newTerms == null) {
+			termsByPhotoId.remove(photoId);
+		} else {
+			termsByPhotoId.put(photoId, newTerms);
+		}
+		version++;
+	}
+
+	/**
+	 * Callers compare versions to find out whether results they derived from the index are outdated.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the ids of all photos that match at least one of the terms; the result is a copy owned by the caller.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized CompressedBitmap getPhotoIdsMatchingAny(Collection<String> terms) {
+		CompressedBitmap result = new CompressedBitmap();
+		for (CompressedBitmap postingList : getPostingLists(terms)) {
+			result = CompressedBitmap.or(result, postingList);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ids of all photos that match all of the terms; the result is a copy owned by the caller.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized CompressedBitmap getPhotoIdsMatchingAll(Collection<String> terms) {
+		List<CompressedBitmap> postingLists = getPostingLists(terms);
+		if (postingLists.isEmpty() || postingLists.size() < new HashSet<String>(terms).size()) {
+			return new CompressedBitmap(); // at least one term is unknown
+		}
+		CompressedBitmap result = postingLists.get(0).copy();
+		for (int i = 1; i < postingLists.size(); i++) {
+			result = CompressedBitmap.and(result, postingLists.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected List<CompressedBitmap> getPostingLists(Collection<String> terms) {
+		List<CompressedBitmap> result = new ArrayList<CompressedBitmap>();
+		for (String term : new HashSet<String>(terms)) {
+			CompressedBitmap postingList = postings.get(term);
+			if (postingList != null) {
+				result.add(postingList);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int getNoPhotos(String term) {
+		CompressedBitmap postingList = postings.get(term);
+		return postingList == null ? 0 : postingList.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int getNoTerms() {
+		return postings.size();
+	}
+
+}
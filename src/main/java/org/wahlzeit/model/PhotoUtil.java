@@ -21,11 +21,31 @@
 package org.wahlzeit.model;
 
 import com.google.appengine.api.images.Image;
-import com.google.appengine.api.images.ImagesService;
-import com.google.appengine.api.images.ImagesServiceFactory;
-import com.google.appengine.api.images.Transform;
+import org.wahlzeit.model.persistence.CachedImage;
+import org.wahlzeit.model.persistence.ImageStorage;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.utils.DifferenceHash;
+import org.wahlzeit.utils.ImageFormat;
+import org.wahlzeit.utils.ImageProbe;
 
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /**
@@ -36,18 +56,42 @@ public class PhotoUtil {
 
 	private static final Logger log = Logger.getLogger(PhotoUtil.class.getName());
 
+	/**
+	 * System property; if true, only UPLOAD_PHOTO_SIZES are scaled at upload and the other sizes on first request
+	 */
+	public static final String DEFERRED_SCALING_PROPERTY = "wahlzeit.scaling.deferred";
+
+	/**
+	 * Thumbnails for lists and the default page size
+	 */
+	protected static final List<PhotoSize> UPLOAD_PHOTO_SIZES = Arrays.asList(PhotoSize.THUMB, PhotoSize.MEDIUM);
+
+	/**
+	 * Larger images are rejected before they are decoded; decoding them would take too much memory
+	 */
+	public static final long MAX_SOURCE_PIXELS = 50L * 1000 * 1000;
+
 	/**
 	 * @methodtype creation
 	 */
 	public static Photo createPhoto(String filename, PhotoId id, Image uploadedImage) throws Exception {
+		assertIsValidImage(uploadedImage);
+		ImageProbe imageProbe = probeImage(uploadedImage);
+
 		Photo result = PhotoFactory.getInstance().createPhoto(id);
 		result.setEnding(filename.substring(filename.lastIndexOf(".") + 1));
 
-		createImageFiles(uploadedImage, result);
+		if (Boolean.getBoolean(DEFERRED_SCALING_PROPERTY)) {
+			boolean hasDeferredSizes = createImageFiles(uploadedImage, result, UPLOAD_PHOTO_SIZES);
+			if (hasDeferredSizes) {
+				// written right away, so that the deferred sizes can be scaled on any instance
+				ImageStorage.getInstance().writeImage(uploadedImage, id.asString(), ImageStorage.SOURCE_IMAGE_SIZE);
+			}
+		} else {
+			createImageFiles(uploadedImage, result);
+		}
 
-		int sourceWidth = uploadedImage.getWidth();
-		int sourceHeight = uploadedImage.getHeight();
-		result.setWidthAndHeight(sourceWidth, sourceHeight);
+		result.setWidthAndHeight(imageProbe.getWidth(), imageProbe.getHeight());
 
 		return result;
 	}
@@ -56,16 +100,229 @@ public class PhotoUtil {
 	 *
 	 */
 	public static void createImageFiles(Image source, Photo photo) throws Exception {
+		createImageFiles(source, photo, Arrays.asList(PhotoSize.values()));
+	}
+
+	/**
+	 * Scales the source to those of the given sizes it comes in and returns whether it comes in other sizes, too.
+	 * Only the largest size is scaled from the source; every other size is scaled from a smaller derivative, see
+	 * getScalingSources(). Sizes are scaled in stages, all sizes of a stage at once, see ImageScaler.scaleAsync().
+	 */
+	public static boolean createImageFiles(Image source, Photo photo, Collection<PhotoSize> photoSizes)
+			throws Exception {
 		assertIsValidImage(source);
 
-		int sourceWidth = source.getWidth();
-		int sourceHeight = source.getHeight();
+		ImageProbe imageProbe = probeImage(source);
+		int sourceWidth = imageProbe.getWidth();
+		int sourceHeight = imageProbe.getHeight();
 		assertHasValidSize(sourceWidth, sourceHeight);
 
+		List<PhotoSize> sizes = new ArrayList<PhotoSize>();
+		boolean hasOtherSizes = false;
 		for (PhotoSize size : PhotoSize.values()) {
 			if (!size.isWiderAndHigher(sourceWidth, sourceHeight)) {
-				scaleImage(ImagesServiceFactory.makeImage(source.getImageData()), size, photo);
+				if (photoSizes.contains(size)) {
+					sizes.add(size);
+				} else {
+					hasOtherSizes = true;
+				}
+			}
+		}
+		Map<PhotoSize, PhotoSize> scalingSources = getScalingSources(sizes, sourceWidth, sourceHeight);
+
+		long startTime = System.currentTimeMillis();
+		ImageScaler imageScaler = ImageScaler.getInstance();
+		Set<PhotoSize> scaledSizes = new HashSet<PhotoSize>();
+		while (scaledSizes.size() < sizes.size()) {
+			long stageStartTime = System.currentTimeMillis();
+			Map<PhotoSize, Future<Image>> stage = new LinkedHashMap<PhotoSize, Future<Image>>();
+			for (PhotoSize size : sizes) {
+				PhotoSize scalingSource = scalingSources.get(size);
+				if (scaledSizes.contains(size) || (scalingSource != null && !scaledSizes.contains(scalingSource))) {
+					continue;
+				}
+				Image image = scalingSource == null ? source : photo.getImage(scalingSource);
+				stage.put(size, imageScaler.scaleAsync(image, size.calcAdjustedWidth(sourceWidth, sourceHeight),
+						size.calcAdjustedHeight(sourceWidth, sourceHeight)));
+			}
+
+			for (Map.Entry<PhotoSize, Future<Image>> scaling : stage.entrySet()) {
+				try {
+					photo.setImage(scaling.getKey(), scaling.getValue().get());
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
 			}
+			scaledSizes.addAll(stage.keySet());
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("Scaled stage", stage.keySet().toString()).
+					addParameter("duration in ms", System.currentTimeMillis() - stageStartTime).toString());
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("Scale images").
+				addParameter("sizes", sizes.size()).
+				addParameter("duration in ms", System.currentTimeMillis() - startTime).toString());
+
+		return hasOtherSizes;
+	}
+
+	/**
+	 * Scales the source image of the photo, which was written to the ImageStorage at upload, to the given size. The
+	 * photo is left as it is. Returns null if there is no source image.
+	 */
+	public static Image createDeferredImage(Photo photo, PhotoSize size) throws Exception {
+		String photoIdAsString = photo.getId().asString();
+		Image source = (Image) ImageStorage.getInstance().readImage(photoIdAsString, ImageStorage.SOURCE_IMAGE_SIZE);
+		if (source == null) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("no source image for photo", photoIdAsString).toString());
+			return null;
+		}
+
+		long startTime = System.currentTimeMillis();
+		int targetWidth = size.calcAdjustedWidth(photo.getWidth(), photo.getHeight());
+		int targetHeight = size.calcAdjustedHeight(photo.getWidth(), photo.getHeight());
+		Image result = ImageScaler.getInstance().scale(source, targetWidth, targetHeight);
+
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("Scaled deferred image to size", size.asString()).
+				addParameter("duration in ms", System.currentTimeMillis() - startTime).toString());
+		return result;
+	}
+
+	/**
+	 * Maps each size to the size it is scaled from, or to null if it is scaled from the source. The largest size is
+	 * scaled from the source; any other size from the smallest size that is at least twice as wide or, if there is
+	 * none, from the largest size. Scaling down by half or less keeps the quality of scaling from the source, and
+	 * sizes with different scaling sources can be scaled in parallel.
+	 *
+	 * @methodtype get
+	 */
+	protected static Map<PhotoSize, PhotoSize> getScalingSources(List<PhotoSize> sizes, int sourceWidth,
+			int sourceHeight) {
+		Map<PhotoSize, PhotoSize> result = new HashMap<PhotoSize, PhotoSize>();
+		PhotoSize largest = null;
+		for (PhotoSize size : sizes) {
+			if (largest == null || largest.isSmaller(size)) {
+				largest = size;
+			}
+		}
+
+		for (PhotoSize size : sizes) {
+			if (size == largest) {
+				result.put(size, null);
+				continue;
+			}
+
+			int width = size.calcAdjustedWidth(sourceWidth, sourceHeight);
+			PhotoSize scalingSource = largest;
+			for (PhotoSize candidate : sizes) {
+				if (candidate.calcAdjustedWidth(sourceWidth, sourceHeight) >= 2 * width &&
+						candidate.isSmaller(scalingSource)) {
+					scalingSource = candidate;
+				}
+			}
+			result.put(size, scalingSource);
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the dimensions from the header of the image; only images in formats ImageProbe does not know are decoded
+	 * for them.
+	 *
+	 * @methodtype get
+	 */
+	protected static ImageProbe probeImage(Image image) {
+		ImageProbe result = ImageProbe.probe(image.getImageData());
+		if (result == null) {
+			result = new ImageProbe(ImageFormat.UNKNOWN, image.getWidth(), image.getHeight());
+		}
+		return result;
+	}
+
+	/**
+	 * Draws the thumbnails of the photos into the cells of the sheet and encodes the result as a JPEG. The thumbnails
+	 * are fetched in one batch; null photos and thumbnails that cannot be read leave their cell empty.
+	 *
+	 * @methodtype factory
+	 */
+	public static byte[] createThumbSprite(ThumbSpriteSheet sheet, List<Photo> photos) throws IOException {
+		long startTime = System.currentTimeMillis();
+
+		List<PhotoId> photoIds = new ArrayList<PhotoId>(photos.size());
+		for (Photo photo : photos) {
+			if (photo != null) {
+				photoIds.add(photo.getId());
+			}
+		}
+		Map<PhotoId, CachedImage> thumbs = PhotoManager.getInstance().getPhotoImages(photoIds, PhotoSize.THUMB);
+
+		BufferedImage sprite = new BufferedImage(sheet.getWidth(), sheet.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = sprite.createGraphics();
+		try {
+			graphics.setColor(Color.WHITE);
+			graphics.fillRect(0, 0, sprite.getWidth(), sprite.getHeight());
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			for (int i = 0; i < photos.size(); i++) {
+				Photo photo = photos.get(i);
+				BufferedImage thumb = photo == null ? null : readThumb(photo, thumbs.get(photo.getId()));
+				if (thumb != null) {
+					graphics.drawImage(thumb, ThumbSpriteSheet.getX(i), ThumbSpriteSheet.getY(i),
+							photo.getThumbWidth(), photo.getThumbHeight(), null);
+				}
+			}
+		} finally {
+			graphics.dispose();
+			for (CachedImage thumb : thumbs.values()) {
+				thumb.release();
+			}
+		}
+
+		byte[] result = JavaImageScaler.encode(sprite);
+		log.config(LogBuilder.createSystemMessage().
+				addAction("created thumb sprite").
+				addParameter("photos", photoIds.size()).
+				addParameter("bytes", result.length).
+				addParameter("duration in ms", System.currentTimeMillis() - startTime).toString());
+		return result;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static BufferedImage readThumb(Photo photo, CachedImage thumb) throws IOException {
+		if (thumb == null) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("photo ID", photo.getId().asString()).
+					addMessage("thumb missing in sprite").toString());
+			return null;
+		}
+
+		return ImageIO.read(new ByteArrayInputStream(thumb.asByteArray()));
+	}
+
+	/**
+	 * Returns the DifferenceHash of the image, or null if it cannot be decoded here; such photos are not checked for
+	 * near-duplicates.
+	 *
+	 * @methodtype get
+	 */
+	public static Long getPerceptualHash(Image image) {
+		assertIsValidImage(image);
+
+		long startTime = System.currentTimeMillis();
+		try {
+			long result = DifferenceHash.compute(image.getImageData());
+			log.config(LogBuilder.createSystemMessage().
+					addAction("computed perceptual hash").
+					addParameter("duration in ms", System.currentTimeMillis() - startTime).toString());
+			return result;
+		} catch (Exception ex) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("could not compute perceptual hash", ex).toString());
+			return null;
 		}
 	}
 
@@ -85,26 +342,16 @@ public class PhotoUtil {
 		if (PhotoSize.THUMB.isWiderAndHigher(cw, ch)) {
 			throw new IllegalArgumentException("Photo too small!");
 		}
+		if ((long) cw * ch > MAX_SOURCE_PIXELS) {
+			throw new IllegalArgumentException("Photo too large!");
+		}
 	}
 
 	/**
-	 * @methodtype command Scale the source picture to the given size, store it in the datastore and reference it in the
-	 * photo.
+	 * @methodtype boolean query
 	 */
-	protected static void scaleImage(Image source, PhotoSize size, Photo photo) throws Exception {
-		int sourceWidth = source.getWidth();
-		int sourceHeight = source.getHeight();
-
-		int targetWidth = size.calcAdjustedWidth(sourceWidth, sourceHeight);
-		int targetHeight = size.calcAdjustedHeight(sourceWidth, sourceHeight);
-
-		ImagesService imagesService = ImagesServiceFactory.getImagesService();
-		Transform resize = ImagesServiceFactory.makeResize(targetWidth, targetHeight);
-		Image newImage = imagesService.applyTransform(resize, source);
-
-		photo.setImage(size, newImage);
-
-		log.config(LogBuilder.createSystemMessage().addParameter("Scaled image to size", size.asString()).toString());
+	public static boolean hasValidSize(int cw, int ch) {
+		return !PhotoSize.THUMB.isWiderAndHigher(cw, ch) && (long) cw * ch <= MAX_SOURCE_PIXELS;
 	}
 
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.ContentHash;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A sprite sheet combines the thumbnails of up to MAX_NO_THUMBS photos into one image, so that a page listing many
+ * photos needs one image request instead of one per photo. Thumbnails are laid out in a grid of NO_COLUMNS columns,
+ * each cell as large as the largest thumbnail; a thumbnail sits in the top left corner of its cell.
+ *
+ * A sheet is identified by the ids of its photos (its key) and versioned by their image versions, so a link to a
+ * sheet never changes its content. Links name a sheet by its id, a hash of its key; only sheets the PhotoManager
+ * issued to a page are served, see PhotoManager.issueThumbSpriteSheets(). Photos that are not visible any more keep
+ * their cell, which stays empty. Sheets for moderators also show flagged photos and are only served to moderators.
+ */
+public class ThumbSpriteSheet implements Serializable {
+
+	/**
+	 *
+	 */
+	public static final int MAX_NO_THUMBS = 50;
+	public static final int NO_COLUMNS = 10;
+	public static final int CELL_WIDTH = Photo.MAX_THUMB_PHOTO_WIDTH;
+	public static final int CELL_HEIGHT = Photo.MAX_THUMB_PHOTO_HEIGHT;
+
+	/**
+	 * Separates the photo ids in a key
+	 */
+	public static final String KEY_SEPARATOR = ".";
+
+	/**
+	 * Keeps the ids of sheets for moderators apart from those of the same photos for everyone
+	 */
+	protected static final String MODERATOR_KEY_PREFIX = "moderators:";
+
+	/**
+	 *
+	 */
+	protected final List<PhotoId> photoIds;
+	protected final boolean isForModerators;
+	protected final String id;
+	protected final String version;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public ThumbSpriteSheet(List<Photo> photos) {
+		this(getPhotoIds(photos), photos, false);
+	}
+
+	/**
+	 * Creates the sheet of the photo ids; photos holds the photo of each id, or null for a photo that is left out.
+	 *
+	 * @methodtype constructor
+	 */
+	public ThumbSpriteSheet(List<PhotoId> photoIds, List<Photo> photos, boolean isForModerators) {
+		if (photoIds == null || photoIds.isEmpty() || photoIds.size() > MAX_NO_THUMBS) {
+			throw new IllegalArgumentException("a sprite sheet needs 1 to " + MAX_NO_THUMBS + " photos");
+		}
+		if (photos == null || photos.size() != photoIds.size()) {
+			throw new IllegalArgumentException("a sprite sheet needs a photo or null for each photo id");
+		}
+
+		StringBuilder versions = new StringBuilder();
+		for (int i = 0; i < photoIds.size(); i++) {
+			Photo photo = photos.get(i);
+			versions.append(photoIds.get(i).asString()).append('-');
+			versions.append(photo == null ? "none" : String.valueOf(photo.getImageVersion())).append(' ');
+		}
+		this.photoIds = Collections.unmodifiableList(new ArrayList<PhotoId>(photoIds));
+		this.isForModerators = isForModerators;
+
+		// the first 64 bits of the hash are plenty to tell sheets and their versions apart
+		id = asHash(isForModerators ? MODERATOR_KEY_PREFIX + getKey() : getKey());
+		version = asHash(versions.toString());
+	}
+
+	/**
+	 * Splits the photos into sheets of at most MAX_NO_THUMBS photos, keeping their order.
+	 *
+	 * @methodtype factory
+	 */
+	public static List<ThumbSpriteSheet> createSheets(List<Photo> photos) {
+		return createSheets(photos, false);
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public static List<ThumbSpriteSheet> createSheets(List<Photo> photos, boolean isForModerators) {
+		List<ThumbSpriteSheet> result = new ArrayList<ThumbSpriteSheet>();
+		for (int i = 0; i < photos.size(); i += MAX_NO_THUMBS) {
+			List<Photo> sheetPhotos = photos.subList(i, Math.min(i + MAX_NO_THUMBS, photos.size()));
+			result.add(new ThumbSpriteSheet(getPhotoIds(sheetPhotos), sheetPhotos, isForModerators));
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static List<PhotoId> getPhotoIds(List<Photo> photos) {
+		if (photos == null) {
+			throw new IllegalArgumentException("photos should not be null");
+		}
+
+		List<PhotoId> result = new ArrayList<PhotoId>(photos.size());
+		for (Photo photo : photos) {
+			result.add(photo.getId());
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static String asHash(String value) {
+		return ContentHash.asHexString(value.getBytes(StandardCharsets.UTF_8)).substring(0, 16);
+	}
+
+	/**
+	 * Returns the ids of a key as created by getKey(), or null if the key is malformed or holds too many ids.
+	 *
+	 * @methodtype conversion
+	 */
+	public static List<PhotoId> getPhotoIdsFromKey(String key) {
+		if (key == null || key.isEmpty()) {
+			return null;
+		}
+
+		String[] ids = key.split("\\" + KEY_SEPARATOR, -1);
+		if (ids.length > MAX_NO_THUMBS) {
+			return null;
+		}
+
+		List<PhotoId> result = new ArrayList<PhotoId>(ids.length);
+		for (String id : ids) {
+			PhotoId photoId = PhotoId.getIdFromString(id);
+			if (photoId == null || photoId.isNullId() || !photoId.asString().equals(id)) {
+				return null;
+			}
+			result.add(photoId);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public List<PhotoId> getPhotoIds() {
+		return photoIds;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getKey() {
+		StringBuilder result = new StringBuilder();
+		for (PhotoId photoId : photoIds) {
+			if (result.length() > 0) {
+				result.append(KEY_SEPARATOR);
+			}
+			result.append(photoId.asString());
+		}
+		return result.toString();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isForModerators() {
+		return isForModerators;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the position of the photo in the sheet, or -1 if it is not part of it.
+	 *
+	 * @methodtype get
+	 */
+	public int indexOf(PhotoId photoId) {
+		return photoIds.indexOf(photoId);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int size() {
+		return photoIds.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getWidth() {
+		return Math.min(photoIds.size(), NO_COLUMNS) * CELL_WIDTH;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getHeight() {
+		return ((photoIds.size() + NO_COLUMNS - 1) / NO_COLUMNS) * CELL_HEIGHT;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static int getX(int index) {
+		return (index % NO_COLUMNS) * CELL_WIDTH;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static int getY(int index) {
+		return (index / NO_COLUMNS) * CELL_HEIGHT;
+	}
+
+}
@@ -58,14 +58,15 @@ public class TrainPhotoFactory extends PhotoFactory {
 	}
 	
 	/**
-	 * Loads a photo of a train.
+	 * Loads a photo of a train. TrainPhoto is not registered with Objectify yet, so train photos are stored and
+	 * loaded as plain {@link Photo} entities.
 	 * 
-	 * @return loaded photo
+	 * @return loaded photo or null
 	 * @methodtype factory
 	 */
 	@Override
-	public TrainPhoto loadPhoto(PhotoId id) {
-		return null;
+	public Photo loadPhoto(PhotoId id) {
+		return super.loadPhoto(id);
 	}
 
 }
\ No newline at end of file
@@ -28,6 +28,7 @@ import javax.servlet.http.HttpSession;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -58,6 +59,12 @@ public class UserSession extends Session implements Serializable {
 
 	protected HttpSession httpSession;
 
+	/**
+	 * Sprite sheets of the thumbnails on the page being rendered; a UserSession lives for one request, so they are not
+	 * kept in the HttpSession
+	 */
+	protected transient List<ThumbSpriteSheet> thumbSpriteSheets = null;
+
 	/**
 	 *
 	 */
@@ -270,6 +277,22 @@ public class UserSession extends Session implements Serializable {
 		httpSession.setAttribute(PHOTO_CASE, photoCase);
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public List<ThumbSpriteSheet> getThumbSpriteSheets() {
+		return thumbSpriteSheets;
+	}
+
+	/**
+	 * Thumbnails of photos in the sheets are rendered from the sheets; null renders each thumbnail as an image.
+	 *
+	 * @methodtype set
+	 */
+	public void setThumbSpriteSheets(List<ThumbSpriteSheet> newThumbSpriteSheets) {
+		thumbSpriteSheets = newThumbSpriteSheets;
+	}
+
 	/**
 	 * @methodtype boolean query
 	 */
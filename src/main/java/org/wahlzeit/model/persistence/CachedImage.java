@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * The data of an image as handed out by the ImageCache or an ImageStorage. Data from the cache stays off the heap and
+ * is pinned in the cache until release() is called, so callers must always release a CachedImage, best in a finally
+ * block. Data of image files is streamed from the file and never held in memory; images stored in chunks are written
+ * chunk by chunk without joining them.
+ */
+public class CachedImage {
+
+	/**
+	 * Either data or file is set
+	 */
+	protected final ByteBuffer[] data;
+	protected final Path file;
+	protected final int length;
+
+	/**
+	 *
+	 */
+	protected final ImageCache imageCache;
+	protected final ImageCache.Entry entry;
+	protected boolean isReleased = false;
+
+	/**
+	 * Wraps image data that lives on the heap; releasing it does nothing.
+	 *
+	 * @methodtype factory
+	 */
+	public static CachedImage wrap(byte[] imageData) {
+		return new CachedImage(new ByteBuffer[] {ByteBuffer.wrap(imageData)}, null, null);
+	}
+
+	/**
+	 * Wraps image data that lives on the heap in several chunks; releasing it does nothing.
+	 *
+	 * @methodtype factory
+	 */
+	public static CachedImage wrap(List<byte[]> imageDataChunks) {
+		ByteBuffer[] data = new ByteBuffer[imageDataChunks.size()];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = ByteBuffer.wrap(imageDataChunks.get(i));
+		}
+		return new CachedImage(data, null, null);
+	}
+
+	/**
+	 * Wraps an image file; releasing it does nothing.
+	 *
+	 * @methodtype factory
+	 */
+	public static CachedImage wrap(Path file) throws IOException {
+		return new CachedImage(file);
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	protected CachedImage(ByteBuffer data, ImageCache imageCache, ImageCache.Entry entry) {
+		this(new ByteBuffer[] {data}, imageCache, entry);
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	protected CachedImage(ByteBuffer[] data, ImageCache imageCache, ImageCache.Entry entry) {
+		long totalLength = 0;
+		for (ByteBuffer buffer : data) {
+			totalLength += buffer.remaining();
+		}
+		if (totalLength > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("image data too large");
+		}
+
+		this.data = data;
+		this.file = null;
+		this.length = (int) totalLength;
+		this.imageCache = imageCache;
+		this.entry = entry;
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	protected CachedImage(Path file) throws IOException {
+		long fileSize = Files.size(file);
+		if (fileSize > Integer.MAX_VALUE) {
+			throw new IOException("image file too large: " + file);
+		}
+
+		this.data = null;
+		this.file = file;
+		this.length = (int) fileSize;
+		this.imageCache = null;
+		this.entry = null;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns a read-only view of the data, valid until the image is released. Image files are mapped into memory;
+	 * chunks are joined into a new buffer.
+	 *
+	 * @methodtype get
+	 */
+	public ByteBuffer getData() throws IOException {
+		if (file != null) {
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			} finally {
+				channel.close();
+			}
+		}
+
+		if (data.length == 1) {
+			return data[0].duplicate();
+		}
+
+		ByteBuffer result = ByteBuffer.allocate(length);
+		for (ByteBuffer buffer : data) {
+			result.put(buffer.duplicate());
+		}
+		result.flip();
+		return result.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Writes the data to the stream. Image files are passed on with FileChannel.transferTo, off-heap data through a
+	 * channel; both copy the data in small pieces instead of creating a byte array of the whole image.
+	 *
+	 * @methodtype command
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		writeTo(out, 0, length);
+	}
+
+	/**
+	 * Writes count bytes starting at offset to the stream, e.g. to answer a byte-range request.
+	 *
+	 * @methodtype command
+	 */
+	public void writeTo(OutputStream out, int offset, int count) throws IOException {
+		if (offset < 0 || count < 0 || offset > length - count) {
+			throw new IllegalArgumentException("invalid range: " + offset + ", " + count);
+		}
+
+		WritableByteChannel target = Channels.newChannel(out);
+		if (file != null) {
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				long position = offset;
+				long end = (long) offset + count;
+				while (position < end) {
+					position += channel.transferTo(position, end - position, target);
+				}
+			} finally {
+				channel.close();
+			}
+			return;
+		}
+
+		int skip = offset;
+		int remaining = count;
+		for (int i = 0; i < data.length && remaining > 0; i++) {
+			ByteBuffer source = data[i].duplicate();
+			if (skip >= source.remaining()) {
+				skip -= source.remaining();
+				continue;
+			}
+			source.position(source.position() + skip);
+			source.limit(source.position() + Math.min(remaining, source.remaining()));
+			skip = 0;
+			remaining -= source.remaining();
+			if (source.hasArray()) {
+				out.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+			} else {
+				while (source.hasRemaining()) {
+					target.write(source);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns up to count bytes from the start of the data, e.g. to look at the header of the image.
+	 *
+	 * @methodtype get
+	 */
+	public byte[] getPrefix(int count) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		writeTo(result, 0, Math.min(count, length));
+		return result.toByteArray();
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public byte[] asByteArray() throws IOException {
+		if (file != null) {
+			return Files.readAllBytes(file);
+		}
+
+		byte[] result = new byte[length];
+		getData().get(result);
+		return result;
+	}
+
+	/**
+	 * Unpins the data in the cache; the image must not be used afterwards.
+	 *
+	 * @methodtype command
+	 */
+	public void release() {
+		if (!isReleased && imageCache != null) {
+			imageCache.release(entry);
+		}
+		isReleased = true;
+	}
+
+}
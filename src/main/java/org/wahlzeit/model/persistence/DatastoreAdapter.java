@@ -22,21 +22,45 @@ package org.wahlzeit.model.persistence;
 
 import com.google.appengine.api.images.Image;
 import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.Work;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.cmd.Query;
+import org.wahlzeit.model.PhotoSize;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.OfyService;
+import org.wahlzeit.utils.ContentHash;
 import org.wahlzeit.utils.PatternInstance;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
  * Adapter for the Google Datastore. Use default constructor to create an instance.
+ *
+ * Images are stored by content: each distinct image is one blob, an ImageWrapper keyed by the hash of its data, and an
+ * ImageReference maps photo id and size to its blob. An image uploaded several times is therefore stored once.
+ * Blobs that are no longer referenced are removed by collectGarbage(). Images written before content addressing are
+ * still read from ImageWrappers keyed by photo id and size.
+ *
+ * Writing a reference and deleting an orphaned blob both run in transactions that read the blob's ImageWrapper and
+ * its OrphanedImageBlob mark, so the datastore serializes them and a blob is never deleted under a new reference.
  * 
  * @review
  */
@@ -52,74 +76,562 @@ public class DatastoreAdapter extends ImageStorage {
 
 	private static final Logger log = Logger.getLogger(DatastoreAdapter.class.getName());
 
+	/**
+	 * The datastore runs one sub-query per key of an IN filter and allows at most 30 of them
+	 */
+	protected static final int MAX_KEYS_PER_QUERY = 30;
+
+	/**
+	 * A datastore commit may carry at most 10 MB, so large images are written in several batches
+	 */
+	protected static final int MAX_CHUNKS_PER_BATCH = 8;
+
+	/**
+	 * A transaction may touch at most 25 entity groups; deleting a blob touches its wrapper, its mark and its chunks
+	 */
+	protected static final int MAX_ENTITY_GROUPS_PER_TRANSACTION = 25;
+
+	/**
+	 * Garbage collection reads references, blobs and marks in pages of this size
+	 */
+	protected static final int GC_PAGE_SIZE = 500;
+
+	/**
+	 * Ids of blobs are the prefix and the content hash; photo ids never start with it. BLOB_ID_END is the first id
+	 * after all blob ids.
+	 */
+	protected static final String BLOB_ID_PREFIX = "blob-";
+	protected static final String BLOB_ID_END = "blob.";
+
+	/**
+	 * Blobs are deleted only if they were unreferenced for this long, so that a blob being referenced again right
+	 * now is not lost
+	 */
+	public static final long DEFAULT_GRACE_PERIOD_IN_MILLIS = 60 * 60 * 1000;
+
+	/**
+	 *
+	 */
+	protected long gracePeriodInMillis = DEFAULT_GRACE_PERIOD_IN_MILLIS;
+	protected int gcPageSize = GC_PAGE_SIZE;
 
+
+	/**
+	 * Points the reference to the blob with the image's content, writing the blob first if it does not exist. The
+	 * reference is only saved in a transaction that finds the blob, and that transaction drops the blob's orphan mark,
+	 * so a concurrent collectGarbage() either deletes the blob before, and the blob is written again, or not at all.
+	 */
 	@Override
 	protected void doWriteImage(Serializable image, String photoIdAsString, int size)
 			throws IOException, InvalidParameterException {
-		if (image instanceof Image) {
-			final ImageWrapper imageWrapper = new ImageWrapper(photoIdAsString + size);
-			imageWrapper.setImage((Image) image);
-
-			ObjectifyService.run(new Work<Boolean>() {
-				@Override
-				public Boolean run() {
-					OfyService.ofy().save().entity(imageWrapper).now();
-					return null;
-				}
-			});
-
-			log.config(LogBuilder.createSystemMessage().addMessage("image successfully written").toString());
-		} else {
+		if (!(image instanceof Image)) {
 			log.warning(LogBuilder.createSystemMessage().
 					addMessage("did not get an Image type to store").
 					addParameter("image type", image.toString()).toString());
+			return;
+		}
+
+		byte[] imageData = ((Image) image).getImageData();
+		String blobId = asBlobId(imageData);
+		String referenceId = asImageReferenceId(photoIdAsString, size);
+		if (writeReference(referenceId, blobId)) {
+			log.config(LogBuilder.createSystemMessage().addParameter("share existing blob", blobId).toString());
+		} else {
+			writeBlob(blobId, imageData);
+			if (!writeReference(referenceId, blobId)) {
+				throw new IOException("blob " + blobId + " vanished while it was written");
+			}
+		}
+
+		log.config(LogBuilder.createSystemMessage().addMessage("image successfully written").toString());
+	}
+
+	/**
+	 * Saves the reference if the blob exists, by a strongly consistent get, and deletes the blob's orphan mark; returns
+	 * whether the blob exists.
+	 *
+	 * @methodtype command
+	 */
+	protected boolean writeReference(final String referenceId, final String blobId) {
+		return ObjectifyService.run(new Work<Boolean>() {
+			@Override
+			public Boolean run() {
+				return OfyService.ofy().transact(new Work<Boolean>() {
+					@Override
+					public Boolean run() {
+						if (OfyService.ofy().load().type(ImageWrapper.class).id(blobId).now() == null) {
+							return false;
+						}
+						OfyService.ofy().delete().type(OrphanedImageBlob.class).id(blobId);
+						OfyService.ofy().save().entity(new ImageReference(referenceId, blobId));
+						// an image stored before content addressing would otherwise be left behind
+						OfyService.ofy().delete().type(ImageWrapper.class).id(referenceId);
+						return true;
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Images larger than ImageChunk.CHUNK_SIZE are split into ImageChunks; an image just under 1 MB would not fit into
+	 * a single entity once the key and the other properties are added. The chunks are written before the ImageWrapper
+	 * that lists them, in batches of at most MAX_CHUNKS_PER_BATCH entities, so a reader never finds a wrapper without
+	 * its chunks.
+	 *
+	 * @methodtype command
+	 */
+	protected void writeBlob(String blobId, byte[] imageData) {
+		ImageWrapper imageWrapper = new ImageWrapper(blobId);
+
+		final List<Object> entities = new ArrayList<Object>();
+		if (imageData.length <= ImageChunk.CHUNK_SIZE) {
+			imageWrapper.setImage(ImagesServiceFactory.makeImage(imageData));
+		} else {
+			int noChunks = (imageData.length + ImageChunk.CHUNK_SIZE - 1) / ImageChunk.CHUNK_SIZE;
+			for (int i = 0; i < noChunks; i++) {
+				int from = i * ImageChunk.CHUNK_SIZE;
+				int to = Math.min(from + ImageChunk.CHUNK_SIZE, imageData.length);
+				entities.add(new ImageChunk(asImageChunkId(blobId, i), Arrays.copyOfRange(imageData, from, to)));
+			}
+			imageWrapper.setChunks(noChunks, imageData.length);
 		}
+		entities.add(imageWrapper);
+
+		ObjectifyService.run(new Work<Boolean>() {
+			@Override
+			public Boolean run() {
+				for (int i = 0; i < entities.size(); i += MAX_CHUNKS_PER_BATCH) {
+					int end = Math.min(i + MAX_CHUNKS_PER_BATCH, entities.size());
+					OfyService.ofy().save().entities(entities.subList(i, end)).now();
+				}
+				return null;
+			}
+		});
+
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("blob written", blobId).
+				addParameter("chunks", imageWrapper.getNoChunks()).toString());
+	}
+
+	@Override
+	protected Image doReadImage(String photoIdAsString, int size) throws IOException {
+		CachedImage imageData = doReadImageData(photoIdAsString, size);
+		return imageData == null ? null : ImagesServiceFactory.makeImage(imageData.asByteArray());
 	}
 
+	/**
+	 * Follows the ImageReference to the blob; images stored before content addressing have no reference.
+	 */
 	@Override
-	protected Image doReadImage(final String photoIdAsString, final int size) throws IOException {
-		Image result = null;
+	protected CachedImage doReadImageData(String photoIdAsString, int size) throws IOException {
+		final String referenceId = asImageReferenceId(photoIdAsString, size);
+		ImageReference reference = ObjectifyService.run(new Work<ImageReference>() {
+			@Override
+			public ImageReference run() {
+				return OfyService.ofy().load().type(ImageReference.class).id(referenceId).now();
+			}
+		});
+
+		return readImageWrapperData(reference != null ? reference.getBlobId() : referenceId);
+	}
+
+	/**
+	 * Reads the ImageReferences of all photos in one batch and then their ImageWrappers in another one; only chunks
+	 * of large images are read per image.
+	 */
+	@Override
+	protected Map<String, CachedImage> doReadImageData(Collection<String> photoIdsAsStrings, int size)
+			throws IOException {
+		final Map<String, String> photoIdsByReferenceId = new LinkedHashMap<String, String>();
+		for (String photoIdAsString : photoIdsAsStrings) {
+			photoIdsByReferenceId.put(asImageReferenceId(photoIdAsString, size), photoIdAsString);
+		}
+
+		Map<String, ImageReference> references = ObjectifyService.run(new Work<Map<String, ImageReference>>() {
+			@Override
+			public Map<String, ImageReference> run() {
+				return OfyService.ofy().load().type(ImageReference.class).ids(photoIdsByReferenceId.keySet());
+			}
+		});
+
+		final Map<String, String> wrapperIdsByReferenceId = new LinkedHashMap<String, String>();
+		for (String referenceId : photoIdsByReferenceId.keySet()) {
+			ImageReference reference = references.get(referenceId);
+			wrapperIdsByReferenceId.put(referenceId, reference != null ? reference.getBlobId() : referenceId);
+		}
+
+		Map<String, ImageWrapper> imageWrappers = ObjectifyService.run(new Work<Map<String, ImageWrapper>>() {
+			@Override
+			public Map<String, ImageWrapper> run() {
+				return OfyService.ofy().load().type(ImageWrapper.class).ids(wrapperIdsByReferenceId.values());
+			}
+		});
+
+		Map<String, CachedImage> result = new HashMap<String, CachedImage>();
+		for (Map.Entry<String, String> wrapperId : wrapperIdsByReferenceId.entrySet()) {
+			CachedImage image = readImageWrapperData(imageWrappers.get(wrapperId.getValue()));
+			if (image != null) {
+				result.put(photoIdsByReferenceId.get(wrapperId.getKey()), image);
+			}
+		}
+		return result;
+	}
 
+	/**
+	 * @methodtype get
+	 */
+	protected CachedImage readImageWrapperData(final String wrapperId) {
 		ImageWrapper imageWrapper = ObjectifyService.run(new Work<ImageWrapper>() {
 			@Override
 			public ImageWrapper run() {
-				return OfyService.ofy().load().type(ImageWrapper.class).id(photoIdAsString + size).now();
+				return OfyService.ofy().load().type(ImageWrapper.class).id(wrapperId).now();
 			}
 		});
+		return readImageWrapperData(imageWrapper);
+	}
 
+	/**
+	 * Returns the data of the ImageWrapper and, for large images, reads all of its chunks in one batch; the chunks
+	 * are handed out without joining them.
+	 *
+	 * @methodtype get
+	 */
+	protected CachedImage readImageWrapperData(ImageWrapper imageWrapper) {
 		if (imageWrapper == null) {
 			log.info(LogBuilder.createSystemMessage().addMessage("does not exist!").toString());
-		} else {
-			result = imageWrapper.getImage();
-			if (result != null) {
-				log.config(LogBuilder.createSystemMessage().addMessage("image successfully read").toString());
-			} else {
+			return null;
+		}
+
+		if (!imageWrapper.isChunked()) {
+			byte[] imageData = imageWrapper.getImageData();
+			if (imageData == null) {
 				log.warning(LogBuilder.createSystemMessage().addMessage("ImageWrapper contains no Image").toString());
+				return null;
 			}
+			log.config(LogBuilder.createSystemMessage().addMessage("image successfully read").toString());
+			return CachedImage.wrap(imageData);
 		}
-		return result;
+
+		final List<String> chunkIds = getImageChunkIds(imageWrapper);
+		Map<String, ImageChunk> chunks = ObjectifyService.run(new Work<Map<String, ImageChunk>>() {
+			@Override
+			public Map<String, ImageChunk> run() {
+				return OfyService.ofy().load().type(ImageChunk.class).ids(chunkIds);
+			}
+		});
+
+		List<byte[]> chunkData = new ArrayList<byte[]>(chunkIds.size());
+		for (String chunkId : chunkIds) {
+			ImageChunk chunk = chunks.get(chunkId);
+			if (chunk == null || chunk.getData() == null) {
+				log.warning(LogBuilder.createSystemMessage().addParameter("missing ImageChunk", chunkId).toString());
+				return null;
+			}
+			chunkData.add(chunk.getData());
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addMessage("image successfully read").
+				addParameter("chunks", chunkData.size()).toString());
+		return CachedImage.wrap(chunkData);
 	}
 
+	/**
+	 * Keys-only queries on the ImageReference key and, for images stored before content addressing, the ImageWrapper
+	 * key, so the image data itself is not read. Like all queries outside an entity group they are eventually
+	 * consistent; an image written a moment ago may still be reported as missing.
+	 */
 	@Override
 	protected boolean doDoesImageExist(String photoIdAsString, int size) {
-		Image image = null;
-		boolean result = false;
-		try {
-			image = doReadImage(photoIdAsString, size);
-		} catch (IOException e) {
-			log.warning(
-					LogBuilder.createSystemMessage().addException("IOException when checking for Image existance", e)
-							.toString());
-		}
-		if (image != null) {
-			result = true;
-		}
+		String referenceId = asImageReferenceId(photoIdAsString, size);
+		boolean result = doesEntityExist(ImageReference.class, referenceId) ||
+				doesEntityExist(ImageWrapper.class, referenceId);
 		log.config(LogBuilder.createSystemMessage().addParameter("does image exist", result).toString());
 		return result;
 	}
 
 	/**
-	 * Wrapper class to store {@link Image}s in the Google Datastore with Objectify.
+	 * @methodtype boolean query
+	 */
+	protected <T> boolean doesEntityExist(final Class<T> type, String id) {
+		final Key<T> key = Key.create(type, id);
+		return ObjectifyService.run(new Work<Boolean>() {
+			@Override
+			public Boolean run() {
+				return OfyService.ofy().load().type(type).filterKey(key).keys().first().now() != null;
+			}
+		});
+	}
+
+	/**
+	 * Checks all sizes of the photos with keys-only queries of at most MAX_KEYS_PER_QUERY keys each.
+	 */
+	@Override
+	protected Map<String, Set<Integer>> doGetExistingImageSizes(Collection<String> photoIdsAsStrings) {
+		List<String> referenceIds = new ArrayList<String>();
+		Map<String, String> photoIdsByReferenceId = new HashMap<String, String>();
+		Map<String, Integer> sizesByReferenceId = new HashMap<String, Integer>();
+		for (String photoIdAsString : photoIdsAsStrings) {
+			for (PhotoSize photoSize : PhotoSize.values()) {
+				String referenceId = asImageReferenceId(photoIdAsString, photoSize.asInt());
+				referenceIds.add(referenceId);
+				photoIdsByReferenceId.put(referenceId, photoIdAsString);
+				sizesByReferenceId.put(referenceId, photoSize.asInt());
+			}
+		}
+
+		Set<String> existingIds = getExistingIds(ImageReference.class, referenceIds);
+		List<String> missingIds = new ArrayList<String>(referenceIds);
+		missingIds.removeAll(existingIds);
+		existingIds.addAll(getExistingIds(ImageWrapper.class, missingIds));
+
+		Map<String, Set<Integer>> result = new HashMap<String, Set<Integer>>();
+		for (String referenceId : existingIds) {
+			addExistingImageSize(result, photoIdsByReferenceId.get(referenceId), sizesByReferenceId.get(referenceId));
+		}
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("checked images", referenceIds.size()).
+				addParameter("existing images", existingIds.size()).toString());
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected <T> Set<String> getExistingIds(final Class<T> type, List<String> ids) {
+		final List<Key<T>> keys = new ArrayList<Key<T>>(ids.size());
+		for (String id : ids) {
+			keys.add(Key.create(type, id));
+		}
+
+		return ObjectifyService.run(new Work<Set<String>>() {
+			@Override
+			public Set<String> run() {
+				Set<String> result = new HashSet<String>();
+				for (int i = 0; i < keys.size(); i += MAX_KEYS_PER_QUERY) {
+					int end = Math.min(i + MAX_KEYS_PER_QUERY, keys.size());
+					List<Key<T>> chunk = keys.subList(i, end);
+					for (Key<T> key : OfyService.ofy().load().type(type).filterKey("in", chunk).keys()) {
+						result.add(key.getName());
+					}
+				}
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * Deletes blobs that have not been referenced for at least the grace period. A run marks newly unreferenced blobs
+	 * with an OrphanedImageBlob and deletes blobs whose mark is old enough; marks of blobs that are referenced again
+	 * are dropped.
+	 */
+	@Override
+	protected int doCollectGarbage() {
+		return ObjectifyService.run(new Work<Integer>() {
+			@Override
+			public Integer run() {
+				return collectOrphanedBlobs(System.currentTimeMillis());
+			}
+		});
+	}
+
+	/**
+	 * Blobs, references and marks are read page by page. Blobs found unreferenced are only marked; a marked blob is
+	 * deleted by deleteOrphanedBlob() once its mark is older than the grace period.
+	 *
+	 * @methodtype command
+	 */
+	protected int collectOrphanedBlobs(long now) {
+		Set<String> referencedBlobIds = getReferencedBlobIds();
+
+		int noNewMarks = 0;
+		int result = 0;
+		Cursor cursor = null;
+		do {
+			Query<ImageWrapper> query = OfyService.ofy().load().type(ImageWrapper.class).
+					filterKey(">=", Key.create(ImageWrapper.class, BLOB_ID_PREFIX)).
+					filterKey("<", Key.create(ImageWrapper.class, BLOB_ID_END)).limit(gcPageSize);
+			if (cursor != null) {
+				query = query.startAt(cursor);
+			}
+			List<String> blobIds = new ArrayList<String>(gcPageSize);
+			QueryResultIterator<Key<ImageWrapper>> keys = query.keys().iterator();
+			while (keys.hasNext()) {
+				blobIds.add(keys.next().getName());
+			}
+			cursor = blobIds.size() < gcPageSize ? null : keys.getCursor();
+
+			Map<String, OrphanedImageBlob> marks = OfyService.ofy().load().type(OrphanedImageBlob.class).ids(blobIds);
+			List<OrphanedImageBlob> newMarks = new ArrayList<OrphanedImageBlob>();
+			List<OrphanedImageBlob> obsoleteMarks = new ArrayList<OrphanedImageBlob>();
+			for (String blobId : blobIds) {
+				OrphanedImageBlob mark = marks.get(blobId);
+				if (referencedBlobIds.contains(blobId)) {
+					if (mark != null) {
+						obsoleteMarks.add(mark);
+					}
+				} else if (mark == null) {
+					newMarks.add(new OrphanedImageBlob(blobId, now));
+				} else if (now - mark.getOrphanedSince() >= gracePeriodInMillis && deleteOrphanedBlob(mark)) {
+					result++;
+				}
+			}
+			OfyService.ofy().save().entities(newMarks).now();
+			OfyService.ofy().delete().entities(obsoleteMarks).now();
+			noNewMarks += newMarks.size();
+		} while (cursor != null);
+
+		int noStaleMarks = deleteStaleMarks();
+
+		log.info(LogBuilder.createSystemMessage().
+				addAction("collect orphaned blobs").
+				addParameter("referenced blobs", referencedBlobIds.size()).
+				addParameter("newly orphaned blobs", noNewMarks).
+				addParameter("deleted blobs", result).
+				addParameter("stale marks", noStaleMarks).toString());
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected Set<String> getReferencedBlobIds() {
+		Set<String> result = new HashSet<String>();
+		Cursor cursor = null;
+		do {
+			Query<ImageReference> query = OfyService.ofy().load().type(ImageReference.class).limit(gcPageSize);
+			if (cursor != null) {
+				query = query.startAt(cursor);
+			}
+			int noReferences = 0;
+			QueryResultIterator<ImageReference> references = query.iterator();
+			while (references.hasNext()) {
+				result.add(references.next().getBlobId());
+				noReferences++;
+			}
+			cursor = noReferences < gcPageSize ? null : references.getCursor();
+		} while (cursor != null);
+		return result;
+	}
+
+	/**
+	 * Deletes marks whose blobs are gone, page by page, and returns their number.
+	 *
+	 * @methodtype command
+	 */
+	protected int deleteStaleMarks() {
+		int result = 0;
+		Cursor cursor = null;
+		do {
+			Query<OrphanedImageBlob> query = OfyService.ofy().load().type(OrphanedImageBlob.class).limit(gcPageSize);
+			if (cursor != null) {
+				query = query.startAt(cursor);
+			}
+			List<String> blobIds = new ArrayList<String>(gcPageSize);
+			QueryResultIterator<Key<OrphanedImageBlob>> keys = query.keys().iterator();
+			while (keys.hasNext()) {
+				blobIds.add(keys.next().getName());
+			}
+			cursor = blobIds.size() < gcPageSize ? null : keys.getCursor();
+
+			blobIds.removeAll(OfyService.ofy().load().type(ImageWrapper.class).ids(blobIds).keySet());
+			OfyService.ofy().delete().type(OrphanedImageBlob.class).ids(blobIds).now();
+			result += blobIds.size();
+		} while (cursor != null);
+		return result;
+	}
+
+	/**
+	 * Checks once more that no reference points to the blob, then deletes the blob with its chunks and its mark in a
+	 * transaction that only proceeds if the mark is unchanged; writeReference() deletes the mark in a transaction, so
+	 * a blob referenced in the meantime is kept. Returns whether the blob was deleted.
+	 *
+	 * @methodtype command
+	 */
+	protected boolean deleteOrphanedBlob(final OrphanedImageBlob mark) {
+		final String blobId = mark.getBlobId();
+		if (OfyService.ofy().load().type(ImageReference.class).filter("blobId", blobId).keys().first().now() != null) {
+			OfyService.ofy().delete().entity(mark).now();
+			return false;
+		}
+
+		return OfyService.ofy().transact(new Work<Boolean>() {
+			@Override
+			public Boolean run() {
+				OrphanedImageBlob currentMark = OfyService.ofy().load().type(OrphanedImageBlob.class).id(blobId).now();
+				if (currentMark == null || currentMark.getOrphanedSince() != mark.getOrphanedSince()) {
+					return false;
+				}
+
+				ImageWrapper imageWrapper = OfyService.ofy().load().type(ImageWrapper.class).id(blobId).now();
+				if (imageWrapper != null && imageWrapper.getNoChunks() + 2 > MAX_ENTITY_GROUPS_PER_TRANSACTION) {
+					log.warning(LogBuilder.createSystemMessage().
+							addParameter("blob too large to delete in a transaction", blobId).toString());
+					return false;
+				}
+				if (imageWrapper != null && imageWrapper.isChunked()) {
+					OfyService.ofy().delete().type(ImageChunk.class).ids(getImageChunkIds(imageWrapper));
+				}
+				OfyService.ofy().delete().type(ImageWrapper.class).id(blobId);
+				OfyService.ofy().delete().entity(currentMark);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getGracePeriodInMillis() {
+		return gracePeriodInMillis;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setGracePeriodInMillis(long newGracePeriodInMillis) {
+		if (newGracePeriodInMillis < 0) {
+			throw new IllegalArgumentException("grace period must not be negative");
+		}
+		gracePeriodInMillis = newGracePeriodInMillis;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static String asImageReferenceId(String photoIdAsString, int size) {
+		return photoIdAsString + size;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static String asBlobId(byte[] imageData) {
+		return BLOB_ID_PREFIX + ContentHash.asHexString(imageData);
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static String asImageChunkId(String imageWrapperId, int index) {
+		return imageWrapperId + "-" + index;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected static List<String> getImageChunkIds(ImageWrapper imageWrapper) {
+		List<String> result = new ArrayList<String>(imageWrapper.getNoChunks());
+		for (int i = 0; i < imageWrapper.getNoChunks(); i++) {
+			result.add(asImageChunkId(imageWrapper.getId(), i));
+		}
+		return result;
+	}
+
+	/**
+	 * Wrapper class to store {@link Image}s in the Google Datastore with Objectify. Images of 1 MB or more are kept in
+	 * ImageChunks; the wrapper then only records their number.
 	 * 
  	 * @review
 	 */
@@ -134,6 +646,9 @@ public class DatastoreAdapter extends ImageStorage {
 
 		private byte[] imageData;
 
+		private int noChunks = 0;
+		private int length = 0;
+
 		public ImageWrapper() {
 			// just for Objectify to load it from Datastore
 		}
@@ -142,6 +657,13 @@ public class DatastoreAdapter extends ImageStorage {
 			this.id = id;
 		}
 
+		/**
+		 * @methodtype get
+		 */
+		public String getId() {
+			return id;
+		}
+
 		/**
 		 * @methodtype get
 		 */
@@ -149,10 +671,18 @@ public class DatastoreAdapter extends ImageStorage {
 			return ImagesServiceFactory.makeImage(imageData);
 		}
 
+		/**
+		 * @methodtype get
+		 */
+		public byte[] getImageData() {
+			return imageData;
+		}
+
 		/**
 		 * @methodtype set
 		 *
-		 * Can not handle images >= 1 MB because this is the upper limit of entities in Google Datastore.
+		 * Can not handle images >= 1 MB because this is the upper limit of entities in Google Datastore; larger images
+		 * are stored with setChunks().
 		 */
 		public void setImage(Image image) throws ArrayIndexOutOfBoundsException {
 			if(image.getImageData().length >= maxEntitySize) {
@@ -160,7 +690,136 @@ public class DatastoreAdapter extends ImageStorage {
 			}
 			else {
 				imageData = image.getImageData();
+				noChunks = 0;
+				length = imageData.length;
 			}
 		}
+
+		/**
+		 * @methodtype set
+		 */
+		public void setChunks(int noChunks, int length) {
+			this.imageData = null;
+			this.noChunks = noChunks;
+			this.length = length;
+		}
+
+		/**
+		 * @methodtype boolean-query
+		 */
+		public boolean isChunked() {
+			return noChunks > 0;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getNoChunks() {
+			return noChunks;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getLength() {
+			return length;
+		}
+	}
+
+	/**
+	 * One piece of an image of 1 MB or more, see ImageWrapper.
+	 */
+	@Entity
+	public static class ImageChunk {
+
+		/**
+		 * Leaves room for the key and the entity overhead within the 1 MB entity limit
+		 */
+		public static final int CHUNK_SIZE = 1000 * 1024;
+
+		@Id
+		private String id;
+
+		private byte[] data;
+
+		public ImageChunk() {
+			// just for Objectify to load it from Datastore
+		}
+
+		public ImageChunk(String id, byte[] data) {
+			this.id = id;
+			this.data = data;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public byte[] getData() {
+			return data;
+		}
+	}
+
+	/**
+	 * Maps photo id and size of an image to the blob, an ImageWrapper, that holds its data.
+	 */
+	@Entity
+	public static class ImageReference {
+
+		@Id
+		private String id;
+
+		@Index
+		private String blobId;
+
+		public ImageReference() {
+			// just for Objectify to load it from Datastore
+		}
+
+		public ImageReference(String id, String blobId) {
+			this.id = id;
+			this.blobId = blobId;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public String getBlobId() {
+			return blobId;
+		}
+	}
+
+	/**
+	 * Marks a blob that was found unreferenced by collectGarbage(), see DatastoreAdapter.
+	 */
+	@Entity
+	public static class OrphanedImageBlob {
+
+		@Id
+		private String blobId;
+
+		private long orphanedSince;
+
+		public OrphanedImageBlob() {
+			// just for Objectify to load it from Datastore
+		}
+
+		public OrphanedImageBlob(String blobId, long orphanedSince) {
+			this.blobId = blobId;
+			this.orphanedSince = orphanedSince;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public String getBlobId() {
+			return blobId;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public long getOrphanedSince() {
+			return orphanedSince;
+		}
 	}
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.utils.PatternInstance;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.InvalidParameterException;
+import java.util.logging.Logger;
+
+/**
+ * Adapter for a directory of the local file system, for self-hosted instances; App Engine standard instances can not
+ * write to their file system. Images are spread over 256 x 256 shard directories by the hash of their photo id, so
+ * that no directory grows too large. Writes go to a temporary file that is then moved into place, so readers see
+ * either the old or the new image but never a partly written one.
+ *
+ * Images are kept as plain files, which StaticDataServlet streams without reading them into the heap.
+ */
+@PatternInstance(
+		patternName = "Adapter",
+		participants = {
+				"Adapter@class.FileSystemAdapter",
+				"Client@Wahlzeit",
+				"Adaptee@FileSystem"
+		}
+)
+public class FileSystemAdapter extends ImageStorage {
+
+	private static final Logger log = Logger.getLogger(FileSystemAdapter.class.getName());
+
+	/**
+	 * System property for the root directory of the images; if it is set, images are stored in the file system
+	 * instead of the Google Datastore
+	 */
+	public static final String ROOT_DIR_PROPERTY = "wahlzeit.imageStorage.dir";
+
+	/**
+	 *
+	 */
+	protected static final String TEMP_FILE_SUFFIX = ".tmp";
+
+	/**
+	 *
+	 */
+	protected final Path rootDir;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public FileSystemAdapter(Path rootDir) throws IOException {
+		if (rootDir == null) {
+			throw new IllegalArgumentException("root directory should not be null");
+		}
+		this.rootDir = Files.createDirectories(rootDir);
+	}
+
+	@Override
+	protected void doWriteImage(Serializable image, String photoIdAsString, int size)
+			throws IOException, InvalidParameterException {
+		if (!(image instanceof Image)) {
+			log.warning(LogBuilder.createSystemMessage().
+					addMessage("did not get an Image type to store").
+					addParameter("image type", image.toString()).toString());
+			return;
+		}
+
+		Path file = getFile(photoIdAsString, size);
+		Path dir = Files.createDirectories(file.getParent());
+		Path tempFile = Files.createTempFile(dir, file.getFileName().toString(), TEMP_FILE_SUFFIX);
+		try {
+			Files.write(tempFile, ((Image) image).getImageData());
+			try {
+				Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+
+		log.config(LogBuilder.createSystemMessage().addMessage("image successfully written").toString());
+	}
+
+	@Override
+	protected Image doReadImage(String photoIdAsString, int size) throws IOException {
+		Path file = getFile(photoIdAsString, size);
+		if (!Files.isRegularFile(file)) {
+			log.info(LogBuilder.createSystemMessage().addMessage("does not exist!").toString());
+			return null;
+		}
+		return ImagesServiceFactory.makeImage(Files.readAllBytes(file));
+	}
+
+	@Override
+	protected boolean doDoesImageExist(String photoIdAsString, int size) {
+		boolean result = Files.isRegularFile(getFile(photoIdAsString, size));
+		log.config(LogBuilder.createSystemMessage().addParameter("does image exist", result).toString());
+		return result;
+	}
+
+	@Override
+	public boolean hasImageFiles() {
+		return true;
+	}
+
+	@Override
+	protected Path doGetImageFile(String photoIdAsString, int size) {
+		Path result = getFile(photoIdAsString, size);
+		return Files.isRegularFile(result) ? result : null;
+	}
+
+	/**
+	 * Returns the path of the image, e.g. root/3f/a0/x123_2 for size 2 of photo x123.
+	 *
+	 * @methodtype get
+	 */
+	protected Path getFile(String photoIdAsString, int size) {
+		if (photoIdAsString.contains("/") || photoIdAsString.contains("\\") || photoIdAsString.startsWith(".")) {
+			throw new IllegalArgumentException("Invalid photoId for a file name:" + photoIdAsString);
+		}
+
+		int hash = photoIdAsString.hashCode();
+		String firstShard = String.format("%02x", hash & 0xff);
+		String secondShard = String.format("%02x", (hash >>> 8) & 0xff);
+		return rootDir.resolve(firstShard).resolve(secondShard).resolve(photoIdAsString + "_" + size);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Path getRootDir() {
+		return rootDir;
+	}
+}
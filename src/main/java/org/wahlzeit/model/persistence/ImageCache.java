@@ -0,0 +1,614 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model.persistence;
+
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.utils.ContentHash;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * A cache for the bytes of scaled images, keyed by photo id and size. The bytes are kept off the heap in the slabs of
+ * a SlabAllocator, so that cached images do not add to garbage collection pauses; the cache reserves at most maxBytes
+ * bytes of slabs. When a size class runs out of chunks, either its least recently used image is evicted or, if all
+ * images of another slab were used less recently, that slab is emptied and reassigned to the size class; so a budget
+ * taken up by small images still admits large ones. Images larger than a slab are not cached.
+ *
+ * Images are stored by their content hash, so identical images of several photos, e.g. of a file uploaded twice,
+ * share one chunk.
+ *
+ * Images handed out by get() are pinned until they are released and are never overwritten while pinned.
+ *
+ * The cache lives in the memory of one instance and is not shared between instances.
+ */
+public class ImageCache {
+
+	private static final Logger log = Logger.getLogger(ImageCache.class.getName());
+
+	/**
+	 * System property for the memory budget of the cache in bytes, e.g. set in appengine-web.xml
+	 */
+	public static final String MAX_BYTES_PROPERTY = "wahlzeit.imageCache.maxBytes";
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Also the largest image that can be cached: larger images fail canCache() and are silently read from the
+	 * ImageStorage on every request. 1 MB fits the scaled sizes, which are at most 840x1200 pixels, and splits the
+	 * default budget into 64 slabs that can be reassigned between size classes.
+	 */
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+	public static final int DEFAULT_MIN_CHUNK_SIZE = 1024;
+
+	/**
+	 *
+	 */
+	protected static final String KEY_SEPARATOR = "/";
+
+	/**
+	 *
+	 */
+	protected static ImageCache instance = null;
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized ImageCache getInstance() {
+		if (instance == null) {
+			long maxBytes = Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES);
+			log.config(LogBuilder.createSystemMessage().
+					addAction("create image cache").
+					addParameter("max bytes", maxBytes).toString());
+			instance = new ImageCache(maxBytes);
+		}
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static synchronized void setInstance(ImageCache newInstance) {
+		instance = newInstance;
+	}
+
+	/**
+	 *
+	 */
+	protected final int minChunkSize;
+	protected SlabAllocator allocator;
+
+	/**
+	 * All cached images by photo id and size, and by content hash
+	 */
+	protected final Map<String, Entry> entries = new HashMap<String, Entry>();
+	protected final Map<String, Entry> entriesByContentId = new HashMap<String, Entry>();
+
+	/**
+	 * Cached contents per size class in access order, least recently used first
+	 */
+	protected final List<LinkedHashMap<String, Entry>> entriesBySizeClass =
+			new ArrayList<LinkedHashMap<String, Entry>>();
+
+	/**
+	 * Pins and last access per slab, to find slabs that can be reassigned
+	 */
+	protected final Map<SlabAllocator.Slab, SlabUse> slabUses = new IdentityHashMap<SlabAllocator.Slab, SlabUse>();
+
+	/**
+	 *
+	 */
+	protected long usedBytes = 0;
+	protected long accessClock = 0;
+
+	/**
+	 * Metrics
+	 */
+	protected long noHits = 0;
+	protected long noMisses = 0;
+	protected long noEvictions = 0;
+	protected long noRejections = 0;
+	protected long noSharedImages = 0;
+	protected long noReassignedSlabs = 0;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public ImageCache(long maxBytes) {
+		this(maxBytes, DEFAULT_SLAB_SIZE, DEFAULT_MIN_CHUNK_SIZE);
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public ImageCache(long maxBytes, int slabSize, int minChunkSize) {
+		this.minChunkSize = minChunkSize;
+		allocator = createAllocator(maxBytes, slabSize);
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected SlabAllocator createAllocator(long maxBytes, int slabSize) {
+		if (maxBytes < slabSize) {
+			throw new IllegalArgumentException("maxBytes must hold at least one slab of " + slabSize + " bytes");
+		}
+
+		SlabAllocator result = new SlabAllocator(slabSize, (int) Math.min(Integer.MAX_VALUE, maxBytes / slabSize),
+				minChunkSize);
+		entriesBySizeClass.clear();
+		slabUses.clear();
+		for (int i = 0; i < result.getNoSizeClasses(); i++) {
+			entriesBySizeClass.add(new LinkedHashMap<String, Entry>(16, 0.75f, true));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the cached image, pinned until it is released, or null if the image is not cached.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized CachedImage get(String photoIdAsString, int size) {
+		String key = asKey(photoIdAsString, size);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			noMisses++;
+			return null;
+		}
+
+		noHits++;
+		entriesBySizeClass.get(entry.chunk.getSizeClass()).get(entry.contentId); // marks the entry as recently used
+		touch(entry);
+		entry.noPins++;
+		getSlabUse(entry.chunk.getSlab()).noPins++;
+		return new CachedImage(entry.chunk.asReadOnlyBuffer(entry.length), this, entry);
+	}
+
+	/**
+	 * Tells whether an image of length bytes fits into a chunk of the cache
+	 *
+	 * @methodtype boolean-query
+	 */
+	public synchronized boolean canCache(int length) {
+		return allocator.getSizeClass(length) >= 0;
+	}
+
+	/**
+	 * Copies the image data into the cache, replacing older data of the same image; data that is cached already for
+	 * another image is shared. Least recently used images of the same size class are evicted if no chunk is free; if
+	 * all of them are pinned, the image is not cached.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized void put(String photoIdAsString, int size, byte[] imageData) {
+		if (imageData == null) {
+			throw new IllegalArgumentException("image data should not be null");
+		}
+
+		String key = asKey(photoIdAsString, size);
+		String contentId = ContentHash.asHexString(imageData);
+		Entry oldEntry = entries.get(key);
+		if (oldEntry != null) {
+			if (oldEntry.contentId.equals(contentId)) {
+				return;
+			}
+			unlink(key, oldEntry);
+		}
+
+		Entry entry = entriesByContentId.get(contentId);
+		if (entry == null) {
+			entry = doPut(key, contentId, imageData);
+			if (entry == null) {
+				return;
+			}
+		} else {
+			noSharedImages++;
+		}
+
+		entry.keys.add(key);
+		entries.put(key, entry);
+	}
+
+	/**
+	 * Copies the data into a chunk, evicting as needed; returns null if no chunk is available.
+	 *
+	 * @methodtype command
+	 */
+	protected Entry doPut(String key, String contentId, byte[] imageData) {
+		int sizeClass = allocator.getSizeClass(imageData.length);
+		if (sizeClass < 0) {
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("image too large for cache", key).
+					addParameter("bytes", imageData.length).toString());
+			noRejections++;
+			return null;
+		}
+
+		SlabAllocator.Chunk chunk = allocator.allocate(sizeClass);
+		while (chunk == null) {
+			Entry victim = getLeastRecentlyUsedEntry(sizeClass);
+			SlabAllocator.Slab victimSlab = getLeastRecentlyUsedSlab(sizeClass);
+			if (victimSlab != null && (victim == null || getLastAccess(victimSlab) < victim.lastAccess)) {
+				reassignSlab(victimSlab, sizeClass);
+			} else if (victim != null) {
+				evict(victim);
+			} else {
+				break;
+			}
+			chunk = allocator.allocate(sizeClass);
+		}
+		if (chunk == null) {
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("no chunk left for image", key).
+					addParameter("chunk size", allocator.getChunkSize(sizeClass)).toString());
+			noRejections++;
+			return null;
+		}
+
+		chunk.write(imageData);
+		Entry result = new Entry(contentId, allocator, chunk, imageData.length);
+		touch(result);
+		entriesByContentId.put(contentId, result);
+		entriesBySizeClass.get(sizeClass).put(contentId, result);
+		usedBytes += imageData.length;
+		return result;
+	}
+
+	/**
+	 * Returns the least recently used image of the size class that is not pinned, or null if there is none.
+	 *
+	 * @methodtype get
+	 */
+	protected Entry getLeastRecentlyUsedEntry(int sizeClass) {
+		for (Entry entry : entriesBySizeClass.get(sizeClass).values()) {
+			if (entry.noPins == 0) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the slab of another size class whose last access lies furthest back and none of whose images is pinned,
+	 * or null if there is none.
+	 *
+	 * @methodtype get
+	 */
+	protected SlabAllocator.Slab getLeastRecentlyUsedSlab(int sizeClass) {
+		SlabAllocator.Slab result = null;
+		long resultAccess = Long.MAX_VALUE;
+		for (SlabAllocator.Slab slab : allocator.getSlabs()) {
+			long lastAccess = getLastAccess(slab);
+			if (slab.getSizeClass() != sizeClass && getSlabUse(slab).noPins == 0 && lastAccess < resultAccess) {
+				result = slab;
+				resultAccess = lastAccess;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * A slab without images counts as never used, so it is reassigned before any image is evicted.
+	 *
+	 * @methodtype get
+	 */
+	protected long getLastAccess(SlabAllocator.Slab slab) {
+		return slab.getNoUsedChunks() == 0 ? 0 : getSlabUse(slab).lastAccess;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void evict(Entry entry) {
+		entriesBySizeClass.get(entry.chunk.getSizeClass()).remove(entry.contentId);
+		entriesByContentId.remove(entry.contentId);
+		for (String key : entry.keys) {
+			entries.remove(key);
+		}
+		usedBytes -= entry.length;
+		allocator.free(entry.chunk);
+		noEvictions++;
+	}
+
+	/**
+	 * Evicts all images of the slab and cuts it into chunks of the size class.
+	 *
+	 * @methodtype command
+	 */
+	protected void reassignSlab(SlabAllocator.Slab slab, int sizeClass) {
+		List<Entry> victims = new ArrayList<Entry>();
+		for (Entry entry : entriesBySizeClass.get(slab.getSizeClass()).values()) {
+			if (entry.chunk.getSlab() == slab) {
+				victims.add(entry);
+			}
+		}
+		for (Entry victim : victims) {
+			evict(victim);
+		}
+
+		allocator.reassign(slab, sizeClass);
+		noReassignedSlabs++;
+		log.config(LogBuilder.createSystemMessage().
+				addAction("reassign slab").
+				addParameter("evicted images", victims.size()).
+				addParameter("chunk size", allocator.getChunkSize(sizeClass)).toString());
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void touch(Entry entry) {
+		entry.lastAccess = ++accessClock;
+		getSlabUse(entry.chunk.getSlab()).lastAccess = entry.lastAccess;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected SlabUse getSlabUse(SlabAllocator.Slab slab) {
+		SlabUse result = slabUses.get(slab);
+		if (result == null) {
+			result = new SlabUse();
+			slabUses.put(slab, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Removes all sizes of the photo from the cache.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized void remove(String photoIdAsString) {
+		String prefix = photoIdAsString + KEY_SEPARATOR;
+		for (String key : new ArrayList<String>(entries.keySet())) {
+			if (key.startsWith(prefix)) {
+				unlink(key, entries.get(key));
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void clear() {
+		for (String key : new ArrayList<String>(entries.keySet())) {
+			unlink(key, entries.get(key));
+		}
+	}
+
+	/**
+	 * Removes the key from the cache; the entry is removed with its last key.
+	 *
+	 * @methodtype command
+	 */
+	protected void unlink(String key, Entry entry) {
+		entries.remove(key);
+		entry.keys.remove(key);
+		if (entry.keys.isEmpty()) {
+			doRemove(entry);
+		}
+	}
+
+	/**
+	 * Removes the entry from the cache; its chunk is freed once the entry is no longer pinned.
+	 *
+	 * @methodtype command
+	 */
+	protected void doRemove(Entry entry) {
+		entriesByContentId.remove(entry.contentId);
+		entriesBySizeClass.get(entry.chunk.getSizeClass()).remove(entry.contentId);
+		usedBytes -= entry.length;
+		entry.isRemoved = true;
+		if (entry.noPins == 0) {
+			entry.allocator.free(entry.chunk);
+		}
+	}
+
+	/**
+	 * Unpins an image handed out by get(), see CachedImage.release().
+	 *
+	 * @methodtype command
+	 */
+	protected synchronized void release(Entry entry) {
+		entry.noPins--;
+		if (entry.allocator == allocator) {
+			getSlabUse(entry.chunk.getSlab()).noPins--;
+		}
+		if (entry.noPins == 0 && entry.isRemoved) {
+			entry.allocator.free(entry.chunk); // the allocator of the chunk, which setMaxBytes() may have replaced
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static String asKey(String photoIdAsString, int size) {
+		if (photoIdAsString == null || "".equals(photoIdAsString)) {
+			throw new IllegalArgumentException("Invalid photoId:" + photoIdAsString);
+		}
+		return photoIdAsString + KEY_SEPARATOR + size;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getMaxBytes() {
+		return (long) allocator.getMaxSlabs() * allocator.getSlabSize();
+	}
+
+	/**
+	 * Changing the budget empties the cache; the old slabs are left to the garbage collector once their pinned images
+	 * are released. Released images give their chunks back to the old allocator, never to the new one.
+	 *
+	 * @methodtype set
+	 */
+	public synchronized void setMaxBytes(long newMaxBytes) {
+		SlabAllocator newAllocator = createAllocator(newMaxBytes, allocator.getSlabSize());
+		for (Entry entry : entriesByContentId.values()) {
+			entry.isRemoved = true;
+		}
+		entries.clear();
+		entriesByContentId.clear();
+		usedBytes = 0;
+		allocator = newAllocator;
+	}
+
+	/**
+	 * Number of bytes of cached image data; shared data counts once
+	 *
+	 * @methodtype get
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * Number of bytes of slabs reserved off the heap
+	 *
+	 * @methodtype get
+	 */
+	public synchronized long getReservedBytes() {
+		return (long) allocator.getNoSlabs() * allocator.getSlabSize();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int getNoImages() {
+		return entries.size();
+	}
+
+	/**
+	 * Number of distinct image contents, each held in one chunk
+	 *
+	 * @methodtype get
+	 */
+	public synchronized int getNoContents() {
+		return entriesByContentId.size();
+	}
+
+	/**
+	 * Number of put images whose data was cached already for another image
+	 *
+	 * @methodtype get
+	 */
+	public synchronized long getNoSharedImages() {
+		return noSharedImages;
+	}
+
+	/**
+	 * Number of slabs that were emptied and cut into chunks of another size class
+	 *
+	 * @methodtype get
+	 */
+	public synchronized long getNoReassignedSlabs() {
+		return noReassignedSlabs;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getNoHits() {
+		return noHits;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getNoMisses() {
+		return noMisses;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getNoEvictions() {
+		return noEvictions;
+	}
+
+	/**
+	 * Number of images that were not cached because they were too large or no chunk could be freed for them
+	 *
+	 * @methodtype get
+	 */
+	public synchronized long getNoRejections() {
+		return noRejections;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public synchronized String getMetricsAsString() {
+		return "images: " + entries.size() + ", contents: " + entriesByContentId.size() + ", bytes: " + usedBytes +
+				", reserved: " + getReservedBytes() + " of " + getMaxBytes() + ", hits: " + noHits + ", misses: " +
+				noMisses + ", evictions: " + noEvictions + ", reassigned slabs: " + noReassignedSlabs +
+				", rejections: " + noRejections + ", shared: " + noSharedImages;
+	}
+
+	/**
+	 * A cached image content, the chunk holding it and the keys of all images with that content.
+	 */
+	protected static class Entry {
+
+		/**
+		 *
+		 */
+		protected final String contentId;
+		protected final SlabAllocator allocator;
+		protected final SlabAllocator.Chunk chunk;
+		protected final int length;
+		protected final Set<String> keys = new HashSet<String>();
+		protected int noPins = 0;
+		protected boolean isRemoved = false;
+		protected long lastAccess = 0;
+
+		/**
+		 * @methodtype constructor
+		 */
+		protected Entry(String contentId, SlabAllocator allocator, SlabAllocator.Chunk chunk, int length) {
+			this.contentId = contentId;
+			this.allocator = allocator;
+			this.chunk = chunk;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Bookkeeping for one slab of the current allocator
+	 */
+	protected static class SlabUse {
+
+		/**
+		 *
+		 */
+		protected int noPins = 0;
+		protected long lastAccess = 0;
+	}
+
+}
@@ -1,11 +1,18 @@
 package org.wahlzeit.model.persistence;
 
+import com.google.appengine.api.images.Image;
 import org.wahlzeit.model.PhotoSize;
 import org.wahlzeit.services.LogBuilder;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Path;
 import java.security.InvalidParameterException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -18,6 +25,11 @@ public abstract class ImageStorage {
 	private static final Logger log = Logger.getLogger(ImageStorage.class.getName());
 	private static ImageStorage instance = null;
 
+	/**
+	 * Size under which the uploaded image itself is stored, so that sizes scaled on first request have a source
+	 */
+	public static final int SOURCE_IMAGE_SIZE = -1;
+
 	/**
 	 * @methodtype get
 	 */
@@ -55,7 +67,7 @@ public abstract class ImageStorage {
 
 		assertImageNotNull(image);
 		assertValidPhotoId(photoIdAsString);
-		PhotoSize.assertIsValidPhotoSizeAsInt(size);
+		assertIsValidImageSize(size);
 
 		log.config(LogBuilder.createSystemMessage().
 				addAction("write image to storage").
@@ -88,7 +100,7 @@ public abstract class ImageStorage {
 			throws IllegalArgumentException, IOException {
 
 		assertValidPhotoId(photoIdAsString);
-		PhotoSize.assertIsValidPhotoSizeAsInt(size);
+		assertIsValidImageSize(size);
 
 		log.config(LogBuilder.createSystemMessage().
 				addAction("read image from storage").
@@ -108,6 +120,84 @@ public abstract class ImageStorage {
 			throws IOException;
 
 
+	/**
+	 * Reads the data of an image from storage via photoId and the size. When the image is not found, null is returned.
+	 *
+	 * @methodtype get
+	 * @methodproperty wrapper
+	 */
+	public CachedImage readImageData(String photoIdAsString, int size)
+			throws IllegalArgumentException, IOException {
+
+		assertValidPhotoId(photoIdAsString);
+		assertIsValidImageSize(size);
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("read image data from storage").
+				addParameter("photo id", photoIdAsString).
+				addParameter("size", size).toString());
+
+		return doReadImageData(photoIdAsString, size);
+	}
+
+	/**
+	 * Reads the image data; storages that keep images in pieces should override this to hand them out unjoined.
+	 *
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected CachedImage doReadImageData(String photoIdAsString, int size)
+			throws IOException {
+
+		Serializable image = doReadImage(photoIdAsString, size);
+		return image instanceof Image ? CachedImage.wrap(((Image) image).getImageData()) : null;
+	}
+
+	/**
+	 * Reads the data of the images of the photos in the given size; photos without that image are left out.
+	 *
+	 * @methodtype get
+	 * @methodproperty wrapper
+	 */
+	public Map<String, CachedImage> readImageData(Collection<String> photoIdsAsStrings, int size)
+			throws IllegalArgumentException, IOException {
+
+		if (photoIdsAsStrings == null) {
+			throw new IllegalArgumentException("photo ids should not be null");
+		}
+		for (String photoIdAsString : photoIdsAsStrings) {
+			assertValidPhotoId(photoIdAsString);
+		}
+		assertIsValidImageSize(size);
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("read image data of several photos from storage").
+				addParameter("photos", photoIdsAsStrings.size()).
+				addParameter("size", size).toString());
+
+		return doReadImageData(photoIdsAsStrings, size);
+	}
+
+	/**
+	 * Reads the images one by one; storages that can read many images at once should override this.
+	 *
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected Map<String, CachedImage> doReadImageData(Collection<String> photoIdsAsStrings, int size)
+			throws IOException {
+
+		Map<String, CachedImage> result = new HashMap<String, CachedImage>();
+		for (String photoIdAsString : photoIdsAsStrings) {
+			CachedImage image = doReadImageData(photoIdAsString, size);
+			if (image != null) {
+				result.put(photoIdAsString, image);
+			}
+		}
+		return result;
+	}
+
+
 	// exist method ----------------------------------------------------------------------------------------------------
 
 	/**
@@ -120,7 +210,7 @@ public abstract class ImageStorage {
 			throws IllegalArgumentException {
 
 		assertValidPhotoId(photoIdAsString);
-		PhotoSize.assertIsValidPhotoSizeAsInt(size);
+		assertIsValidImageSize(size);
 
 		log.config(LogBuilder.createSystemMessage().
 				addAction("check if image exists in storage").
@@ -139,6 +229,123 @@ public abstract class ImageStorage {
 	 */
 	protected abstract boolean doDoesImageExist(String photoIdAsString, int size);
 
+	/**
+	 * Returns the sizes that exist in the storage for each of the photos; photos without any image are left out.
+	 *
+	 * @methodtype get
+	 * @methodproperty wrapper
+	 */
+	public Map<String, Set<Integer>> getExistingImageSizes(Collection<String> photoIdsAsStrings)
+			throws IllegalArgumentException {
+
+		if (photoIdsAsStrings == null) {
+			throw new IllegalArgumentException("photo ids should not be null");
+		}
+		for (String photoIdAsString : photoIdsAsStrings) {
+			assertValidPhotoId(photoIdAsString);
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("check which images exist in storage").
+				addParameter("photos", photoIdsAsStrings.size()).toString());
+
+		return doGetExistingImageSizes(photoIdsAsStrings);
+	}
+
+	/**
+	 * Actually checks which sizes exist; storages that can check many images at once should override this.
+	 *
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected Map<String, Set<Integer>> doGetExistingImageSizes(Collection<String> photoIdsAsStrings) {
+		Map<String, Set<Integer>> result = new HashMap<String, Set<Integer>>();
+		for (String photoIdAsString : photoIdsAsStrings) {
+			for (PhotoSize photoSize : PhotoSize.values()) {
+				if (doDoesImageExist(photoIdAsString, photoSize.asInt())) {
+					addExistingImageSize(result, photoIdAsString, photoSize.asInt());
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected static void addExistingImageSize(Map<String, Set<Integer>> sizes, String photoIdAsString, int size) {
+		Set<Integer> photoSizes = sizes.get(photoIdAsString);
+		if (photoSizes == null) {
+			photoSizes = new HashSet<Integer>();
+			sizes.put(photoIdAsString, photoSizes);
+		}
+		photoSizes.add(size);
+	}
+
+
+	// garbage collection methods --------------------------------------------------------------------------------------
+
+	/**
+	 * Removes stored data that no image refers to any more and returns the number of removed items.
+	 *
+	 * @methodtype command
+	 * @methodproperty wrapper
+	 */
+	public int collectGarbage() {
+		long startTime = System.currentTimeMillis();
+		int result = doCollectGarbage();
+		log.info(LogBuilder.createSystemMessage().
+				addAction("collect image garbage").
+				addParameter("removed", result).
+				addParameter("duration in ms", System.currentTimeMillis() - startTime).toString());
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty hook
+	 */
+	protected int doCollectGarbage() {
+		return 0;
+	}
+
+
+	// file methods ----------------------------------------------------------------------------------------------------
+
+	/**
+	 * Tells whether the storage keeps each image in a local file that can be streamed without reading it into memory,
+	 * see getImageFile()
+	 *
+	 * @methodtype boolean query
+	 * @methodproperty hook
+	 */
+	public boolean hasImageFiles() {
+		return false;
+	}
+
+	/**
+	 * Returns the local file of the image, or null if the image does not exist or the storage has no image files.
+	 *
+	 * @methodtype get
+	 * @methodproperty wrapper
+	 */
+	public Path getImageFile(String photoIdAsString, int size)
+			throws IllegalArgumentException {
+
+		assertValidPhotoId(photoIdAsString);
+		assertIsValidImageSize(size);
+
+		return doGetImageFile(photoIdAsString, size);
+	}
+
+	/**
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected Path doGetImageFile(String photoIdAsString, int size) {
+		return null;
+	}
+
 
 	// assertion methods -----------------------------------------------------------------------------------------------
 
@@ -163,4 +370,15 @@ public abstract class ImageStorage {
 			throw new IllegalArgumentException("Invalid photoId:" + photoId);
 		}
 	}
+
+	/**
+	 * @methodtype assert
+	 */
+	protected void assertIsValidImageSize(int size)
+			throws IllegalArgumentException {
+
+		if (size != SOURCE_IMAGE_SIZE) {
+			PhotoSize.assertIsValidPhotoSizeAsInt(size);
+		}
+	}
 }
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Allocates chunks of memory outside the Java heap. Memory is reserved in slabs, direct ByteBuffers of slabSize
+ * bytes, and each slab is cut into chunks of one size class. Size classes grow by GROWTH_FACTOR from minChunkSize up
+ * to slabSize, so a chunk wastes at most about a quarter of its size. Slabs are never given back; a freed chunk is
+ * reused for the next allocation of its size class, and a slab whose chunks are all free can be reassigned to another
+ * size class.
+ *
+ * Not thread-safe; ImageCache synchronizes all calls.
+ */
+public class SlabAllocator {
+
+	/**
+	 *
+	 */
+	public static final double GROWTH_FACTOR = 1.25;
+	protected static final int CHUNK_ALIGNMENT = 64;
+
+	/**
+	 *
+	 */
+	protected final int slabSize;
+	protected final int maxSlabs;
+	protected final int[] chunkSizes;
+
+	/**
+	 * Free chunks per size class
+	 */
+	protected final List<Deque<Chunk>> freeChunks;
+
+	/**
+	 * All slabs reserved so far
+	 */
+	protected final List<Slab> slabs = new ArrayList<Slab>();
+
+	/**
+	 * @methodtype constructor
+	 */
+	public SlabAllocator(int slabSize, int maxSlabs, int minChunkSize) {
+		if (minChunkSize <= 0 || slabSize < minChunkSize || maxSlabs <= 0) {
+			throw new IllegalArgumentException("invalid slab configuration");
+		}
+
+		this.slabSize = slabSize;
+		this.maxSlabs = maxSlabs;
+		this.chunkSizes = createChunkSizes(minChunkSize, slabSize);
+
+		freeChunks = new ArrayList<Deque<Chunk>>(chunkSizes.length);
+		for (int i = 0; i < chunkSizes.length; i++) {
+			freeChunks.add(new ArrayDeque<Chunk>());
+		}
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected static int[] createChunkSizes(int minChunkSize, int slabSize) {
+		List<Integer> sizes = new ArrayList<Integer>();
+		int size = minChunkSize;
+		while (size < slabSize) {
+			sizes.add(size);
+			int next = (int) Math.ceil(size * GROWTH_FACTOR);
+			size = (next + CHUNK_ALIGNMENT - 1) / CHUNK_ALIGNMENT * CHUNK_ALIGNMENT;
+		}
+		sizes.add(slabSize);
+
+		int[] result = new int[sizes.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = sizes.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the index of the smallest size class that fits length bytes, or -1 if length exceeds a slab.
+	 *
+	 * @methodtype get
+	 */
+	public int getSizeClass(int length) {
+		for (int i = 0; i < chunkSizes.length; i++) {
+			if (chunkSizes[i] >= length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns a free chunk of the size class, reserving a new slab if needed, or null if the class has no free chunk
+	 * and all slabs are in use.
+	 *
+	 * @methodtype command
+	 */
+	public Chunk allocate(int sizeClass) {
+		Deque<Chunk> free = freeChunks.get(sizeClass);
+		if (free.isEmpty() && slabs.size() < maxSlabs) {
+			Slab slab = new Slab(ByteBuffer.allocateDirect(slabSize));
+			slabs.add(slab);
+			carveSlab(slab, sizeClass);
+		}
+
+		Chunk result = free.poll();
+		if (result != null) {
+			result.owner.noUsedChunks++;
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void carveSlab(Slab slab, int sizeClass) {
+		slab.sizeClass = sizeClass;
+		int chunkSize = chunkSizes[sizeClass];
+		Deque<Chunk> free = freeChunks.get(sizeClass);
+		for (int offset = 0; offset + chunkSize <= slabSize; offset += chunkSize) {
+			free.add(new Chunk(slab, offset, sizeClass));
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void free(Chunk chunk) {
+		chunk.owner.noUsedChunks--;
+		freeChunks.get(chunk.sizeClass).push(chunk);
+	}
+
+	/**
+	 * Cuts a slab whose chunks are all free into chunks of another size class; its old chunks must not be used again.
+	 *
+	 * @methodtype command
+	 */
+	public void reassign(Slab slab, int sizeClass) {
+		if (slab.noUsedChunks > 0) {
+			throw new IllegalArgumentException("slab still has chunks in use");
+		}
+
+		Iterator<Chunk> oldChunks = freeChunks.get(slab.sizeClass).iterator();
+		while (oldChunks.hasNext()) {
+			if (oldChunks.next().owner == slab) {
+				oldChunks.remove();
+			}
+		}
+		carveSlab(slab, sizeClass);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public List<Slab> getSlabs() {
+		return Collections.unmodifiableList(slabs);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getSlabSize() {
+		return slabSize;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoSlabs() {
+		return slabs.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getMaxSlabs() {
+		return maxSlabs;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoSizeClasses() {
+		return chunkSizes.length;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getChunkSize(int sizeClass) {
+		return chunkSizes[sizeClass];
+	}
+
+	/**
+	 * A slab and the size class it is currently cut into.
+	 */
+	public static class Slab {
+
+		/**
+		 *
+		 */
+		protected final ByteBuffer buffer;
+		protected int sizeClass;
+		protected int noUsedChunks = 0;
+
+		/**
+		 * @methodtype constructor
+		 */
+		protected Slab(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getSizeClass() {
+			return sizeClass;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getNoUsedChunks() {
+			return noUsedChunks;
+		}
+	}
+
+	/**
+	 * A chunk of a slab. Reads and writes go through duplicates, so the position of the shared slab never changes.
+	 */
+	public static class Chunk {
+
+		/**
+		 *
+		 */
+		protected final Slab owner;
+		protected final ByteBuffer slab;
+		protected final int offset;
+		protected final int sizeClass;
+
+		/**
+		 * @methodtype constructor
+		 */
+		protected Chunk(Slab owner, int offset, int sizeClass) {
+			this.owner = owner;
+			this.slab = owner.buffer;
+			this.offset = offset;
+			this.sizeClass = sizeClass;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		public void write(byte[] data) {
+			ByteBuffer target = slab.duplicate();
+			target.position(offset);
+			target.put(data);
+		}
+
+		/**
+		 * Returns a read-only view of the first length bytes of the chunk; no data is copied.
+		 *
+		 * @methodtype conversion
+		 */
+		public ByteBuffer asReadOnlyBuffer(int length) {
+			ByteBuffer result = slab.duplicate();
+			result.position(offset);
+			result.limit(offset + length);
+			return result.slice().asReadOnlyBuffer();
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getSizeClass() {
+			return sizeClass;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public Slab getSlab() {
+			return owner;
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A BatchWriteReport summarizes a batched write of Persistent objects to the datastore, one entry per chunk.
+ */
+public class BatchWriteReport {
+
+	/**
+	 *
+	 */
+	protected List<Chunk> chunks = new ArrayList<Chunk>();
+
+	/**
+	 *
+	 */
+	protected int noSkippedObjects = 0;
+
+	/**
+	 * @methodtype command
+	 */
+	public void addChunk(Chunk chunk) {
+		chunks.add(chunk);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void addSkippedObject() {
+		noSkippedObjects++;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public List<Chunk> getChunks() {
+		return Collections.unmodifiableList(chunks);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoChunks() {
+		return chunks.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoWrittenObjects() {
+		int result = 0;
+		for (Chunk chunk : chunks) {
+			if (chunk.isSuccess()) {
+				result += chunk.getSize();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoFailedObjects() {
+		int result = 0;
+		for (Chunk chunk : chunks) {
+			if (!chunk.isSuccess()) {
+				result += chunk.getSize();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Number of objects that were not written because they were not dirty.
+	 *
+	 * @methodtype get
+	 */
+	public int getNoSkippedObjects() {
+		return noSkippedObjects;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isSuccess() {
+		return getNoFailedObjects() == 0;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public String asString() {
+		return "chunks: " + getNoChunks() + ", written: " + getNoWrittenObjects() + ", failed: " +
+				getNoFailedObjects() + ", skipped: " + getNoSkippedObjects();
+	}
+
+	/**
+	 * Result of writing one chunk with a single multi-entity save.
+	 */
+	public static class Chunk {
+
+		/**
+		 *
+		 */
+		protected final int index;
+		protected final int size;
+		protected final long durationInMillis;
+		protected final Exception failure;
+
+		/**
+		 * @methodtype constructor
+		 */
+		public Chunk(int index, int size, long durationInMillis, Exception failure) {
+			this.index = index;
+			this.size = size;
+			this.durationInMillis = durationInMillis;
+			this.failure = failure;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public long getDurationInMillis() {
+			return durationInMillis;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public Exception getFailure() {
+			return failure;
+		}
+
+		/**
+		 * @methodtype boolean-query
+		 */
+		public boolean isSuccess() {
+			return failure == null;
+		}
+	}
+
+}
@@ -23,6 +23,7 @@ package org.wahlzeit.services;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.logging.Logger;
@@ -38,6 +39,11 @@ public abstract class ObjectManager {
 	 */
 	public static final Key applicationRootKey = KeyFactory.createKey("Application", "Wahlzeit");
 
+	/**
+	 *
+	 */
+	public static final int DEFAULT_WRITE_BATCH_SIZE = 200;
+
 	private static final Logger log = Logger.getLogger(ObjectManager.class.getName());
 
 
@@ -127,12 +133,66 @@ public abstract class ObjectManager {
 	}
 
 	/**
-	 * Updates all entities of the given collection in the datastore.
+	 * Updates all entities of the given collection in the datastore. Dirty objects are collected into chunks of at
+	 * most getWriteBatchSize() objects, each chunk is written with one multi-entity save.
 	 */
-	protected void updateObjects(Collection<? extends Persistent> collection) {
+	protected BatchWriteReport updateObjects(Collection<? extends Persistent> collection) {
+		assertIsNonNullArgument(collection, "collection");
+
+		BatchWriteReport result = new BatchWriteReport();
+		List<Persistent> chunk = new ArrayList<Persistent>();
 		for (Persistent object : collection) {
-			updateObject(object);
+			if (object == null) {
+				continue;
+			}
+			if (object.isDirty()) {
+				chunk.add(object);
+				if (chunk.size() >= getWriteBatchSize()) {
+					writeChunk(chunk, result);
+					chunk = new ArrayList<Persistent>();
+				}
+			} else {
+				result.addSkippedObject();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			writeChunk(chunk, result);
 		}
+
+		log.info(LogBuilder.createSystemMessage().
+				addParameter("Datastore: batched write", result.asString()).toString());
+		return result;
+	}
+
+	/**
+	 * Writes one chunk of dirty objects with a single multi-entity save. A failing chunk is reported and its objects
+	 * stay dirty, so they are written again with the next update.
+	 */
+	protected void writeChunk(List<Persistent> chunk, BatchWriteReport report) {
+		int index = report.getNoChunks();
+		long startTime = System.currentTimeMillis();
+		Exception failure = null;
+		try {
+			OfyService.ofy().save().entities(chunk).now();
+			updateDependents(chunk);
+			for (Persistent object : chunk) {
+				object.resetWriteCount();
+			}
+		} catch (RuntimeException e) {
+			failure = e;
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("chunk", index).
+					addException("Datastore: could not write chunk", e).toString());
+		}
+		report.addChunk(new BatchWriteReport.Chunk(index, chunk.size(), System.currentTimeMillis() - startTime,
+				failure));
+	}
+
+	/**
+	 * Size of the chunks used by updateObjects; the Datastore accepts at most 500 entities per batch put.
+	 */
+	protected int getWriteBatchSize() {
+		return DEFAULT_WRITE_BATCH_SIZE;
 	}
 
 	/**
@@ -160,6 +220,15 @@ public abstract class ObjectManager {
 		}
 	}
 
+	/**
+	 * Updates all dependencies of the objects of a written chunk.
+	 */
+	protected void updateDependents(Collection<? extends Persistent> chunk) {
+		for (Persistent object : chunk) {
+			updateDependents(object);
+		}
+	}
+
 	/**
 	 * Updates all dependencies of the object.
 	 */
@@ -177,6 +246,19 @@ public abstract class ObjectManager {
 		OfyService.ofy().delete().entity(object).now();
 	}
 
+	/**
+	 * Deletes all given entities from the datastore with one batch delete.
+	 */
+	protected <E> void deleteObjects(Collection<E> objects) {
+		assertIsNonNullArgument(objects, "objects");
+
+		if (!objects.isEmpty()) {
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("Datastore: delete entities", objects.size()).toString());
+			OfyService.ofy().delete().entities(objects).now();
+		}
+	}
+
 	/**
 	 * Deletes all entities of the type that have a property with the specified value, e.g.
 	 * deleteObjects(PhotoCase.class, "wasDecided", true) to delete all cases that have been decided.
@@ -11,9 +11,13 @@ import org.wahlzeit.model.Moderator;
 import org.wahlzeit.model.Photo;
 //import org.wahlzeit.model.TrainPhoto;
 import org.wahlzeit.model.PhotoCase;
+import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.Tag;
 import org.wahlzeit.model.User;
+import org.wahlzeit.model.persistence.DatastoreAdapter.ImageChunk;
+import org.wahlzeit.model.persistence.DatastoreAdapter.ImageReference;
 import org.wahlzeit.model.persistence.DatastoreAdapter.ImageWrapper;
+import org.wahlzeit.model.persistence.DatastoreAdapter.OrphanedImageBlob;
 
 /**
  * A badly named class, to be renamed to ObjectifyService first, something better later.
@@ -36,7 +40,11 @@ public class OfyService {
 		factory().register(Client.class);
 		factory().register(Guest.class);
 		factory().register(PhotoCase.class);
+		factory().register(PhotoManager.IssuedThumbSpriteSheet.class);
 		factory().register(ImageWrapper.class);
+		factory().register(ImageChunk.class);
+		factory().register(ImageReference.class);
+		factory().register(OrphanedImageBlob.class);
 	}
 
 	public static Objectify ofy() {
@@ -20,6 +20,7 @@
 
 package org.wahlzeit.servlets;
 
+import org.wahlzeit.agents.PhotoWriteBehindQueue;
 import org.wahlzeit.main.ServiceMain;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.LogBuilder;
@@ -83,13 +84,16 @@ public abstract class AbstractServlet extends HttpServlet {
 		UserSession us = ensureUserSession(request);
 		SessionManager.setThreadLocalSession(us);
 
-		if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
-			displayNullPage(request, response);
-		} else {
-			myGet(request, response);
+		try {
+			if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
+				displayNullPage(request, response);
+			} else {
+				myGet(request, response);
+			}
+		} finally {
+			SessionManager.dropThreadLocalSession();
+			PhotoWriteBehindQueue.getInstance().endRequest();
 		}
-
-		SessionManager.dropThreadLocalSession();
 	}
 
 	/**
@@ -102,13 +106,16 @@ public abstract class AbstractServlet extends HttpServlet {
 		UserSession us = ensureUserSession(request);
 		SessionManager.setThreadLocalSession(us);
 
-		if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
-			displayNullPage(request, response);
-		} else {
-			myPost(request, response);
+		try {
+			if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
+				displayNullPage(request, response);
+			} else {
+				myPost(request, response);
+			}
+		} finally {
+			SessionManager.dropThreadLocalSession();
+			PhotoWriteBehindQueue.getInstance().endRequest();
 		}
-
-		SessionManager.dropThreadLocalSession();
 	}
 
 	/**
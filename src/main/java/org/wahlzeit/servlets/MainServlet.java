@@ -31,20 +31,24 @@ import org.wahlzeit.handlers.PartUtil;
 import org.wahlzeit.handlers.WebFormHandler;
 import org.wahlzeit.handlers.WebPageHandler;
 import org.wahlzeit.handlers.WebPartHandlerManager;
+import org.wahlzeit.model.PhotoUtil;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.SessionManager;
+import org.wahlzeit.utils.BufferPool;
+import org.wahlzeit.utils.ImageProbe;
 import org.wahlzeit.webparts.WebPart;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -60,6 +64,23 @@ public class MainServlet extends AbstractServlet {
 	 */
 	private static final long serialVersionUID = 42L; // any one does; class never serialized
 
+	/**
+	 * Uploads larger than this are rejected, see getMultiPartRequestArgs()
+	 */
+	public static final String MAX_UPLOAD_SIZE_PROPERTY = "wahlzeit.upload.maxBytes";
+	public static final int DEFAULT_MAX_UPLOAD_SIZE = 10 * 1024 * 1024;
+
+	/**
+	 * Uploads are read into pooled buffers of UPLOAD_BUFFER_SIZE bytes; at most 4 MB of them are kept between uploads
+	 */
+	protected static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+	protected static final BufferPool uploadBufferPool = new BufferPool(UPLOAD_BUFFER_SIZE, 64);
+
+	/**
+	 *
+	 */
+	protected final int maxUploadSize = Integer.getInteger(MAX_UPLOAD_SIZE_PROPERTY, DEFAULT_MAX_UPLOAD_SIZE);
+
 	/**
 	 *
 	 */
@@ -147,11 +168,25 @@ public class MainServlet extends AbstractServlet {
 	/**
 	 * Searches for files in the request and puts them in the resulting map with the key "fileName". When a file is
 	 * found, you can access its path by searching for elements with the key "fileName".
+	 *
+	 * Requests whose Content-Length exceeds the upload limit are not read at all; files that turn out to be larger
+	 * are dropped while reading. In both cases the user has no uploaded image and the upload fails.
 	 */
 	protected Map getMultiPartRequestArgs(HttpServletRequest request, UserSession us) throws IOException,
 			ServletException {
 		Map<String, String> result = new HashMap<String, String>();
 		result.putAll(request.getParameterMap());
+		if (us.getClient() instanceof User) {
+			((User) us.getClient()).setUploadedImage(null);
+		}
+
+		if (request.getContentLength() > maxUploadSize) {
+			log.warning(LogBuilder.createSystemMessage().
+					addMessage("upload too large").
+					addParameter("content length", request.getContentLength()).toString());
+			return result;
+		}
+
 		try {
 			ServletFileUpload upload = new ServletFileUpload();
 			FileItemIterator iterator = upload.getItemIterator(request);
@@ -163,10 +198,17 @@ public class MainServlet extends AbstractServlet {
 				if (!fileItemStream.isFormField()) {
 					InputStream inputStream = fileItemStream.openStream();
 					Image image = getImage(inputStream);
-					User user = (User) us.getClient();
-					user.setUploadedImage(image);
-					result.put("fileName", filename);
-					log.config(LogBuilder.createSystemMessage().addParameter("Uploaded image", filename).toString());
+					if (image != null) {
+						User user = (User) us.getClient();
+						user.setUploadedImage(image);
+						result.put("fileName", filename);
+						log.config(LogBuilder.createSystemMessage().
+								addParameter("Uploaded image", filename).toString());
+					} else {
+						log.warning(LogBuilder.createSystemMessage().
+								addMessage("rejected uploaded image").
+								addParameter("file name", filename).toString());
+					}
 				} else {
 					String key = fileItemStream.getFieldName();
 					InputStream is = fileItemStream.openStream();
@@ -185,22 +227,71 @@ public class MainServlet extends AbstractServlet {
 	}
 
 	/**
-	 * Create an Image object from the Input stream.
+	 * Create an Image object from the Input stream, or return null if it exceeds the upload limit or is a JPEG, PNG or
+	 * GIF of an invalid size. The size of these formats is read from the header, so they are rejected without being
+	 * decoded. Other formats like BMP, TIFF or WebP are let through; their size is checked when they are decoded for
+	 * scaling, see PhotoUtil.probeImage().
 	 */
 	private Image getImage(InputStream input) throws IOException {
-		Image image;
+		byte[] imageData;
 		try {
-			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-			byte[] buffer = new byte[1024 * 1024];
-			int bytesRead = input.read(buffer);
-			while (bytesRead != -1) {
-				outputStream.write(buffer, 0, bytesRead);
-				bytesRead = input.read(buffer);
-			}
-			image = ImagesServiceFactory.makeImage(outputStream.toByteArray());
+			imageData = readUpload(input, maxUploadSize);
 		} finally {
 			input.close();
 		}
-		return image;
+
+		if (imageData == null) {
+			log.warning(LogBuilder.createSystemMessage().addMessage("upload too large").toString());
+			return null;
+		}
+
+		ImageProbe imageProbe = ImageProbe.probe(imageData);
+		if (imageProbe != null && !PhotoUtil.hasValidSize(imageProbe.getWidth(), imageProbe.getHeight())) {
+			log.warning(LogBuilder.createSystemMessage().
+					addMessage("invalid image size").
+					addParameter("size", imageProbe.getWidth() + "x" + imageProbe.getHeight()).toString());
+			return null;
+		}
+
+		return ImagesServiceFactory.makeImage(imageData);
+	}
+
+	/**
+	 * Reads the stream into pooled buffers and copies it once into an array of the exact size. Returns null as soon
+	 * as more than maxBytes have been read.
+	 */
+	protected static byte[] readUpload(InputStream input, int maxBytes) throws IOException {
+		List<byte[]> buffers = new ArrayList<byte[]>();
+		try {
+			int length = 0;
+			int position = UPLOAD_BUFFER_SIZE;
+			byte[] buffer = null;
+			while (true) {
+				if (position == UPLOAD_BUFFER_SIZE) {
+					buffer = uploadBufferPool.acquire();
+					buffers.add(buffer);
+					position = 0;
+				}
+				int bytesRead = input.read(buffer, position, UPLOAD_BUFFER_SIZE - position);
+				if (bytesRead == -1) {
+					break;
+				}
+				position += bytesRead;
+				length += bytesRead;
+				if (length > maxBytes) {
+					return null;
+				}
+			}
+
+			byte[] result = new byte[length];
+			for (int i = 0, offset = 0; offset < length; i++, offset += UPLOAD_BUFFER_SIZE) {
+				System.arraycopy(buffers.get(i), 0, result, offset, Math.min(UPLOAD_BUFFER_SIZE, length - offset));
+			}
+			return result;
+		} finally {
+			for (byte[] buffer : buffers) {
+				uploadBufferPool.release(buffer);
+			}
+		}
 	}
 }
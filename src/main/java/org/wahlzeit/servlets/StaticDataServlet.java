@@ -2,16 +2,22 @@ package org.wahlzeit.servlets;
 
 import com.google.appengine.api.images.Image;
 import org.apache.http.HttpStatus;
+import org.wahlzeit.model.Client;
 import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoId;
 import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.PhotoSize;
-import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.model.ThumbSpriteSheet;
+import org.wahlzeit.model.UserManager;
+import org.wahlzeit.model.UserSession;
+import org.wahlzeit.model.persistence.CachedImage;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.utils.ImageFormat;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import java.io.IOException;
-import java.io.Serializable;
 import java.util.logging.Logger;
 
 /**
@@ -26,10 +32,33 @@ public class StaticDataServlet extends AbstractServlet {
 
 	Logger log = Logger.getLogger(StaticDataServlet.class.getName());
 
+	/**
+	 * Links to images carry the image version, so their content never changes and they can be cached for a year.
+	 * Requests without the current version are cached for a day and revalidated with the ETag afterwards.
+	 */
+	protected static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+	protected static final String DEFAULT_CACHE_CONTROL = "public, max-age=86400";
+
+	/**
+	 * Sprite sheets for moderators show flagged photos, so shared caches must not keep them
+	 */
+	protected static final String PRIVATE_IMMUTABLE_CACHE_CONTROL = "private, max-age=31536000, immutable";
+	protected static final String PRIVATE_DEFAULT_CACHE_CONTROL = "private, max-age=86400";
+
+	/**
+	 * Returned by getByteRange() if the requested range lies outside the image
+	 */
+	protected static final int[] UNSATISFIABLE_RANGE = new int[0];
+
 	@Override
 	public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		try {
 			String type = request.getParameter("type");
+			if ("sprite".equals(type)) {
+				doGetThumbSprite(request, response);
+				return;
+			}
+
 			String photoId = request.getParameter("photoId");
 			String sizeString = request.getParameter("size");
 			int size = Integer.valueOf(sizeString);
@@ -40,11 +69,27 @@ public class StaticDataServlet extends AbstractServlet {
 					addParameter("size", size).toString());
 
 			if ("image".equals(type)) {
-				Image image = getImage(photoId, size);
+				Photo photo = PhotoManager.getInstance().getPhoto(PhotoId.getIdFromString(photoId));
+				String eTag = photo == null ? null : getETag(photo, size);
+				if (photo != null && isNotModified(request, eTag, photo.getCreationTime())) {
+					setCacheHeaders(request, response, photo, eTag);
+					response.setStatus(HttpStatus.SC_NOT_MODIFIED);
+					return;
+				}
+
+				CachedImage image = getImage(photoId, size);
+				if (image == null && photo != null) {
+					image = createDeferredImage(photo, size);
+				}
 				if (image != null) {
-					response.getOutputStream().write(image.getImageData());
-					response.getOutputStream().flush();
-					response.setStatus(HttpStatus.SC_OK);
+					try {
+						if (photo != null) {
+							setCacheHeaders(request, response, photo, eTag);
+						}
+						writeImage(request, response, image, eTag);
+					} finally {
+						image.release();
+					}
 				} else {
 					log.warning(LogBuilder.createSystemMessage().addMessage("image not found").toString());
 					response.setStatus(HttpStatus.SC_NOT_FOUND);
@@ -63,29 +108,222 @@ public class StaticDataServlet extends AbstractServlet {
 	/**
 	 * @methodtype command
 	 *
-	 * Loads image either from the <@link>PhotoManager</@link> or from the <@link>ImageStorage</@link>. If image does
-	 * not exist, null is returned.
+	 * Serves the thumbnail sprite sheet named by the "sheet" parameter, see ThumbSpriteSheet. Only sheets issued to a
+	 * page are served, so clients cannot have arbitrary sheets rendered; sheets for moderators are only served to
+	 * moderators. Like image links, sprite links carry the version of the sheet and can be cached for a year.
 	 */
-	private Image getImage(String photoId, int size) {
-		Image image = null;
-		Photo photo = PhotoManager.getInstance().getPhoto(photoId);
-		if (photo != null) {
-			PhotoSize photoSize = PhotoSize.getFromInt(size);
-			image = photo.getImage(photoSize);
-		}
-		// if not in cache load from Google Cloud Storage
+	protected void doGetThumbSprite(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String sheetId = request.getParameter("sheet");
+		log.info(LogBuilder.createSystemMessage().
+				addAction("Provide thumb sprite").
+				addParameter("sheet", sheetId).toString());
+
+		PhotoManager photoManager = PhotoManager.getInstance();
+		ThumbSpriteSheet sheet = sheetId == null ? null : photoManager.getIssuedThumbSpriteSheet(sheetId);
+		if (sheet == null) {
+			log.warning(LogBuilder.createSystemMessage().addMessage("sprite not found").toString());
+			response.setStatus(HttpStatus.SC_NOT_FOUND);
+			return;
+		}
+		if (sheet.isForModerators() && !hasModeratorRights(request)) {
+			log.warning(LogBuilder.createSystemMessage().addMessage("sprite for moderators requested").toString());
+			response.setStatus(HttpStatus.SC_FORBIDDEN);
+			return;
+		}
+
+		String eTag = "\"sprite-" + sheet.getVersion() + "\"";
+		response.setHeader("ETag", eTag);
+		boolean isCurrentVersion = sheet.getVersion().equals(request.getParameter("v"));
+		if (sheet.isForModerators()) {
+			response.setHeader("Cache-Control",
+					isCurrentVersion ? PRIVATE_IMMUTABLE_CACHE_CONTROL : PRIVATE_DEFAULT_CACHE_CONTROL);
+		} else {
+			response.setHeader("Cache-Control", isCurrentVersion ? IMMUTABLE_CACHE_CONTROL : DEFAULT_CACHE_CONTROL);
+		}
+		if (isNotModified(request, eTag, Long.MAX_VALUE)) { // sheets are only validated by their ETag
+			response.setStatus(HttpStatus.SC_NOT_MODIFIED);
+			return;
+		}
+
+		CachedImage image = photoManager.getThumbSpriteImage(sheet);
 		if (image == null) {
-			Serializable rawImage = null;
-			try {
-				rawImage = ImageStorage.getInstance().readImage(photoId, size);
-			} catch (IOException e) {
-				log.warning(LogBuilder.createSystemMessage().addException("Problem when reading image.", e).toString());
+			response.setStatus(HttpStatus.SC_NOT_FOUND);
+			return;
+		}
+		try {
+			writeImage(request, response, image, eTag);
+		} finally {
+			image.release();
+		}
+	}
+
+	/**
+	 * Looks up the client of the request's session without creating a session or a guest for it.
+	 *
+	 * @methodtype boolean-query
+	 */
+	protected boolean hasModeratorRights(HttpServletRequest request) {
+		HttpSession httpSession = request.getSession(false);
+		String clientId = httpSession == null ? null : (String) httpSession.getAttribute(UserSession.CLIENT_ID);
+		Client client = clientId == null ? null : UserManager.getInstance().getClientById(clientId);
+		return client != null && client.hasModeratorRights();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Writes the whole image or, for a satisfiable single byte-range request, the requested part of it.
+	 */
+	protected void writeImage(HttpServletRequest request, HttpServletResponse response, CachedImage image, String eTag)
+			throws IOException {
+		int length = image.getLength();
+		response.setContentType(ImageFormat.getFromHeader(image.getPrefix(ImageFormat.MAX_MAGIC_NUMBER_LENGTH)).
+				getMimeType());
+		response.setHeader("Accept-Ranges", "bytes");
+
+		int[] range = null;
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null || ifRange.equals(eTag)) {
+			range = getByteRange(request.getHeader("Range"), length);
+		}
+
+		if (range == UNSATISFIABLE_RANGE) {
+			response.setHeader("Content-Range", "bytes */" + length);
+			response.setStatus(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+		} else if (range != null) {
+			int count = range[1] - range[0] + 1;
+			response.setStatus(HttpStatus.SC_PARTIAL_CONTENT);
+			response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+			response.setContentLength(count);
+			image.writeTo(response.getOutputStream(), range[0], count);
+			response.getOutputStream().flush();
+		} else {
+			response.setStatus(HttpStatus.SC_OK);
+			response.setContentLength(length);
+			image.writeTo(response.getOutputStream());
+			response.getOutputStream().flush();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void setCacheHeaders(HttpServletRequest request, HttpServletResponse response, Photo photo, String eTag) {
+		response.setHeader("ETag", eTag);
+		response.setDateHeader("Last-Modified", photo.getCreationTime());
+		if (photo.getImageVersion().equals(request.getParameter("v"))) {
+			response.setHeader("Cache-Control", IMMUTABLE_CACHE_CONTROL);
+		} else {
+			response.setHeader("Cache-Control", DEFAULT_CACHE_CONTROL);
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static String getETag(Photo photo, int size) {
+		return "\"" + photo.getId().asString() + "-" + size + "-" + photo.getImageVersion() + "\"";
+	}
+
+	/**
+	 * @methodtype boolean query
+	 *
+	 * If-None-Match takes precedence over If-Modified-Since; dates only have a precision of seconds.
+	 */
+	protected static boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				if (candidate.startsWith("W/")) {
+					candidate = candidate.substring(2);
+				}
+				if (candidate.equals("*") || candidate.equals(eTag)) {
+					return true;
+				}
 			}
-			if (rawImage != null && rawImage instanceof Image) {
-				image = (Image) rawImage;
+			return false;
+		}
+
+		long ifModifiedSince;
+		try {
+			ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Returns the first and last byte of a single range like "bytes=0-499", "bytes=500-" or "bytes=-500", or null if
+	 * the whole image should be sent, e.g. for a missing, malformed or multi-range header.
+	 */
+	protected static int[] getByteRange(String rangeHeader, int length) {
+		if (rangeHeader == null || !rangeHeader.startsWith("bytes=") || rangeHeader.indexOf(',') != -1) {
+			return null;
+		}
+
+		String range = rangeHeader.substring("bytes=".length()).trim();
+		int dash = range.indexOf('-');
+		if (dash == -1) {
+			return null;
+		}
+
+		long first;
+		long last;
+		try {
+			if (dash == 0) {
+				long suffixLength = Long.parseLong(range.substring(1));
+				if (suffixLength < 0) {
+					return null;
+				} else if (suffixLength == 0) {
+					return UNSATISFIABLE_RANGE;
+				}
+				first = Math.max(0, length - suffixLength);
+				last = length - 1;
+			} else {
+				first = Long.parseLong(range.substring(0, dash));
+				last = dash == range.length() - 1 ? length - 1 : Long.parseLong(range.substring(dash + 1));
 			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		if (first >= length) {
+			return UNSATISFIABLE_RANGE;
+		}
+		if (first < 0 || last < first) {
+			return null;
 		}
-		return image;
+		return new int[] {(int) first, (int) Math.min(last, length - 1)};
 	}
-}
 
+	/**
+	 * @methodtype command
+	 *
+	 * Scales and persists a size of the photo that was not created at upload; concurrent requests for the same size
+	 * share one scaling. If the photo does not come in that size, null is returned.
+	 */
+	private CachedImage createDeferredImage(Photo photo, int size) {
+		Image image = PhotoManager.getInstance().createDeferredImage(photo, PhotoSize.getFromInt(size));
+		if (image == null) {
+			return null;
+		}
+
+		return CachedImage.wrap(image.getImageData());
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Loads the image via the <@link>PhotoManager</@link>, which serves it from the <@link>ImageCache</@link> or
+	 * reads it from the <@link>ImageStorage</@link>. If image does not exist, null is returned. The image must be
+	 * released after use.
+	 */
+	private CachedImage getImage(String photoId, int size) {
+		PhotoSize photoSize = PhotoSize.getFromInt(size);
+		return PhotoManager.getInstance().getPhotoImage(PhotoId.getIdFromString(photoId), photoSize);
+	}
+}
@@ -0,0 +1,28 @@
+package org.wahlzeit.servlets;
+
+import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.services.LogBuilder;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.logging.Logger;
+
+/**
+ * This servlet handles the warmup request App Engine sends to a new instance before it receives traffic. It loads the
+ * images of the most praised photos into the memory of this instance, see PhotoManager.IMAGE_WARM_UP_PROPERTY.
+ */
+public class WarmupServlet extends HttpServlet {
+
+	private static final Logger log = Logger.getLogger(WarmupServlet.class.getName());
+
+	@Override
+	public void service(HttpServletRequest request, HttpServletResponse response) {
+		int noPhotos = Integer.getInteger(PhotoManager.IMAGE_WARM_UP_PROPERTY, 0);
+		if (noPhotos > 0) {
+			int noImages = PhotoManager.getInstance().warmUpImages(noPhotos);
+			log.config(LogBuilder.createSystemMessage().addParameter("warmed up images", noImages).toString());
+		}
+		response.setStatus(HttpServletResponse.SC_OK);
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A BK-tree over 64-bit keys in the Hamming metric; each key holds one or more int values. Finding all values whose key
+ * is within a small distance of a given key visits only a fraction of the tree, as the triangle inequality rules out
+ * all subtrees whose edge distance differs from the distance to their parent by more than the maximum distance.
+ *
+ * Removed values leave their node in place, as the node may still route to its children. The tree is not
+ * synchronized.
+ */
+public class BKTree {
+
+	/**
+	 *
+	 */
+	protected Node root = null;
+
+	/**
+	 * Number of key/value pairs
+	 */
+	protected int size = 0;
+
+	/**
+	 * @methodtype get
+	 */
+	public static int getDistance(long a, long b) {
+		return Long.bitCount(a ^ b);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void add(long key, int value) {
+		if (root == null) {
+			root = new Node(key);
+		}
+
+		Node node = root;
+		int distance = getDistance(key, node.key);
+		while (distance != 0) {
+			Node child = node.getChild(distance);
+			if (child == null) {
+				child = new Node(key);
+				node.addChild(distance, child);
+			}
+			node = child;
+			distance = getDistance(key, node.key);
+		}
+
+		node.addValue(value);
+		size++;
+	}
+
+	/**
+	 * Returns true if the value was stored under the key.
+	 *
+	 * @methodtype command
+	 */
+	public boolean remove(long key, int value) {
+		Node node = root;
+		while (node != null) {
+			int distance = getDistance(key, node.key);
+			if (distance == 0) {
+				boolean result = node.removeValue(value);
+				if (result) {
+					size--;
+				}
+				return result;
+			}
+			node = node.getChild(distance);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns all values whose key is at most maxDistance bits away from the key, closest first.
+	 *
+	 * @methodtype get
+	 */
+	public List<Match> findWithin(long key, int maxDistance) {
+		if (maxDistance < 0) {
+			throw new IllegalArgumentException("maxDistance must not be negative");
+		}
+
+		List<Match> result = new ArrayList<Match>();
+		if (root == null) {
+			return result;
+		}
+
+		Deque<Node> nodes = new ArrayDeque<Node>();
+		nodes.push(root);
+		while (!nodes.isEmpty()) {
+			Node node = nodes.pop();
+			int distance = getDistance(key, node.key);
+			if (distance <= maxDistance) {
+				for (int i = 0; i < node.noValues; i++) {
+					result.add(new Match(node.values[i], distance));
+				}
+			}
+			for (int i = 0; i < node.noChildren; i++) {
+				if (Math.abs(node.childDistances[i] - distance) <= maxDistance) {
+					nodes.push(node.children[i]);
+				}
+			}
+		}
+
+		Collections.sort(result, new Comparator<Match>() {
+			@Override
+			public int compare(Match a, Match b) {
+				return Integer.compare(a.distance, b.distance);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * A value found by findWithin() and the distance of its key.
+	 */
+	public static class Match {
+
+		/**
+		 *
+		 */
+		protected final int value;
+		protected final int distance;
+
+		/**
+		 * @methodtype constructor
+		 */
+		public Match(int value, int distance) {
+			this.value = value;
+			this.distance = distance;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getValue() {
+			return value;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getDistance() {
+			return distance;
+		}
+	}
+
+	/**
+	 * Children are kept in small arrays rather than a map or a 65-slot table, as most nodes have few of them.
+	 */
+	protected static class Node {
+
+		/**
+		 *
+		 */
+		protected final long key;
+
+		/**
+		 *
+		 */
+		protected int[] values = new int[1];
+		protected int noValues = 0;
+
+		/**
+		 *
+		 */
+		protected byte[] childDistances = null;
+		protected Node[] children = null;
+		protected int noChildren = 0;
+
+		/**
+		 * @methodtype constructor
+		 */
+		protected Node(long key) {
+			this.key = key;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		protected void addValue(int value) {
+			if (noValues == values.length) {
+				values = Arrays.copyOf(values, noValues * 2);
+			}
+			values[noValues++] = value;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		protected boolean removeValue(int value) {
+			for (int i = 0; i < noValues; i++) {
+				if (values[i] == value) {
+					values[i] = values[--noValues];
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		protected Node getChild(int distance) {
+			for (int i = 0; i < noChildren; i++) {
+				if (childDistances[i] == distance) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		protected void addChild(int distance, Node child) {
+			if (children == null) {
+				childDistances = new byte[2];
+				children = new Node[2];
+			} else if (noChildren == children.length) {
+				childDistances = Arrays.copyOf(childDistances, noChildren * 2);
+				children = Arrays.copyOf(children, noChildren * 2);
+			}
+			childDistances[noChildren] = (byte) distance;
+			children[noChildren++] = child;
+		}
+	}
+
+}
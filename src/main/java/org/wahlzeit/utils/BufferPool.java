@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of byte arrays of one size, e.g. to read streams without allocating a new buffer each time. At
+ * most maxPooledBuffers arrays are kept; arrays returned beyond that are left to the garbage collector.
+ */
+public class BufferPool {
+
+	/**
+	 *
+	 */
+	protected final int bufferSize;
+	protected final int maxPooledBuffers;
+
+	/**
+	 *
+	 */
+	protected final ConcurrentLinkedQueue<byte[]> pooledBuffers = new ConcurrentLinkedQueue<byte[]>();
+	protected final AtomicInteger noPooledBuffers = new AtomicInteger();
+
+	/**
+	 * @methodtype constructor
+	 */
+	public BufferPool(int bufferSize, int maxPooledBuffers) {
+		if (bufferSize <= 0 || maxPooledBuffers < 0) {
+			throw new IllegalArgumentException("invalid buffer pool configuration");
+		}
+
+		this.bufferSize = bufferSize;
+		this.maxPooledBuffers = maxPooledBuffers;
+	}
+
+	/**
+	 * Returns a pooled buffer or a new one if the pool is empty; its content is undefined.
+	 *
+	 * @methodtype get
+	 */
+	public byte[] acquire() {
+		byte[] result = pooledBuffers.poll();
+		if (result == null) {
+			return new byte[bufferSize];
+		}
+		noPooledBuffers.decrementAndGet();
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void release(byte[] buffer) {
+		if (buffer == null || buffer.length != bufferSize) {
+			throw new IllegalArgumentException("buffer does not belong to this pool");
+		}
+
+		if (noPooledBuffers.incrementAndGet() <= maxPooledBuffers) {
+			pooledBuffers.offer(buffer);
+		} else {
+			noPooledBuffers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoPooledBuffers() {
+		return noPooledBuffers.get();
+	}
+
+}
@@ -0,0 +1,814 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A compressed set of non-negative int values in the style of a roaring bitmap. Values are grouped by their upper 16
+ * bits; each group is stored in a container that is either a sorted array (sparse groups) or a plain bitmap of 2^16
+ * bits (dense groups). Set operations work container by container.
+ *
+ * Not thread-safe; callers synchronize where instances are shared.
+ */
+public class CompressedBitmap implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Array containers with more values are converted into bitmap containers and vice versa
+	 */
+	protected static final int MAX_ARRAY_CONTAINER_SIZE = 4096;
+
+	/**
+	 *
+	 */
+	protected transient char[] keys = new char[0];
+	protected transient Container[] containers = new Container[0];
+	protected transient int noContainers = 0;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public CompressedBitmap() {
+		// do nothing
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public static CompressedBitmap of(int... values) {
+		CompressedBitmap result = new CompressedBitmap();
+		for (int value : values) {
+			result.add(value);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public boolean add(int value) {
+		assertIsValidValue(value);
+		char high = highBits(value);
+		int index = indexOfKey(high);
+		if (index < 0) {
+			index = -index - 1;
+			insertContainer(index, high, new ArrayContainer());
+		}
+		int oldCardinality = containers[index].getCardinality();
+		containers[index] = containers[index].add(lowBits(value));
+		return containers[index].getCardinality() != oldCardinality;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public boolean remove(int value) {
+		if (value < 0) {
+			return false;
+		}
+		int index = indexOfKey(highBits(value));
+		if (index < 0) {
+			return false;
+		}
+		int oldCardinality = containers[index].getCardinality();
+		containers[index] = containers[index].remove(lowBits(value));
+		boolean result = containers[index].getCardinality() != oldCardinality;
+		if (containers[index].getCardinality() == 0) {
+			removeContainer(index);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean contains(int value) {
+		if (value < 0) {
+			return false;
+		}
+		int index = indexOfKey(highBits(value));
+		return index >= 0 && containers[index].contains(lowBits(value));
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int size() {
+		int result = 0;
+		for (int i = 0; i < noContainers; i++) {
+			result += containers[i].getCardinality();
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isEmpty() {
+		return noContainers == 0;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clear() {
+		keys = new char[0];
+		containers = new Container[0];
+		noContainers = 0;
+	}
+
+	/**
+	 * Returns the value with the given rank, i.e. the (rank + 1)-th smallest value.
+	 *
+	 * @methodtype get
+	 */
+	public int select(int rank) {
+		if (rank < 0) {
+			throw new IndexOutOfBoundsException("rank: " + rank);
+		}
+		int remaining = rank;
+		for (int i = 0; i < noContainers; i++) {
+			int cardinality = containers[i].getCardinality();
+			if (remaining < cardinality) {
+				return (keys[i] << 16) | containers[i].select(remaining);
+			}
+			remaining -= cardinality;
+		}
+		throw new IndexOutOfBoundsException("rank: " + rank + ", size: " + size());
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public int[] toArray() {
+		int[] result = new int[size()];
+		int offset = 0;
+		for (int i = 0; i < noContainers; i++) {
+			offset = containers[i].fill(result, offset, keys[i] << 16);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public CompressedBitmap copy() {
+		CompressedBitmap result = new CompressedBitmap();
+		result.keys = Arrays.copyOf(keys, noContainers);
+		result.containers = new Container[noContainers];
+		for (int i = 0; i < noContainers; i++) {
+			result.containers[i] = containers[i].copy();
+		}
+		result.noContainers = noContainers;
+		return result;
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	public static CompressedBitmap and(CompressedBitmap a, CompressedBitmap b) {
+		CompressedBitmap result = new CompressedBitmap();
+		int i = 0, j = 0;
+		while (i < a.noContainers && j < b.noContainers) {
+			if (a.keys[i] < b.keys[j]) {
+				i++;
+			} else if (a.keys[i] > b.keys[j]) {
+				j++;
+			} else {
+				result.appendIfNotEmpty(a.keys[i], a.containers[i].and(b.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	public static CompressedBitmap andNot(CompressedBitmap a, CompressedBitmap b) {
+		CompressedBitmap result = new CompressedBitmap();
+		int i = 0, j = 0;
+		while (i < a.noContainers) {
+			if (j >= b.noContainers || a.keys[i] < b.keys[j]) {
+				result.appendIfNotEmpty(a.keys[i], a.containers[i].copy());
+				i++;
+			} else if (a.keys[i] > b.keys[j]) {
+				j++;
+			} else {
+				result.appendIfNotEmpty(a.keys[i], a.containers[i].andNot(b.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	public static CompressedBitmap or(CompressedBitmap a, CompressedBitmap b) {
+		CompressedBitmap result = new CompressedBitmap();
+		int i = 0, j = 0;
+		while (i < a.noContainers || j < b.noContainers) {
+			if (j >= b.noContainers || (i < a.noContainers && a.keys[i] < b.keys[j])) {
+				result.appendIfNotEmpty(a.keys[i], a.containers[i].copy());
+				i++;
+			} else if (i >= a.noContainers || a.keys[i] > b.keys[j]) {
+				result.appendIfNotEmpty(b.keys[j], b.containers[j].copy());
+				j++;
+			} else {
+				result.appendIfNotEmpty(a.keys[i], a.containers[i].or(b.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof CompressedBitmap)) {
+			return false;
+		}
+		return Arrays.equals(toArray(), ((CompressedBitmap) other).toArray());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(toArray());
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+
+	// internals -------------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype helper
+	 */
+	protected static char highBits(int value) {
+		return (char) (value >>> 16);
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected static char lowBits(int value) {
+		return (char) (value & 0xFFFF);
+	}
+
+	/**
+	 * @methodtype assertion
+	 */
+	protected static void assertIsValidValue(int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("negative values are not supported: " + value);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected int indexOfKey(char key) {
+		return Arrays.binarySearch(keys, 0, noContainers, key);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void insertContainer(int index, char key, Container container) {
+		if (noContainers == keys.length) {
+			int newLength = Math.max(4, noContainers * 2);
+			keys = Arrays.copyOf(keys, newLength);
+			containers = Arrays.copyOf(containers, newLength);
+		}
+		System.arraycopy(keys, index, keys, index + 1, noContainers - index);
+		System.arraycopy(containers, index, containers, index + 1, noContainers - index);
+		keys[index] = key;
+		containers[index] = container;
+		noContainers++;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void removeContainer(int index) {
+		System.arraycopy(keys, index + 1, keys, index, noContainers - index - 1);
+		System.arraycopy(containers, index + 1, containers, index, noContainers - index - 1);
+		noContainers--;
+		containers[noContainers] = null;
+	}
+
+	/**
+	 * Appends a container with a key larger than all existing keys.
+	 *
+	 * @methodtype command
+	 */
+	protected void appendIfNotEmpty(char key, Container container) {
+		if (container.getCardinality() > 0) {
+			insertContainer(noContainers, key, container);
+		}
+	}
+
+	/**
+	 * Writes the containers in a compact form instead of the default object graph.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(noContainers);
+		for (int i = 0; i < noContainers; i++) {
+			out.writeChar(keys[i]);
+			containers[i].writeTo(out);
+		}
+	}
+
+	/**
+	 *
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		int size = in.readInt();
+		keys = new char[size];
+		containers = new Container[size];
+		noContainers = size;
+		for (int i = 0; i < size; i++) {
+			keys[i] = in.readChar();
+			containers[i] = Container.readFrom(in);
+		}
+	}
+
+	/**
+	 * Holds the lower 16 bits of all values that share the same upper 16 bits.
+	 */
+	protected abstract static class Container {
+
+		/**
+		 *
+		 */
+		protected static final byte ARRAY = 0;
+		protected static final byte BITMAP = 1;
+
+		/**
+		 * @methodtype command
+		 */
+		abstract Container add(char value);
+
+		/**
+		 * @methodtype command
+		 */
+		abstract Container remove(char value);
+
+		/**
+		 * @methodtype boolean-query
+		 */
+		abstract boolean contains(char value);
+
+		/**
+		 * @methodtype get
+		 */
+		abstract int getCardinality();
+
+		/**
+		 * @methodtype get
+		 */
+		abstract char select(int rank);
+
+		/**
+		 * Writes all values, combined with the given upper bits, into the array and returns the next offset.
+		 *
+		 * @methodtype command
+		 */
+		abstract int fill(int[] array, int offset, int highBits);
+
+		/**
+		 * @methodtype factory
+		 */
+		abstract Container copy();
+
+		/**
+		 * @methodtype conversion
+		 */
+		abstract BitmapContainer toBitmapContainer();
+
+		/**
+		 * @methodtype command
+		 */
+		abstract void writeTo(ObjectOutputStream out) throws IOException;
+
+		/**
+		 * @methodtype helper
+		 */
+		Container and(Container other) {
+			if (this instanceof ArrayContainer) {
+				return ((ArrayContainer) this).filter(other, true);
+			} else if (other instanceof ArrayContainer) {
+				return ((ArrayContainer) other).filter(this, true);
+			}
+			long[] words = ((BitmapContainer) this).words.clone();
+			long[] otherWords = ((BitmapContainer) other).words;
+			for (int i = 0; i < words.length; i++) {
+				words[i] &= otherWords[i];
+			}
+			return new BitmapContainer(words).normalize();
+		}
+
+		/**
+		 * @methodtype helper
+		 */
+		Container andNot(Container other) {
+			if (this instanceof ArrayContainer) {
+				return ((ArrayContainer) this).filter(other, false);
+			}
+			BitmapContainer result = (BitmapContainer) copy();
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				for (int i = 0; i < array.cardinality; i++) {
+					result.clear(array.values[i]);
+				}
+			} else {
+				long[] otherWords = ((BitmapContainer) other).words;
+				for (int i = 0; i < result.words.length; i++) {
+					result.words[i] &= ~otherWords[i];
+				}
+				result.recount();
+			}
+			return result.normalize();
+		}
+
+		/**
+		 * @methodtype helper
+		 */
+		Container or(Container other) {
+			if (this instanceof ArrayContainer && other instanceof ArrayContainer) {
+				ArrayContainer a = (ArrayContainer) this;
+				ArrayContainer b = (ArrayContainer) other;
+				if (a.cardinality + b.cardinality <= MAX_ARRAY_CONTAINER_SIZE) {
+					return a.merge(b);
+				}
+			}
+			BitmapContainer result = toBitmapContainer();
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				for (int i = 0; i < array.cardinality; i++) {
+					result.set(array.values[i]);
+				}
+			} else {
+				long[] otherWords = ((BitmapContainer) other).words;
+				for (int i = 0; i < result.words.length; i++) {
+					result.words[i] |= otherWords[i];
+				}
+				result.recount();
+			}
+			return result.normalize();
+		}
+
+		/**
+		 * @methodtype factory
+		 */
+		static Container readFrom(ObjectInputStream in) throws IOException {
+			byte type = in.readByte();
+			if (type == ARRAY) {
+				int cardinality = in.readChar() + 1;
+				char[] values = new char[cardinality];
+				for (int i = 0; i < cardinality; i++) {
+					values[i] = in.readChar();
+				}
+				return new ArrayContainer(values, cardinality);
+			} else if (type == BITMAP) {
+				long[] words = new long[BitmapContainer.NO_WORDS];
+				for (int i = 0; i < words.length; i++) {
+					words[i] = in.readLong();
+				}
+				return new BitmapContainer(words);
+			}
+			throw new IOException("unknown container type: " + type);
+		}
+	}
+
+	/**
+	 * Container for sparse groups, a sorted array of the lower 16 bits.
+	 */
+	protected static class ArrayContainer extends Container {
+
+		/**
+		 *
+		 */
+		protected char[] values;
+		protected int cardinality;
+
+		/**
+		 * @methodtype constructor
+		 */
+		ArrayContainer() {
+			this(new char[4], 0);
+		}
+
+		/**
+		 * @methodtype constructor
+		 */
+		ArrayContainer(char[] values, int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		Container add(char value) {
+			int index = Arrays.binarySearch(values, 0, cardinality, value);
+			if (index >= 0) {
+				return this;
+			}
+			if (cardinality >= MAX_ARRAY_CONTAINER_SIZE) {
+				return toBitmapContainer().add(value);
+			}
+			index = -index - 1;
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values, Math.min(MAX_ARRAY_CONTAINER_SIZE, cardinality * 2));
+			}
+			System.arraycopy(values, index, values, index + 1, cardinality - index);
+			values[index] = value;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		Container remove(char value) {
+			int index = Arrays.binarySearch(values, 0, cardinality, value);
+			if (index >= 0) {
+				System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+				cardinality--;
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		@Override
+		int getCardinality() {
+			return cardinality;
+		}
+
+		@Override
+		char select(int rank) {
+			return values[rank];
+		}
+
+		@Override
+		int fill(int[] array, int offset, int highBits) {
+			for (int i = 0; i < cardinality; i++) {
+				array[offset++] = highBits | values[i];
+			}
+			return offset;
+		}
+
+		@Override
+		Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, Math.max(1, cardinality)), cardinality);
+		}
+
+		@Override
+		BitmapContainer toBitmapContainer() {
+			BitmapContainer result = new BitmapContainer(new long[BitmapContainer.NO_WORDS]);
+			for (int i = 0; i < cardinality; i++) {
+				result.set(values[i]);
+			}
+			return result;
+		}
+
+		/**
+		 * Keeps the values that are (or are not) contained in the other container.
+		 *
+		 * @methodtype helper
+		 */
+		ArrayContainer filter(Container other, boolean keepContained) {
+			char[] result = new char[Math.max(1, cardinality)];
+			int size = 0;
+			for (int i = 0; i < cardinality; i++) {
+				if (other.contains(values[i]) == keepContained) {
+					result[size++] = values[i];
+				}
+			}
+			return new ArrayContainer(result, size);
+		}
+
+		/**
+		 * @methodtype helper
+		 */
+		ArrayContainer merge(ArrayContainer other) {
+			char[] result = new char[Math.max(1, cardinality + other.cardinality)];
+			int i = 0, j = 0, k = 0;
+			while (i < cardinality && j < other.cardinality) {
+				if (values[i] < other.values[j]) {
+					result[k++] = values[i++];
+				} else if (values[i] > other.values[j]) {
+					result[k++] = other.values[j++];
+				} else {
+					result[k++] = values[i++];
+					j++;
+				}
+			}
+			while (i < cardinality) {
+				result[k++] = values[i++];
+			}
+			while (j < other.cardinality) {
+				result[k++] = other.values[j++];
+			}
+			return new ArrayContainer(result, k);
+		}
+
+		@Override
+		void writeTo(ObjectOutputStream out) throws IOException {
+			out.writeByte(ARRAY);
+			out.writeChar(cardinality - 1); // empty containers are never written
+			for (int i = 0; i < cardinality; i++) {
+				out.writeChar(values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Container for dense groups, one bit for each of the 2^16 possible lower 16 bits.
+	 */
+	protected static class BitmapContainer extends Container {
+
+		/**
+		 *
+		 */
+		protected static final int NO_WORDS = (1 << 16) / 64;
+
+		/**
+		 *
+		 */
+		protected long[] words;
+		protected int cardinality;
+
+		/**
+		 * @methodtype constructor
+		 */
+		BitmapContainer(long[] words) {
+			this.words = words;
+			recount();
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		void recount() {
+			cardinality = 0;
+			for (long word : words) {
+				cardinality += Long.bitCount(word);
+			}
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		void set(char value) {
+			long mask = 1L << value;
+			if ((words[value >>> 6] & mask) == 0) {
+				words[value >>> 6] |= mask;
+				cardinality++;
+			}
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		void clear(char value) {
+			long mask = 1L << value;
+			if ((words[value >>> 6] & mask) != 0) {
+				words[value >>> 6] &= ~mask;
+				cardinality--;
+			}
+		}
+
+		/**
+		 * Converts this container into an array container if that is smaller.
+		 *
+		 * @methodtype conversion
+		 */
+		Container normalize() {
+			if (cardinality > MAX_ARRAY_CONTAINER_SIZE) {
+				return this;
+			}
+			char[] values = new char[Math.max(1, cardinality)];
+			int size = 0;
+			for (int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while (word != 0) {
+					values[size++] = (char) (i * 64 + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return new ArrayContainer(values, size);
+		}
+
+		@Override
+		Container add(char value) {
+			set(value);
+			return this;
+		}
+
+		@Override
+		Container remove(char value) {
+			clear(value);
+			return normalize();
+		}
+
+		@Override
+		boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		int getCardinality() {
+			return cardinality;
+		}
+
+		@Override
+		char select(int rank) {
+			int remaining = rank;
+			for (int i = 0; i < words.length; i++) {
+				int bitCount = Long.bitCount(words[i]);
+				if (remaining < bitCount) {
+					long word = words[i];
+					for (int j = 0; j < remaining; j++) {
+						word &= word - 1;
+					}
+					return (char) (i * 64 + Long.numberOfTrailingZeros(word));
+				}
+				remaining -= bitCount;
+			}
+			throw new IndexOutOfBoundsException("rank: " + rank);
+		}
+
+		@Override
+		int fill(int[] array, int offset, int highBits) {
+			for (int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while (word != 0) {
+					array[offset++] = highBits | (i * 64 + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return offset;
+		}
+
+		@Override
+		Container copy() {
+			return new BitmapContainer(words.clone());
+		}
+
+		@Override
+		BitmapContainer toBitmapContainer() {
+			return (BitmapContainer) copy();
+		}
+
+		@Override
+		void writeTo(ObjectOutputStream out) throws IOException {
+			out.writeByte(BITMAP);
+			for (long word : words) {
+				out.writeLong(word);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content hashes identify data by its bytes, so that equal data gets equal ids, e.g. for deduplicated images.
+ */
+public class ContentHash {
+
+	/**
+	 *
+	 */
+	public static final String ALGORITHM = "SHA-256";
+
+	/**
+	 *
+	 */
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Returns the SHA-256 hash of the data as 64 lower-case hex digits.
+	 *
+	 * @methodtype conversion
+	 */
+	public static String asHexString(byte[] data) {
+		if (data == null) {
+			throw new IllegalArgumentException("data should not be null");
+		}
+
+		byte[] hash;
+		try {
+			hash = MessageDigest.getInstance(ALGORITHM).digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(ALGORITHM + " is not available", e); // every JVM must provide it
+		}
+
+		char[] result = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			result[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+			result[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+		}
+		return new String(result);
+	}
+
+}
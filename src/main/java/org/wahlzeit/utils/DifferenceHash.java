@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * A perceptual hash ("dHash") of an image: the image is reduced to 9x8 gray cells and each of the 64 bits tells whether
+ * a cell is darker than its right neighbor. Scaled, recompressed or slightly retouched copies of an image get hashes
+ * only a few bits apart, see BKTree.getDistance().
+ */
+public class DifferenceHash {
+
+	/**
+	 *
+	 */
+	public static final int HASH_WIDTH = 8;
+	public static final int HASH_HEIGHT = 8;
+
+	/**
+	 * Images are decoded subsampled, but to at least this many pixels per cell and direction
+	 */
+	protected static final int MIN_PIXELS_PER_CELL = 4;
+
+	/**
+	 * Decodes the image and returns its hash; throws an IOException if the format is not supported.
+	 *
+	 * @methodtype conversion
+	 */
+	public static long compute(byte[] imageData) throws IOException {
+		if (imageData == null) {
+			throw new IllegalArgumentException("image data should not be null");
+		}
+
+		ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(imageData));
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) {
+				throw new IOException("unsupported image format");
+			}
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				int subsampling = getSubsampling(reader.getWidth(0), reader.getHeight(0));
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				return compute(reader.read(0, param));
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected static int getSubsampling(int width, int height) {
+		int minWidth = (HASH_WIDTH + 1) * MIN_PIXELS_PER_CELL;
+		int minHeight = HASH_HEIGHT * MIN_PIXELS_PER_CELL;
+		return Math.max(1, Math.min(width / minWidth, height / minHeight));
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public static long compute(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int noColumns = HASH_WIDTH + 1;
+
+		// box filter into gray cells, a row of pixels at a time
+		double[] sums = new double[noColumns * HASH_HEIGHT];
+		int[] counts = new int[noColumns * HASH_HEIGHT];
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			int cellOffset = (y * HASH_HEIGHT / height) * noColumns;
+			for (int x = 0; x < width; x++) {
+				int cell = cellOffset + x * noColumns / width;
+				sums[cell] += getLuminance(row[x]);
+				counts[cell]++;
+			}
+		}
+
+		long result = 0;
+		for (int cellY = 0; cellY < HASH_HEIGHT; cellY++) {
+			for (int cellX = 0; cellX < HASH_WIDTH; cellX++) {
+				int cell = cellY * noColumns + cellX;
+				boolean isDarker = getAverage(sums, counts, cell) < getAverage(sums, counts, cell + 1);
+				result = (result << 1) | (isDarker ? 1 : 0);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected static double getLuminance(int argb) {
+		return 0.299 * ((argb >> 16) & 0xff) + 0.587 * ((argb >> 8) & 0xff) + 0.114 * (argb & 0xff);
+	}
+
+	/**
+	 * Cells of images narrower or lower than the hash grid may stay empty; they count as black.
+	 *
+	 * @methodtype get
+	 */
+	protected static double getAverage(double[] sums, int[] counts, int cell) {
+		return counts[cell] == 0 ? 0 : sums[cell] / counts[cell];
+	}
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import java.util.Arrays;
+
+/**
+ * A Fenwick tree (binary indexed tree) over non-negative weights. Setting a weight, computing a prefix sum and finding
+ * the index for a given cumulative weight all take O(log n); this makes weighted random selection O(log n) as well.
+ * The tree grows on demand.
+ *
+ * Not thread-safe.
+ */
+public class FenwickTree {
+
+	/**
+	 * 1-based tree of partial sums; tree[0] is unused
+	 */
+	protected double[] tree;
+
+	/**
+	 * Plain weights, 0-based
+	 */
+	protected double[] weights;
+
+	/**
+	 *
+	 */
+	protected double totalWeight = 0;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public FenwickTree() {
+		this(16);
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public FenwickTree(int initialCapacity) {
+		int capacity = Math.max(1, initialCapacity);
+		tree = new double[capacity + 1];
+		weights = new double[capacity];
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getCapacity() {
+		return weights.length;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public double getWeight(int index) {
+		return index < weights.length ? weights[index] : 0;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public double getTotalWeight() {
+		return totalWeight;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setWeight(int index, double weight) {
+		if (index < 0) {
+			throw new IllegalArgumentException("negative index: " + index);
+		}
+		if (weight < 0 || Double.isNaN(weight) || Double.isInfinite(weight)) {
+			throw new IllegalArgumentException("invalid weight: " + weight);
+		}
+
+		ensureCapacity(index + 1);
+		double delta = weight - weights[index];
+		if (delta == 0) {
+			return;
+		}
+		weights[index] = weight;
+		totalWeight += delta;
+		for (int i = index + 1; i < tree.length; i += i & -i) {
+			tree[i] += delta;
+		}
+	}
+
+	/**
+	 * Returns the sum of the weights at indexes 0 to index - 1.
+	 *
+	 * @methodtype get
+	 */
+	public double getPrefixSum(int index) {
+		double result = 0;
+		for (int i = Math.min(index, weights.length); i > 0; i -= i & -i) {
+			result += tree[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the smallest index whose prefix sum including its own weight exceeds target, i.e. the index a uniformly
+	 * drawn target in [0, getTotalWeight()) falls into. Returns -1 if the total weight is zero.
+	 *
+	 * @methodtype get
+	 */
+	public int findIndex(double target) {
+		if (totalWeight <= 0) {
+			return -1;
+		}
+
+		int position = 0;
+		double remaining = target;
+		for (int step = Integer.highestOneBit(weights.length); step > 0; step >>= 1) {
+			int next = position + step;
+			if (next < tree.length && tree[next] <= remaining) {
+				position = next;
+				remaining -= tree[next];
+			}
+		}
+
+		// rounding errors may point past the last weight or at a zero weight
+		int result = Math.min(position, weights.length - 1);
+		while (result > 0 && weights[result] == 0) {
+			result--;
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void ensureCapacity(int minCapacity) {
+		if (minCapacity <= weights.length) {
+			return;
+		}
+
+		int capacity = Math.max(minCapacity, weights.length * 2);
+		weights = Arrays.copyOf(weights, capacity);
+		tree = new double[capacity + 1];
+		totalWeight = 0;
+		for (int i = 0; i < capacity; i++) {
+			totalWeight += weights[i];
+			int position = i + 1;
+			tree[position] += weights[i];
+			int parent = position + (position & -position);
+			if (parent <= capacity) {
+				tree[parent] += tree[position];
+			}
+		}
+	}
+
+}
@@ -97,6 +97,14 @@ public class HtmlUtil {
 		return "<img src=\"" + link + "\" width=\"" + width + "\" height=\"" + height + "\" />";
 	}
 
+	/**
+	 * Shows the width x height area at (x, y) of the sprite image as an inline block.
+	 */
+	public static String asSprite(String link, int width, int height, int x, int y) {
+		return "<span style=\"display: inline-block; width: " + width + "px; height: " + height + "px; " +
+				"background: url('" + link + "') -" + x + "px -" + y + "px no-repeat;\"></span>";
+	}
+
 	/**
 	 *
 	 */
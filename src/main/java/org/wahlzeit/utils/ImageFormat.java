@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+/**
+ * The image formats Wahlzeit can serve, recognized by the magic numbers at the start of the image data.
+ */
+public enum ImageFormat {
+
+	/**
+	 *
+	 */
+	JPEG("image/jpeg", new int[] {0xFF, 0xD8, 0xFF}),
+	PNG("image/png", new int[] {0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'}),
+	GIF("image/gif", new int[] {'G', 'I', 'F', '8'}),
+	UNKNOWN("application/octet-stream", new int[0]);
+
+	/**
+	 * Number of bytes getFromHeader() needs to recognize any format
+	 */
+	public static final int MAX_MAGIC_NUMBER_LENGTH = 8;
+
+	/**
+	 *
+	 */
+	private final String mimeType;
+	private final int[] magicNumber;
+
+	/**
+	 *
+	 */
+	ImageFormat(String mimeType, int[] magicNumber) {
+		this.mimeType = mimeType;
+		this.magicNumber = magicNumber;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public static ImageFormat getFromHeader(byte[] header) {
+		if (header == null) {
+			throw new IllegalArgumentException("header should not be null");
+		}
+
+		for (ImageFormat format : values()) {
+			if (format != UNKNOWN && format.matches(header)) {
+				return format;
+			}
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * @methodtype boolean query
+	 */
+	protected boolean matches(byte[] header) {
+		if (header.length < magicNumber.length) {
+			return false;
+		}
+		for (int i = 0; i < magicNumber.length; i++) {
+			if ((header[i] & 0xFF) != magicNumber[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getMimeType() {
+		return mimeType;
+	}
+
+}
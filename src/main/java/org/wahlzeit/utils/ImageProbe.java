@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Format and dimensions of an image, read from its header only: the SOF segment of a JPEG, the IHDR chunk of a PNG,
+ * or the logical screen descriptor of a GIF. No pixel data is decoded, so the size of an upload can be checked
+ * before anything expensive is done with it.
+ */
+public class ImageProbe {
+
+	/**
+	 * JPEG markers without a length
+	 */
+	protected static final int JPEG_SOI = 0xD8;
+	protected static final int JPEG_SOS = 0xDA;
+	protected static final int JPEG_TEM = 0x01;
+
+	/**
+	 *
+	 */
+	protected final ImageFormat format;
+	protected final int width;
+	protected final int height;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public ImageProbe(ImageFormat format, int width, int height) {
+		this.format = format;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Returns null if the data is no JPEG, PNG or GIF or its header is broken.
+	 *
+	 * @methodtype factory
+	 */
+	public static ImageProbe probe(byte[] imageData) {
+		if (imageData == null) {
+			throw new IllegalArgumentException("image data should not be null");
+		}
+
+		try {
+			return probe(new ByteArrayInputStream(imageData));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads only as far into the stream as the dimensions; returns null if the data is no JPEG, PNG or GIF or its
+	 * header is broken.
+	 *
+	 * @methodtype factory
+	 */
+	public static ImageProbe probe(InputStream input) throws IOException {
+		DataInputStream in = new DataInputStream(input);
+		byte[] magicNumber = new byte[ImageFormat.MAX_MAGIC_NUMBER_LENGTH];
+		try {
+			in.readFully(magicNumber, 0, 4);
+			ImageFormat format = ImageFormat.getFromHeader(magicNumber);
+			if (format == ImageFormat.JPEG) {
+				return probeJpeg(in, magicNumber[3] & 0xFF);
+			} else if (format == ImageFormat.GIF) {
+				in.skipBytes(2); // rest of version
+				return asImageProbe(ImageFormat.GIF, readLittleEndianShort(in), readLittleEndianShort(in));
+			}
+
+			in.readFully(magicNumber, 4, 4);
+			if (ImageFormat.getFromHeader(magicNumber) == ImageFormat.PNG) {
+				in.readInt(); // chunk length
+				if (in.readInt() != 0x49484452) { // "IHDR"
+					return null;
+				}
+				return asImageProbe(ImageFormat.PNG, in.readInt(), in.readInt());
+			}
+			return null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Walks the segments up to the first start-of-frame marker; marker is the first marker after SOI.
+	 *
+	 * @methodtype factory
+	 */
+	protected static ImageProbe probeJpeg(DataInputStream in, int marker) throws IOException {
+		while (true) {
+			while (marker == 0xFF) { // fill bytes
+				marker = in.readUnsignedByte();
+			}
+
+			if (marker == JPEG_SOS) {
+				return null; // image data starts without a frame header
+			} else if (marker == JPEG_SOI || marker == JPEG_TEM || (marker >= 0xD0 && marker <= 0xD7)) {
+				// markers without a segment
+			} else {
+				int length = in.readUnsignedShort();
+				if (length < 2) {
+					return null;
+				}
+				if (isStartOfFrame(marker)) {
+					in.readUnsignedByte(); // precision
+					int height = in.readUnsignedShort();
+					int width = in.readUnsignedShort();
+					return asImageProbe(ImageFormat.JPEG, width, height);
+				}
+				skipFully(in, length - 2);
+			}
+
+			if (in.readUnsignedByte() != 0xFF) {
+				return null;
+			}
+			marker = in.readUnsignedByte();
+		}
+	}
+
+	/**
+	 * SOF0 to SOF15, except DHT, JPG and DAC which share the range
+	 *
+	 * @methodtype boolean query
+	 */
+	protected static boolean isStartOfFrame(int marker) {
+		return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected static ImageProbe asImageProbe(ImageFormat format, int width, int height) {
+		return width > 0 && height > 0 ? new ImageProbe(format, width, height) : null;
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected static int readLittleEndianShort(DataInputStream in) throws IOException {
+		int low = in.readUnsignedByte();
+		return low | (in.readUnsignedByte() << 8);
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected static void skipFully(DataInputStream in, int noBytes) throws IOException {
+		while (noBytes > 0) {
+			int skipped = in.skipBytes(noBytes);
+			if (skipped <= 0) {
+				in.readUnsignedByte(); // throws EOFException at the end
+				skipped = 1;
+			}
+			noBytes -= skipped;
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public ImageFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+}
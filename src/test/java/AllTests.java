@@ -23,11 +23,13 @@ import org.junit.runners.*;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+	org.wahlzeit.agents.AgentsTests.class,
 	org.wahlzeit.handlers.HandlersTests.class,
 	org.wahlzeit.model.ModelTests.class,
 	org.wahlzeit.model.persistence.PersistenceTests.class,
 	org.wahlzeit.services.ServicesTests.class,
 	org.wahlzeit.services.mailing.MailingTests.class,
+	org.wahlzeit.servlets.ServletsTests.class,
 	org.wahlzeit.utils.UtilsTests.class
 })
 
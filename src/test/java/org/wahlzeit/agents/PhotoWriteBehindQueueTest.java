@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.agents;
+
+import org.junit.Test;
+import org.wahlzeit.model.PhotoId;
+import org.wahlzeit.services.BatchWriteReport;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for the PhotoWriteBehindQueue. Flushed batches are recorded instead of written.
+ */
+public class PhotoWriteBehindQueueTest {
+
+	/**
+	 *
+	 */
+	protected static class RecordingQueue extends PhotoWriteBehindQueue {
+
+		protected final List<List<PhotoId>> batches = new ArrayList<List<PhotoId>>();
+		protected final CountDownLatch flushed = new CountDownLatch(1);
+
+		public RecordingQueue(FlushMode flushMode, int maxSize, long maxAgeInMillis) {
+			super(flushMode, maxSize, maxAgeInMillis);
+		}
+
+		@Override
+		public BatchWriteReport savePhotos(Collection<PhotoId> photoIds) {
+			synchronized (batches) {
+				batches.add(new ArrayList<PhotoId>(photoIds));
+			}
+			recordFlush(photoIds.size(), 0);
+			flushed.countDown();
+			return new BatchWriteReport();
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRepeatedSavesAreCoalesced() {
+		RecordingQueue queue = new RecordingQueue(PhotoWriteBehindQueue.FlushMode.END_OF_REQUEST, 10, 60000);
+		PhotoId photoId = PhotoId.getNextId();
+		queue.enqueue(photoId);
+		queue.enqueue(PhotoId.getNextId());
+		queue.enqueue(photoId);
+
+		assertEquals(2, queue.getQueueDepth());
+		assertEquals(3, queue.getNoEnqueued());
+		assertEquals(1, queue.getNoCoalesced());
+		assertTrue(queue.batches.isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testEndOfRequestFlushesOnlyDueQueue() {
+		RecordingQueue queue = new RecordingQueue(PhotoWriteBehindQueue.FlushMode.END_OF_REQUEST, 3, 60000);
+		PhotoId photoId = PhotoId.getNextId();
+		queue.enqueue(photoId);
+		queue.enqueue(PhotoId.getNextId());
+		queue.enqueue(photoId);
+		queue.endRequest();
+		assertTrue(queue.batches.isEmpty());
+
+		for (int i = 0; i < 5; i++) {
+			queue.enqueue(PhotoId.getNextId());
+		}
+		assertTrue(queue.batches.isEmpty());
+		assertEquals(7, queue.getQueueDepth());
+
+		queue.endRequest();
+		assertEquals(1, queue.batches.size());
+		assertEquals(7, queue.batches.get(0).size());
+		assertEquals(photoId, queue.batches.get(0).get(0));
+		assertEquals(0, queue.getQueueDepth());
+
+		queue.endRequest();
+		assertEquals(1, queue.batches.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testOldQueueIsFlushedAtEndOfRequest() throws InterruptedException {
+		RecordingQueue queue = new RecordingQueue(PhotoWriteBehindQueue.FlushMode.END_OF_REQUEST, 10, 20);
+		queue.enqueue(PhotoId.getNextId());
+		Thread.sleep(40);
+		queue.enqueue(PhotoId.getNextId());
+		assertTrue(queue.batches.isEmpty());
+
+		queue.endRequest();
+		assertEquals(1, queue.batches.size());
+		assertEquals(2, queue.batches.get(0).size());
+		assertTrue(queue.getLastQueueDelayInMillis() >= 20);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testQueuedWritesRunWithFlushAndAreNotRetried() {
+		RecordingQueue queue = new RecordingQueue(PhotoWriteBehindQueue.FlushMode.END_OF_REQUEST, 2, 60000);
+		final List<String> done = new ArrayList<String>();
+		queue.enqueueWrite(new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("datastore not available");
+			}
+		});
+		queue.endRequest();
+		assertEquals(1, queue.getQueueDepth());
+
+		queue.enqueueWrite(new Runnable() {
+			@Override
+			public void run() {
+				done.add("written");
+			}
+		});
+		queue.endRequest();
+		assertEquals(1, done.size());
+		assertEquals(0, queue.getQueueDepth());
+		assertTrue(queue.batches.isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFailedFlushIsRequeued() {
+		PhotoWriteBehindQueue queue = new PhotoWriteBehindQueue(PhotoWriteBehindQueue.FlushMode.END_OF_REQUEST, 2,
+				60000) {
+			@Override
+			public BatchWriteReport savePhotos(Collection<PhotoId> photoIds) {
+				throw new IllegalStateException("datastore not available");
+			}
+		};
+		PhotoId photoId = PhotoId.getNextId();
+		queue.enqueue(photoId);
+		queue.enqueue(PhotoId.getNextId());
+
+		queue.endRequest(); // does not throw
+		assertEquals(2, queue.getQueueDepth());
+		assertEquals(2, queue.getNoRequeued());
+		assertFalse(queue.isTooOld());
+
+		try {
+			queue.flush();
+			fail("exception of the write should be passed on");
+		} catch (IllegalStateException e) {
+			assertEquals(2, queue.getQueueDepth());
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testOldQueueIsFlushedInBackground() throws InterruptedException {
+		RecordingQueue queue = new RecordingQueue(PhotoWriteBehindQueue.FlushMode.IN_PROCESS, 10, 20);
+		try {
+			queue.enqueue(PhotoId.getNextId());
+			assertTrue(queue.flushed.await(5, TimeUnit.SECONDS));
+			assertEquals(0, queue.getQueueDepth());
+			assertEquals(1, queue.getNoFlushedPhotos());
+		} finally {
+			queue.shutDown();
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testInProcessQueueIgnoresEndOfRequest() {
+		RecordingQueue queue = new RecordingQueue(PhotoWriteBehindQueue.FlushMode.IN_PROCESS, 10, 60000);
+		try {
+			queue.enqueue(PhotoId.getNextId());
+			queue.endRequest();
+			assertEquals(1, queue.getQueueDepth());
+		} finally {
+			queue.shutDown();
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullIdIsRejected() {
+		new RecordingQueue(PhotoWriteBehindQueue.FlushMode.END_OF_REQUEST, 10, 60000).enqueue((PhotoId) null);
+	}
+
+}
@@ -25,6 +25,8 @@ import org.junit.runners.*;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+	PraisePhotoFormHandlerTest.class,
+	ShowPhotoCasesPageHandlerTest.class,
 	TellFriendTest.class
 })
 
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.handlers;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.agents.PhotoWriteBehindQueue;
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoId;
+import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.model.UserSession;
+import org.wahlzeit.services.SessionManager;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+import org.wahlzeit.testEnvironmentProvider.SysConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.UserSessionProvider;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the PraisePhotoFormHandler class.
+ */
+public class PraisePhotoFormHandlerTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider()).
+			around(new SysConfigProvider()).
+			around(new UserSessionProvider());
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPraiseIsWrittenBehind() {
+		final UserSession session = (UserSession) SessionManager.getThreadLocalSession();
+		final Photo photo = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+		final Map<String, String> args = new HashMap<String, String>();
+		args.put(Photo.ID, photo.getId().asString());
+		args.put(Photo.PRAISE, "7");
+
+		PhotoWriteBehindQueue queue = new PhotoWriteBehindQueue(PhotoWriteBehindQueue.FlushMode.END_OF_REQUEST, 100,
+				60000);
+		PhotoWriteBehindQueue.setInstance(queue);
+		try {
+			ObjectifyService.run(new Work<Void>() {
+				@Override
+				public Void run() {
+					try {
+						PhotoManager.getInstance().addPhoto(photo);
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+					new PraisePhotoFormHandler().doHandlePost(session, args);
+					return null;
+				}
+			});
+
+			assertTrue(photo.getPraise() == (10 + 7) / 2.0);
+			assertEquals(1, queue.getQueueDepth());
+			assertTrue(PhotoManager.getInstance().getPhoto(photo.getId()) == photo);
+		} finally {
+			PhotoWriteBehindQueue.setInstance(null); // flushes the queue, the next getInstance() creates a new one
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.handlers;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoCase;
+import org.wahlzeit.model.PhotoCaseManager;
+import org.wahlzeit.model.PhotoId;
+import org.wahlzeit.model.ThumbSpriteSheet;
+import org.wahlzeit.model.UserSession;
+import org.wahlzeit.services.SessionManager;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+import org.wahlzeit.testEnvironmentProvider.SysConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.UserSessionProvider;
+import org.wahlzeit.webparts.WebPart;
+import org.wahlzeit.webparts.Writable;
+import org.wahlzeit.webparts.WritableList;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Test cases for the ShowPhotoCasesPageHandler class.
+ */
+public class ShowPhotoCasesPageHandlerTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider()).
+			around(new SysConfigProvider()).
+			around(new UserSessionProvider());
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFlaggedPhotosComeFromModeratorSheet() {
+		final UserSession session = (UserSession) SessionManager.getThreadLocalSession();
+		final Map<PhotoId, ThumbSpriteSheet> sheets = new HashMap<PhotoId, ThumbSpriteSheet>();
+		final ShowPhotoCasesPageHandler handler = new ShowPhotoCasesPageHandler() {
+			@Override
+			protected Writable makePhotoCaseForm(UserSession us, PhotoCase photoCase) {
+				Photo photo = photoCase.getPhoto();
+				sheets.put(photo.getId(), getThumbSpriteSheet(us, photo));
+				return new WritableList();
+			}
+		};
+
+		final Photo photo = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+		photo.setStatus(photo.getStatus().asFlagged(true));
+		assertFalse(photo.isVisible());
+		final PhotoCase photoCase = new PhotoCase(photo);
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				PhotoCaseManager.getInstance().addPhotoCase(photoCase);
+				try {
+					handler.makeWebPageBody(session, mock(WebPart.class));
+				} finally {
+					PhotoCaseManager.getInstance().removePhotoCase(photoCase);
+				}
+				return null;
+			}
+		});
+
+		ThumbSpriteSheet sheet = sheets.get(photo.getId());
+		assertTrue(sheet != null);
+		assertTrue(sheet.isForModerators());
+		assertEquals(0, sheet.indexOf(photo.getId()));
+		assertTrue(session.getThumbSpriteSheets() == null);
+	}
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Compares image scalers for the photo sizes: throughput in images per second, bytes allocated per image by all
+ * threads, and quality as PSNR against an area-averaged reference. The source is a synthetic 4000x3000 photo with
+ * smooth gradients, noise and fine stripes, which show aliasing.
+ *
+ * The ImagesServiceScaler, the current path, only works within App Engine and is reported as n/a elsewhere; the
+ * Java2D bilinear scaler stands in as the local baseline.
+ *
+ * Not part of the test suites; run the main method with the test classpath.
+ */
+public class ImageScalerBenchmark {
+
+	/**
+	 *
+	 */
+	private static final int SOURCE_WIDTH = 4000;
+	private static final int SOURCE_HEIGHT = 3000;
+	private static final int NO_WARM_UP_RUNS = 3;
+	private static final int NO_RUNS = 10;
+
+	/**
+	 *
+	 */
+	public static void main(String[] args) throws Exception {
+		BufferedImage sourceImage = createSourceImage();
+		Image source = ImagesServiceFactory.makeImage(asJpeg(sourceImage));
+
+		ImageScaler[] imageScalers = {
+				new ImagesServiceScaler(), new Java2DScaler(), new JavaImageScaler(1), new JavaImageScaler()
+		};
+		String[] names = {"images service", "java2d bilinear", "java 1 thread", "java all threads"};
+
+		System.out.println("size\tscaler\timages/s\tMB allocated/image\tPSNR dB");
+		for (PhotoSize size : new PhotoSize[] {PhotoSize.THUMB, PhotoSize.MEDIUM, PhotoSize.EXTRA_LARGE}) {
+			int targetWidth = size.calcAdjustedWidth(SOURCE_WIDTH, SOURCE_HEIGHT);
+			int targetHeight = size.calcAdjustedHeight(SOURCE_WIDTH, SOURCE_HEIGHT);
+			BufferedImage reference = createReference(sourceImage, targetWidth, targetHeight);
+
+			for (int i = 0; i < imageScalers.length; i++) {
+				System.out.println(size.asString() + "\t" + names[i] + "\t" +
+						measure(imageScalers[i], source, reference, targetWidth, targetHeight));
+			}
+		}
+	}
+
+	/**
+	 * Returns the tab-separated results of one scaler and size.
+	 */
+	private static String measure(ImageScaler imageScaler, Image source, BufferedImage reference, int targetWidth,
+			int targetHeight) {
+		Image scaled;
+		try {
+			scaled = imageScaler.scale(source, targetWidth, targetHeight);
+			for (int i = 1; i < NO_WARM_UP_RUNS; i++) {
+				imageScaler.scale(source, targetWidth, targetHeight);
+			}
+		} catch (Throwable t) {
+			return "n/a\tn/a\tn/a";
+		}
+
+		try {
+			long allocatedBytes = getAllocatedBytes();
+			long startTime = System.nanoTime();
+			for (int i = 0; i < NO_RUNS; i++) {
+				imageScaler.scale(source, targetWidth, targetHeight);
+			}
+			long duration = System.nanoTime() - startTime;
+			allocatedBytes = getAllocatedBytes() - allocatedBytes;
+
+			BufferedImage result = ImageIO.read(new ByteArrayInputStream(scaled.getImageData()));
+			return String.format("%.1f\t%.1f\t%.2f", NO_RUNS * 1e9 / duration,
+					allocatedBytes / (1024.0 * 1024.0) / NO_RUNS, getPsnr(reference, result));
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Sums the bytes allocated by all live threads, including the scaler threads.
+	 */
+	private static long getAllocatedBytes() {
+		com.sun.management.ThreadMXBean threadMXBean =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long result = 0;
+		for (long allocatedBytes : threadMXBean.getThreadAllocatedBytes(threadMXBean.getAllThreadIds())) {
+			result += Math.max(0, allocatedBytes);
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	private static BufferedImage createSourceImage() {
+		BufferedImage result = new BufferedImage(SOURCE_WIDTH, SOURCE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(42);
+		for (int y = 0; y < SOURCE_HEIGHT; y++) {
+			for (int x = 0; x < SOURCE_WIDTH; x++) {
+				int noise = random.nextInt(17) - 8;
+				int r = x * 255 / SOURCE_WIDTH + noise;
+				int g = y * 255 / SOURCE_HEIGHT + noise;
+				int b = x > SOURCE_WIDTH / 2 && y > SOURCE_HEIGHT / 2 ? ((x / 3) % 2) * 255 : 128 + noise;
+				result.setRGB(x, y, clamp(r) << 16 | clamp(g) << 8 | clamp(b));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	private static BufferedImage createReference(BufferedImage source, int targetWidth, int targetHeight) {
+		BufferedImage result = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = result.createGraphics();
+		graphics.drawImage(source.getScaledInstance(targetWidth, targetHeight, java.awt.Image.SCALE_AREA_AVERAGING),
+				0, 0, null);
+		graphics.dispose();
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	private static double getPsnr(BufferedImage reference, BufferedImage image) {
+		double sum = 0;
+		for (int y = 0; y < reference.getHeight(); y++) {
+			for (int x = 0; x < reference.getWidth(); x++) {
+				int a = reference.getRGB(x, y);
+				int b = image.getRGB(x, y);
+				for (int shift = 0; shift <= 16; shift += 8) {
+					int difference = ((a >> shift) & 0xFF) - ((b >> shift) & 0xFF);
+					sum += difference * difference;
+				}
+			}
+		}
+		double mse = sum / (reference.getWidth() * reference.getHeight() * 3);
+		return 10 * Math.log10(255 * 255 / mse);
+	}
+
+	/**
+	 *
+	 */
+	private static byte[] asJpeg(BufferedImage image) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpeg", result);
+		return result.toByteArray();
+	}
+
+	/**
+	 *
+	 */
+	private static int clamp(int value) {
+		return Math.max(0, Math.min(255, value));
+	}
+
+	/**
+	 * One bilinear drawImage with Java2D.
+	 */
+	private static class Java2DScaler extends ImageScaler {
+
+		@Override
+		protected Image doScale(Image source, int targetWidth, int targetHeight) throws Exception {
+			BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(source.getImageData()));
+			BufferedImage result = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+			Graphics2D graphics = result.createGraphics();
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.drawImage(decoded, 0, 0, targetWidth, targetHeight, null);
+			graphics.dispose();
+			return ImagesServiceFactory.makeImage(asJpeg(result));
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the JavaImageScaler class.
+ */
+public class JavaImageScalerTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testScaleJpeg() throws Exception {
+		BufferedImage source = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 600; y++) {
+			for (int x = 0; x < 800; x++) {
+				source.setRGB(x, y, (x / 4) << 16 | (y / 4) << 8 | 0x80);
+			}
+		}
+
+		JavaImageScaler imageScaler = new JavaImageScaler(2);
+		try {
+			BufferedImage scaled = asBufferedImage(imageScaler.scale(asImage(source, "jpeg"), 100, 75));
+			assertEquals(100, scaled.getWidth());
+			assertEquals(75, scaled.getHeight());
+			assertFalse(scaled.getColorModel().hasAlpha());
+
+			int pixel = scaled.getRGB(50, 37);
+			assertEquals(100, (pixel >> 16) & 0xFF, 4);
+			assertEquals(75, (pixel >> 8) & 0xFF, 4);
+			assertEquals(0x80, pixel & 0xFF, 4);
+		} finally {
+			imageScaler.shutDown();
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testScaleKeepsTransparency() throws Exception {
+		BufferedImage source = new BufferedImage(200, 200, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < 200; y++) {
+			for (int x = 0; x < 200; x++) {
+				source.setRGB(x, y, x < 100 ? 0xFFFF0000 : 0x00000000);
+			}
+		}
+
+		JavaImageScaler imageScaler = new JavaImageScaler(1);
+		try {
+			BufferedImage scaled = asBufferedImage(imageScaler.scale(asImage(source, "png"), 50, 50));
+			assertTrue(scaled.getColorModel().hasAlpha());
+			assertEquals(0xFFFF0000, scaled.getRGB(10, 25));
+			assertEquals(0, scaled.getRGB(40, 25) >>> 24);
+		} finally {
+			imageScaler.shutDown();
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testScaleAsyncSharesExecutor() throws Exception {
+		Image source = asImage(new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB), "jpeg");
+
+		JavaImageScaler imageScaler = new JavaImageScaler(1);
+		try {
+			List<Future<Image>> scalings = new ArrayList<Future<Image>>();
+			for (int i = 1; i <= 2 * ImageScaler.MAX_QUEUED_SCALINGS; i++) {
+				scalings.add(imageScaler.scaleAsync(source, 4 * i, 3 * i));
+			}
+			for (int i = 1; i <= scalings.size(); i++) {
+				assertEquals(4 * i, asBufferedImage(scalings.get(i - 1).get()).getWidth());
+			}
+			assertTrue(ImageScaler.getScalingExecutor() == ImageScaler.getScalingExecutor());
+		} finally {
+			imageScaler.shutDown();
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFilterWeights() {
+		JavaImageScaler.FilterWeights weights = new JavaImageScaler.FilterWeights(1000, 105);
+		for (float[] pixelWeights : weights.weights) {
+			float sum = 0;
+			for (float weight : pixelWeights) {
+				sum += weight;
+			}
+			assertEquals(1f, sum, 1e-4f);
+		}
+		assertEquals(0, weights.first[0]);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSubsampling() {
+		assertEquals(1, JavaImageScaler.getSubsampling(840, 1200, 420, 600));
+		assertEquals(4, JavaImageScaler.getSubsampling(4000, 3000, 420, 315));
+	}
+
+	/**
+	 *
+	 */
+	private static Image asImage(BufferedImage image, String format) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, format, out);
+		return ImagesServiceFactory.makeImage(out.toByteArray());
+	}
+
+	/**
+	 *
+	 */
+	private static BufferedImage asBufferedImage(Image image) throws IOException {
+		return ImageIO.read(new ByteArrayInputStream(image.getImageData()));
+	}
+}
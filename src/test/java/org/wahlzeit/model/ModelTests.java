@@ -32,6 +32,7 @@ import org.junit.runners.*;
 	FlagReasonTest.class,
 	GenderTest.class,
 	GuestTest.class,
+	JavaImageScalerTest.class,
 	LocationTest.class,
 	PhotoFilterTest.class,
 	TagsTest.class,
@@ -39,7 +40,11 @@ import org.junit.runners.*;
 	ValueTest.class,
 	TrainPhotoTest.class,
 	PhotoManagerTest.class,
-	PhotoFactoryTest.class
+	PhotoFactoryTest.class,
+	PhotoPraiseIndexTest.class,
+	PhotoTagIndexTest.class,
+	PhotoUtilTest.class,
+	ThumbSpriteSheetTest.class
 })
 
 public class ModelTests {}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.wahlzeit.services.OfyService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+/**
+ * Measures the cost of picking the next photo for a PhotoFilter, as done by PhotoManager.getVisiblePhoto, for growing
+ * numbers of photos. The "session" column round-trips the filters of several sessions through serialization on every
+ * request, like the session store does, and changes the photo indexes every CHANGE_INTERVAL requests.
+ *
+ * Not part of the test suites; run the main method with the test classpath.
+ */
+public class PhotoFilterBenchmark {
+
+	/**
+	 *
+	 */
+	private static final int[] NO_PHOTOS = {1000, 10000, 100000};
+	private static final int NO_REQUESTS = 2000;
+	private static final int NO_SESSIONS = 50;
+	private static final int CHANGE_INTERVAL = 100;
+	private static final String[] TAGS = {"ice", "sbahn", "ubahn", "tram", "steam", "diesel", "freight", "night"};
+
+	/**
+	 *
+	 */
+	public static void main(String[] args) throws Exception {
+		LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+		helper.setUp();
+		OfyService.factory();
+		try {
+			run();
+		} finally {
+			helper.tearDown();
+		}
+	}
+
+	/**
+	 *
+	 */
+	private static void run() throws Exception {
+		PhotoManager photoManager = PhotoManager.getInstance();
+		Random random = new Random(42);
+		int noPhotos = 0;
+
+		System.out.println("photos\tunfiltered ns/request\tfiltered ns/request\tsession ns/request");
+		for (int target : NO_PHOTOS) {
+			for (; noPhotos < target; noPhotos++) {
+				Photo photo = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+				photo.setOwnerId("user" + random.nextInt(100));
+				photo.setTags(new Tags(TAGS[random.nextInt(TAGS.length)]));
+				photoManager.doAddPhoto(photo);
+			}
+
+			long unfiltered = measure(new PhotoFilter());
+			PhotoFilter filter = new PhotoFilter();
+			filter.setTags(new Tags("ice"));
+			long filtered = measure(filter);
+			long session = measureSessions();
+			System.out.println(target + "\t" + unfiltered + "\t" + filtered + "\t" + session);
+		}
+	}
+
+	/**
+	 * Returns the average time of one request in nanoseconds.
+	 */
+	private static long measure(PhotoFilter filter) {
+		filter.generateDisplayablePhotoIds(); // initial build is paid once per filter
+
+		long startTime = System.nanoTime();
+		for (int i = 0; i < NO_REQUESTS; i++) {
+			doRequest(filter);
+		}
+		return (System.nanoTime() - startTime) / NO_REQUESTS;
+	}
+
+	/**
+	 * Returns the average time of one request in nanoseconds, including the session round-trip of the filter.
+	 */
+	private static long measureSessions() throws IOException, ClassNotFoundException {
+		byte[][] sessions = new byte[NO_SESSIONS][];
+		for (int i = 0; i < NO_SESSIONS; i++) {
+			PhotoFilter filter = new PhotoFilter();
+			filter.setTags(new Tags(TAGS[i % TAGS.length]));
+			sessions[i] = serialize(filter);
+		}
+
+		PhotoManager photoManager = PhotoManager.getInstance();
+		long startTime = System.nanoTime();
+		for (int i = 0; i < NO_REQUESTS; i++) {
+			if (i % CHANGE_INTERVAL == 0) {
+				synchronized (photoManager.visiblePhotoIds) {
+					photoManager.visiblePhotoIdsVersion++;
+				}
+			}
+			int session = i % NO_SESSIONS;
+			PhotoFilter filter = deserialize(sessions[session]);
+			doRequest(filter);
+			sessions[session] = serialize(filter);
+		}
+		return (System.nanoTime() - startTime) / NO_REQUESTS;
+	}
+
+	/**
+	 *
+	 */
+	private static void doRequest(PhotoFilter filter) {
+		PhotoManager photoManager = PhotoManager.getInstance();
+		filter.generateDisplayablePhotoIds();
+		PhotoId photoId = filter.getRandomDisplayablePhotoId();
+		Photo photo = photoManager.getPhotoFromId(photoId);
+		if (photo != null) {
+			filter.addProcessedPhoto(photo);
+		}
+	}
+
+	/**
+	 *
+	 */
+	private static byte[] serialize(PhotoFilter filter) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(filter);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 *
+	 */
+	private static PhotoFilter deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return (PhotoFilter) in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+}
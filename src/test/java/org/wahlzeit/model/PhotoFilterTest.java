@@ -70,10 +70,10 @@ public class PhotoFilterTest {
 		photoFilter.setTags(new Tags("test"));
 		assertEquals("test", photoFilter.getTags().asString());
 
-		photoFilter.displayablePhotoIds.add(new PhotoId(3));
+		photoFilter.displayablePhotoIds.add(new PhotoId(3).asInt());
 		assertTrue(photoFilter.displayablePhotoIds.size() == 1);
 
-		photoFilter.processedPhotoIds.add(new PhotoId(2));
+		photoFilter.processedPhotoIds.add(new PhotoId(2).asInt());
 		assertTrue(photoFilter.processedPhotoIds.size() == 1);
 
 		photoFilter.clear();
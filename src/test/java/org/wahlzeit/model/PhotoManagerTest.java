@@ -20,16 +20,43 @@
 
 package org.wahlzeit.model;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.rules.RuleChain;
+import org.wahlzeit.model.persistence.CachedImage;
+import org.wahlzeit.model.persistence.DatastoreAdapter;
+import org.wahlzeit.model.persistence.ImageCache;
+import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.services.ObjectManager;
+import org.wahlzeit.services.OfyService;
 import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
 import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
 import org.wahlzeit.testEnvironmentProvider.SysConfigProvider;
 import org.wahlzeit.testEnvironmentProvider.UserServiceProvider;
 import org.wahlzeit.testEnvironmentProvider.UserSessionProvider;
+import org.wahlzeit.utils.CompressedBitmap;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PhotoManagerTest {
 	
@@ -46,4 +73,556 @@ public class PhotoManagerTest {
 		assertTrue(PhotoManager.instance instanceof TrainPhotoManager);
 	}
 
+	@Test
+	public void testVisiblePhotoIdsFollowStatus() {
+		PhotoManager photoManager = PhotoManager.getInstance();
+		Photo photo = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+		photoManager.doAddPhoto(photo);
+		assertTrue(photoManager.isVisiblePhoto(photo.getId()));
+
+		long version = photoManager.getPhotoIndexVersion();
+		photo.setStatus(PhotoStatus.MODERATED);
+		assertFalse(photoManager.isVisiblePhoto(photo.getId()));
+		assertFalse(photoManager.getVisiblePhotoIds().contains(photo.getId().asInt()));
+		assertTrue(photoManager.getPhotoIndexVersion() != version);
+
+		photo.setStatus(PhotoStatus.VISIBLE);
+		assertTrue(photoManager.isVisiblePhoto(photo.getId()));
+	}
+
+	@Test
+	public void testAddPhotoIfAbsentKeepsCachedInstance() {
+		PhotoManager photoManager = PhotoManager.getInstance();
+		PhotoId photoId = PhotoId.getIdFromInt(PhotoId.getNextIdAsInt());
+		Photo cached = new Photo(photoId);
+		photoManager.doAddPhoto(cached);
+
+		assertTrue(photoManager.doAddPhotoIfAbsent(new Photo(photoId)) == cached);
+		assertTrue(photoManager.getPhoto(photoId) == cached);
+		assertTrue(photoManager.getPhotoSnapshot().contains(cached));
+	}
+
+	@Test
+	public void testEvictionKeepsDirtyPhotos() {
+		PhotoManager photoManager = new PhotoManager();
+		photoManager.setMaxCacheSize(2);
+
+		Photo dirty = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+		photoManager.doAddPhoto(dirty);
+		for (int i = 0; i < 3; i++) {
+			Photo photo = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+			photo.resetWriteCount();
+			photoManager.doAddPhoto(photo);
+		}
+
+		assertTrue(photoManager.getCacheSize() == 2);
+		assertTrue(photoManager.doGetPhotoFromId(dirty.getId()) == dirty);
+		assertTrue(photoManager.getVisiblePhotoIds().size() == 4);
+	}
+
+	@Test
+	public void testSavedEvictedPhotoReplacesCleanCopy() {
+		PhotoManager photoManager = new PhotoManager();
+		PhotoId photoId = PhotoId.getIdFromInt(PhotoId.getNextIdAsInt());
+		Photo held = new Photo(photoId);
+		held.resetWriteCount();
+		photoManager.doAddPhoto(held);
+		photoManager.doEvictPhoto(held);
+
+		Photo reloaded = new Photo(photoId);
+		reloaded.resetWriteCount();
+		photoManager.doAddPhotoIfAbsent(reloaded);
+
+		held.setStatus(PhotoStatus.MODERATED);
+		photoManager.readmitPhoto(held);
+		assertTrue(photoManager.doGetPhotoFromId(photoId) == held);
+		assertFalse(photoManager.isVisiblePhoto(photoId));
+		assertTrue(photoManager.getNoReadmissions() == 1);
+	}
+
+	@Test
+	public void testNewPhotoCheckStaysInMemory() {
+		PhotoManager photoManager = new PhotoManager();
+		long noCacheMisses = photoManager.getNoCacheMisses();
+		photoManager.assertIsNewPhoto(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+		assertTrue(photoManager.getNoCacheMisses() == noCacheMisses);
+	}
+
+	@Test
+	public void testCandidatePhotoIdsAreSharedUntilIndexChanges() {
+		PhotoManager photoManager = PhotoManager.getInstance();
+		List<String> filterConditions = Arrays.asList("tg:sharedcandidates");
+		Photo photo = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+		photo.setTags(new Tags("sharedcandidates"));
+		photoManager.doAddPhoto(photo);
+
+		CompressedBitmap candidates = photoManager.getCandidatePhotoIds(filterConditions);
+		assertTrue(photoManager.getCandidatePhotoIds(new ArrayList<String>(filterConditions)) == candidates);
+		assertTrue(candidates.size() == 1);
+
+		Photo other = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+		other.setTags(new Tags("sharedcandidates"));
+		photoManager.doAddPhoto(other);
+		assertTrue(photoManager.getCandidatePhotoIds(filterConditions).size() == 2);
+		assertTrue(candidates.size() == 1);
+	}
+
+	@Test
+	public void testVisiblePhotoSkipsProcessedPhotos() {
+		PhotoManager photoManager = PhotoManager.getInstance();
+		Set<PhotoId> photoIds = new HashSet<PhotoId>();
+		for (int i = 0; i < 3; i++) {
+			Photo photo = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+			photo.setTags(new Tags("processedcandidates"));
+			photoManager.doAddPhoto(photo);
+			photoIds.add(photo.getId());
+		}
+
+		PhotoFilter first = new PhotoFilter();
+		first.setTags(new Tags("processedcandidates"));
+		for (int i = 0; i < 3; i++) {
+			Photo photo = photoManager.getVisiblePhoto(first);
+			assertTrue(photoIds.contains(photo.getId()));
+			assertFalse(first.isProcessedPhotoId(photo.getId()));
+			first.addProcessedPhoto(photo);
+		}
+		assertTrue(photoManager.getVisiblePhoto(first) == null);
+
+		PhotoFilter second = new PhotoFilter();
+		second.setTags(new Tags("processedcandidates"));
+		assertTrue(photoIds.contains(photoManager.getVisiblePhoto(second).getId()));
+		List<String> filterConditions = second.getFilterConditions();
+		assertTrue(second.getDisplayablePhotoIds() == photoManager.getCandidatePhotoIds(filterConditions));
+		assertTrue(photoManager.getCandidatePhotoIds(filterConditions).size() == 3);
+	}
+
+	@Test
+	public void testPraiseWeightedSelectionOfNarrowFilter() {
+		PhotoManager photoManager = PhotoManager.getInstance();
+		for (int i = 0; i < 20; i++) {
+			photoManager.doAddPhoto(new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt())));
+		}
+		Photo praised = createPraisedPhoto(100, "narrowpraise");
+		Photo ignored = createPraisedPhoto(1, "narrowpraise");
+
+		PhotoFilter filter = new PhotoFilter();
+		filter.setTags(new Tags("narrowpraise"));
+		filter.setSelectionMode(PhotoFilter.SelectionMode.PRAISE_WEIGHTED);
+		filter.generateDisplayablePhotoIds();
+		int noPraised = 0;
+		for (int i = 0; i < 200; i++) {
+			PhotoId photoId = filter.getRandomDisplayablePhotoId();
+			assertTrue(photoId.equals(praised.getId()) || photoId.equals(ignored.getId()));
+			if (photoId.equals(praised.getId())) {
+				noPraised++;
+			}
+		}
+		assertTrue(noPraised > 180);
+
+		filter.addProcessedPhoto(praised);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(ignored.getId(), filter.getRandomDisplayablePhotoId());
+		}
+	}
+
+	@Test
+	public void testSelectionModeSetting() {
+		System.setProperty(PhotoFilter.SELECTION_MODE_PROPERTY, "PRAISE_WEIGHTED");
+		try {
+			PhotoFilter filter = PhotoFactory.getInstance().createPhotoFilter();
+			assertEquals(PhotoFilter.SelectionMode.PRAISE_WEIGHTED, filter.getSelectionMode());
+
+			System.setProperty(PhotoFilter.SELECTION_MODE_PROPERTY, "unknown");
+			filter = PhotoFactory.getInstance().createPhotoFilter();
+			assertEquals(PhotoFilter.SelectionMode.UNIFORM, filter.getSelectionMode());
+		} finally {
+			System.clearProperty(PhotoFilter.SELECTION_MODE_PROPERTY);
+		}
+	}
+
+	@Test
+	public void testPersistedTagsAreRebuiltOnReload() {
+		final PhotoManager photoManager = new PhotoManager();
+		final PhotoId photoId = PhotoId.getIdFromInt(PhotoId.getNextIdAsInt());
+		final Photo photo = new Photo(photoId);
+		photo.setTags(new Tags("alpha, beta"));
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				photoManager.doAddPhoto(photo);
+				photoManager.updateTags(photo);
+				assertEquals(new HashSet<String>(Arrays.asList("tg:alpha", "tg:beta")), readTagTexts(photoId));
+				return null;
+			}
+		});
+
+		photo.resetWriteCount();
+		photoManager.doEvictPhoto(photo);
+		assertFalse(photoManager.persistedTags.containsKey(photoId));
+
+		final Photo reloaded = new Photo(photoId);
+		reloaded.setTags(new Tags("alpha, beta"));
+		reloaded.resetWriteCount();
+		assertTrue(photoManager.doAddPhotoIfAbsent(reloaded) == reloaded);
+		Set<String> persistedTags = photoManager.persistedTags.get(photoId);
+		assertEquals(new HashSet<String>(Arrays.asList("tg:alpha", "tg:beta")), persistedTags);
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				reloaded.setTags(new Tags("beta, gamma"));
+				photoManager.updateTags(reloaded);
+				assertEquals(new HashSet<String>(Arrays.asList("tg:beta", "tg:gamma")), readTagTexts(photoId));
+				assertEquals(readTagTexts(photoId), photoManager.persistedTags.get(photoId));
+				return null;
+			}
+		});
+	}
+
+	@Test
+	public void testUnknownPersistedTagsAreReadFromDatastore() {
+		final PhotoManager photoManager = new PhotoManager();
+		final PhotoId photoId = PhotoId.getIdFromInt(PhotoId.getNextIdAsInt());
+		final Photo photo = new Photo(photoId);
+		photo.setTags(new Tags("delta"));
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				photoManager.doAddPhoto(photo);
+				photoManager.updateTags(photo);
+
+				// as after a failed update, the tags in memory are gone while the photo is still held
+				photoManager.persistedTags.remove(photoId);
+				photo.setTags(new Tags("epsilon"));
+				photoManager.updateTags(photo);
+				assertEquals(new HashSet<String>(Arrays.asList("tg:epsilon")), readTagTexts(photoId));
+				return null;
+			}
+		});
+	}
+
+	@Test
+	public void testOnlyIssuedThumbSpriteSheetsAreServed() {
+		final PhotoManager photoManager = PhotoManager.getInstance();
+		final List<Photo> photos = new ArrayList<Photo>();
+		for (int i = 0; i < 3; i++) {
+			Photo photo = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+			photoManager.doAddPhoto(photo);
+			photos.add(photo);
+		}
+		photos.get(2).setStatus(PhotoStatus.MODERATED);
+
+		final ThumbSpriteSheet sheet = ObjectifyService.run(new Work<ThumbSpriteSheet>() {
+			@Override
+			public ThumbSpriteSheet run() {
+				assertTrue(photoManager.getIssuedThumbSpriteSheet(new ThumbSpriteSheet(photos).getId()) == null);
+
+				List<ThumbSpriteSheet> sheets = photoManager.issueThumbSpriteSheets(photos);
+				assertEquals(1, sheets.size());
+				ThumbSpriteSheet served = photoManager.getIssuedThumbSpriteSheet(sheets.get(0).getId());
+				assertEquals(sheets.get(0).getKey(), served.getKey());
+				assertEquals(sheets.get(0).getVersion(), served.getVersion());
+				return sheets.get(0);
+			}
+		});
+		assertEquals(2, sheet.size());
+		assertEquals(-1, sheet.indexOf(photos.get(2).getId()));
+
+		// other instances find the sheet in the datastore
+		photoManager.issuedThumbSpriteSheets.clear();
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				assertEquals(sheet.getKey(), photoManager.getIssuedThumbSpriteSheet(sheet.getId()).getKey());
+
+				photos.get(1).setStatus(PhotoStatus.MODERATED);
+				ThumbSpriteSheet served = photoManager.getIssuedThumbSpriteSheet(sheet.getId());
+				assertEquals(sheet.getId(), served.getId());
+				assertFalse(sheet.getVersion().equals(served.getVersion()));
+
+				photos.get(0).setStatus(PhotoStatus.MODERATED);
+				assertTrue(photoManager.getIssuedThumbSpriteSheet(sheet.getId()) == null);
+				return null;
+			}
+		});
+	}
+
+	@Test
+	public void testModeratorSheetsShowFlaggedPhotos() {
+		final PhotoManager photoManager = PhotoManager.getInstance();
+		final List<Photo> photos = new ArrayList<Photo>();
+		for (int i = 0; i < 2; i++) {
+			Photo photo = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+			photo.setStatus(photo.getStatus().asFlagged(true));
+			photoManager.doAddPhoto(photo);
+			photos.add(photo);
+		}
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				assertTrue(photoManager.issueThumbSpriteSheets(photos).isEmpty());
+
+				ThumbSpriteSheet sheet = photoManager.issueThumbSpriteSheets(photos, true).get(0);
+				assertEquals(2, sheet.size());
+				assertFalse(sheet.getId().equals(new ThumbSpriteSheet(photos).getId()));
+				ThumbSpriteSheet served = photoManager.getIssuedThumbSpriteSheet(sheet.getId());
+				assertTrue(served.isForModerators());
+				assertEquals(sheet.getVersion(), served.getVersion());
+
+				photos.get(0).setStatus(photos.get(0).getStatus().asDeleted(true));
+				served = photoManager.getIssuedThumbSpriteSheet(sheet.getId());
+				assertFalse(sheet.getVersion().equals(served.getVersion()));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testOldIssuedThumbSpriteSheetsAreRemoved() {
+		final PhotoManager photoManager = PhotoManager.getInstance();
+		final List<Photo> photos = new ArrayList<Photo>();
+		for (int i = 0; i < 4; i++) {
+			Photo photo = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+			photoManager.doAddPhoto(photo);
+			photos.add(photo);
+		}
+		final ThumbSpriteSheet oldSheet = new ThumbSpriteSheet(photos.subList(2, 4));
+		final long issuedOn = System.currentTimeMillis() - PhotoManager.MAX_ISSUED_THUMB_SPRITE_SHEET_AGE_IN_MILLIS - 1;
+
+		final ThumbSpriteSheet recentSheet = ObjectifyService.run(new Work<ThumbSpriteSheet>() {
+			@Override
+			public ThumbSpriteSheet run() {
+				OfyService.ofy().save().entity(new PhotoManager.IssuedThumbSpriteSheet(oldSheet.getId(),
+						oldSheet.getKey(), false, issuedOn)).now();
+				assertEquals(oldSheet.getKey(), photoManager.getIssuedThumbSpriteSheet(oldSheet.getId()).getKey());
+				return photoManager.issueThumbSpriteSheets(photos.subList(0, 2)).get(0);
+			}
+		});
+
+		assertTrue(photoManager.removeOldIssuedThumbSpriteSheets() >= 1);
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				assertTrue(photoManager.getIssuedThumbSpriteSheet(oldSheet.getId()) == null);
+				ThumbSpriteSheet served = photoManager.getIssuedThumbSpriteSheet(recentSheet.getId());
+				assertEquals(recentSheet.getKey(), served.getKey());
+
+				// issuing the sheet again records it anew
+				photoManager.issueThumbSpriteSheets(photos.subList(2, 4));
+				return null;
+			}
+		});
+		photoManager.issuedThumbSpriteSheets.clear();
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				assertEquals(oldSheet.getKey(), photoManager.getIssuedThumbSpriteSheet(oldSheet.getId()).getKey());
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSavedImagesGetIntoImageCacheOnRead() throws Exception {
+		ImageStorage.setInstance(new DatastoreAdapter());
+		final PhotoManager photoManager = new PhotoManager();
+		final Photo photo = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+		BufferedImage source = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+		ByteArrayOutputStream sourceData = new ByteArrayOutputStream();
+		ImageIO.write(source, "jpeg", sourceData);
+		photo.setImage(PhotoSize.THUMB, ImagesServiceFactory.makeImage(sourceData.toByteArray()));
+		final String photoIdAsString = photo.getId().asString();
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				photoManager.saveScaledImages(photo);
+				assertFalse(photo.hasImages());
+				assertTrue(ImageCache.getInstance().get(photoIdAsString, PhotoSize.THUMB.asInt()) == null);
+
+				photoManager.getPhotoImage(photo.getId(), PhotoSize.THUMB).release();
+				CachedImage cached = ImageCache.getInstance().get(photoIdAsString, PhotoSize.THUMB.asInt());
+				assertTrue(cached != null);
+				cached.release();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testDeferredImageIsWrittenUnderItsSize() throws Exception {
+		ImageStorage.setInstance(new DatastoreAdapter());
+		ImageScaler previousImageScaler = ImageScaler.instance;
+		JavaImageScaler imageScaler = new JavaImageScaler(1);
+		ImageScaler.setInstance(imageScaler);
+		try {
+			PhotoId photoId = PhotoId.getIdFromInt(PhotoId.getNextIdAsInt());
+			Photo photo = new Photo(photoId);
+			photo.setWidthAndHeight(800, 600);
+			photo.resetWriteCount();
+			BufferedImage source = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+			ByteArrayOutputStream sourceData = new ByteArrayOutputStream();
+			ImageIO.write(source, "jpeg", sourceData);
+			ImageStorage.getInstance().writeImage(ImagesServiceFactory.makeImage(sourceData.toByteArray()),
+					photoId.asString(), ImageStorage.SOURCE_IMAGE_SIZE);
+
+			PhotoManager photoManager = new PhotoManager();
+			Image image = photoManager.createDeferredImage(photo, PhotoSize.SMALL);
+			BufferedImage scaled = ImageIO.read(new ByteArrayInputStream(image.getImageData()));
+			assertEquals(PhotoSize.SMALL.calcAdjustedWidth(800, 600), scaled.getWidth());
+			assertFalse(photo.isDirty());
+			assertFalse(photo.hasImages());
+
+			CachedImage persisted = photoManager.getPhotoImage(photoId, PhotoSize.SMALL);
+			try {
+				assertEquals(image.getImageData().length, persisted.getLength());
+			} finally {
+				persisted.release();
+			}
+			assertTrue(photoManager.createDeferredImage(photo, PhotoSize.EXTRA_LARGE) == null);
+		} finally {
+			imageScaler.shutDown();
+			ImageScaler.instance = previousImageScaler;
+		}
+	}
+
+	@Test
+	public void testConcurrentDeferredScalingsCollapse() throws Exception {
+		ImageStorage.setInstance(new DatastoreAdapter());
+		final AtomicInteger noScalings = new AtomicInteger();
+		final CountDownLatch scalingStarted = new CountDownLatch(1);
+		final CountDownLatch scalingMayEnd = new CountDownLatch(1);
+		final Image scaledImage = ImagesServiceFactory.makeImage(new byte[] {1, 2, 3});
+		final PhotoManager photoManager = new PhotoManager() {
+			@Override
+			public CachedImage getPhotoImage(PhotoId id, PhotoSize photoSize) {
+				return null;
+			}
+
+			@Override
+			protected Image scaleDeferredImage(Photo photo, PhotoSize photoSize) throws Exception {
+				noScalings.incrementAndGet();
+				scalingStarted.countDown();
+				scalingMayEnd.await(5, TimeUnit.SECONDS);
+				return scaledImage;
+			}
+
+			@Override
+			protected void writeDeferredImage(String photoIdAsString, PhotoSize photoSize, Image image) {
+				// nothing to write to
+			}
+		};
+
+		final Photo photo = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+		photo.setWidthAndHeight(800, 600);
+		final Image[] results = new Image[2];
+		Thread[] requests = new Thread[2];
+		for (int i = 0; i < requests.length; i++) {
+			final int index = i;
+			requests[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					results[index] = photoManager.createDeferredImage(photo, PhotoSize.SMALL);
+				}
+			});
+		}
+
+		requests[0].start();
+		assertTrue(scalingStarted.await(5, TimeUnit.SECONDS));
+		requests[1].start();
+		while (requests[1].getState() != Thread.State.WAITING && requests[1].isAlive()) {
+			Thread.sleep(1); // waits for the scaling of the first request
+		}
+		scalingMayEnd.countDown();
+		for (Thread request : requests) {
+			request.join(5000);
+		}
+
+		assertTrue(results[0] == scaledImage);
+		assertTrue(results[1] == scaledImage);
+		assertEquals(1, noScalings.get());
+	}
+
+	@Test
+	public void testDeferredImageIsWrittenOffTheRequest() throws Exception {
+		ImageStorage.setInstance(new DatastoreAdapter());
+		final AtomicInteger noScalings = new AtomicInteger();
+		final AtomicInteger noWrites = new AtomicInteger();
+		final Image scaledImage = ImagesServiceFactory.makeImage(new byte[] {1, 2, 3});
+		final PhotoManager photoManager = new PhotoManager() {
+			@Override
+			public CachedImage getPhotoImage(PhotoId id, PhotoSize photoSize) {
+				return null;
+			}
+
+			@Override
+			protected Image scaleDeferredImage(Photo photo, PhotoSize photoSize) {
+				noScalings.incrementAndGet();
+				return scaledImage;
+			}
+
+			@Override
+			protected void writeDeferredImage(String photoIdAsString, PhotoSize photoSize, Image image) {
+				noWrites.incrementAndGet();
+			}
+		};
+		final List<Runnable> writes = new ArrayList<Runnable>();
+		photoManager.setDeferredImageWriter(new Executor() {
+			@Override
+			public void execute(Runnable write) {
+				writes.add(write);
+			}
+		});
+
+		Photo photo = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+		photo.setWidthAndHeight(800, 600);
+		assertTrue(photoManager.createDeferredImage(photo, PhotoSize.SMALL) == scaledImage);
+		assertEquals(0, noWrites.get());
+		assertEquals(1, writes.size());
+		assertEquals(1, photoManager.pendingScalings.size());
+
+		assertTrue(photoManager.createDeferredImage(photo, PhotoSize.SMALL) == scaledImage);
+		assertEquals(1, noScalings.get());
+
+		writes.get(0).run();
+		assertEquals(1, noWrites.get());
+		assertTrue(photoManager.pendingScalings.isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	private static Set<String> readTagTexts(PhotoId photoId) {
+		List<Tag> tags = OfyService.ofy().load().type(Tag.class).ancestor(ObjectManager.applicationRootKey).
+				filter(Tag.PHOTO_ID, photoId.asString()).list();
+		Set<String> result = new HashSet<String>();
+		for (Tag tag : tags) {
+			result.add(tag.getText());
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	private static Photo createPraisedPhoto(int praise, String tag) {
+		Photo result = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+		result.setTags(new Tags(tag));
+		result.praiseSum = praise;
+		PhotoManager.getInstance().doAddPhoto(result);
+		return result;
+	}
+
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link PhotoPraiseIndex}.
+ */
+public class PhotoPraiseIndexTest {
+
+	@ClassRule
+	public static LocalDatastoreServiceTestConfigProvider datastoreProvider =
+			new LocalDatastoreServiceTestConfigProvider();
+
+	private PhotoPraiseIndex index;
+	private Photo praised;
+	private Photo ignored;
+
+	@Before
+	public void setUp() {
+		index = new PhotoPraiseIndex();
+		praised = createPhoto(90);
+		ignored = createPhoto(10);
+		index.updatePhoto(praised);
+		index.updatePhoto(ignored);
+	}
+
+	@Test
+	public void testUpdatePhoto() {
+		assertEquals(90, index.getPraise(praised.getId()), 0);
+		assertEquals(100, index.getTotalPraise(), 0);
+
+		praised.praiseSum = 30;
+		index.updatePhoto(praised);
+		assertEquals(40, index.getTotalPraise(), 0);
+
+		praised.setStatus(PhotoStatus.MODERATED);
+		index.updatePhoto(praised);
+		assertEquals(0, index.getPraise(praised.getId()), 0);
+		assertEquals(10, index.getTotalPraise(), 0);
+	}
+
+	@Test
+	public void testPhotoWithoutPraiseGetsNoSlot() {
+		Photo photo = createPhoto(0);
+		index.updatePhoto(photo);
+		assertEquals(2, index.slotsByPhotoId.size());
+		assertEquals(0, index.getPraise(photo.getId()), 0);
+	}
+
+	@Test
+	public void testRandomPhotoIdIsWeightedByPraise() {
+		Random random = new Random(42);
+		int noPraised = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (index.getRandomPhotoId(random) == praised.getId().asInt()) {
+				noPraised++;
+			}
+		}
+		assertEquals(900, noPraised, 50);
+	}
+
+	@Test
+	public void testRandomPhotoIdOfSubset() {
+		Random random = new Random(42);
+		Photo other = createPhoto(10);
+		index.updatePhoto(other);
+
+		int[] subset = {ignored.getId().asInt(), other.getId().asInt()};
+		int noIgnored = 0;
+		for (int i = 0; i < 1000; i++) {
+			int photoId = index.getRandomPhotoId(random, subset);
+			assertTrue(photoId == subset[0] || photoId == subset[1]);
+			if (photoId == subset[0]) {
+				noIgnored++;
+			}
+		}
+		assertEquals(500, noIgnored, 50);
+
+		int[] withoutPraise = {createPhoto(0).getId().asInt()};
+		assertEquals(PhotoId.NULL_ID.asInt(), index.getRandomPhotoId(random, withoutPraise));
+		assertEquals(PhotoId.NULL_ID.asInt(), index.getRandomPhotoId(random, new int[0]));
+	}
+
+	@Test
+	public void testTopPhotoIds() {
+		Photo other = createPhoto(50);
+		index.updatePhoto(other);
+
+		int[] expected = {praised.getId().asInt(), other.getId().asInt()};
+		assertArrayEquals(expected, index.getTopPhotoIds(2));
+		assertEquals(3, index.getTopPhotoIds(5).length);
+		assertEquals(0, index.getTopPhotoIds(0).length);
+	}
+
+	/**
+	 *
+	 */
+	private static Photo createPhoto(int praise) {
+		Photo result = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+		result.praiseSum = praise;
+		return result;
+	}
+}
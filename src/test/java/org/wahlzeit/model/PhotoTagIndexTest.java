@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link PhotoTagIndex}.
+ */
+public class PhotoTagIndexTest {
+
+	private PhotoTagIndex index;
+	private Photo first;
+	private Photo second;
+
+	@Before
+	public void setUp() {
+		index = new PhotoTagIndex(new PhotoTagCollector());
+
+		first = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+		first.setOwnerId("alice");
+		first.setTags(new Tags("ice, sbahn"));
+
+		second = new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt()));
+		second.setOwnerId("bob");
+		second.setTags(new Tags("ice"));
+
+		index.updatePhoto(first);
+		index.updatePhoto(second);
+	}
+
+	@Test
+	public void testMatchingAny() {
+		int[] expected = {first.getId().asInt(), second.getId().asInt()};
+		assertArrayEquals(expected, index.getPhotoIdsMatchingAny(Arrays.asList("tg:ice")).toArray());
+		assertArrayEquals(expected, index.getPhotoIdsMatchingAny(Arrays.asList("un:alice", "tg:bob")).toArray());
+		assertArrayEquals(new int[0], index.getPhotoIdsMatchingAny(Arrays.asList("tg:unknown")).toArray());
+	}
+
+	@Test
+	public void testMatchingAll() {
+		int[] expected = {first.getId().asInt()};
+		assertArrayEquals(expected, index.getPhotoIdsMatchingAll(Arrays.asList("tg:ice", "tg:sbahn")).toArray());
+		assertArrayEquals(new int[0], index.getPhotoIdsMatchingAll(Arrays.asList("tg:ice", "tg:unknown")).toArray());
+	}
+
+	@Test
+	public void testUpdateTags() {
+		first.setTags(new Tags("sbahn"));
+		index.updatePhoto(first);
+
+		int[] expected = new int[]{second.getId().asInt()};
+		assertArrayEquals(expected, index.getPhotoIdsMatchingAny(Arrays.asList("tg:ice")).toArray());
+		assertEquals(1, index.getNoPhotos("tg:sbahn"));
+	}
+
+	@Test
+	public void testInvisiblePhotoIsRemoved() {
+		second.setStatus(second.getStatus().asFlagged(true));
+		index.updatePhoto(second);
+
+		assertEquals(0, index.getNoPhotos("un:bob"));
+		int[] expected = new int[]{first.getId().asInt()};
+		assertArrayEquals(expected, index.getPhotoIdsMatchingAny(Arrays.asList("tg:ice")).toArray());
+
+		second.setStatus(PhotoStatus.VISIBLE);
+		index.updatePhoto(second);
+		assertEquals(1, index.getNoPhotos("un:bob"));
+	}
+
+	@Test
+	public void testRemovePhoto() {
+		index.removePhoto(first.getId());
+
+		assertEquals(0, index.getNoPhotos("tg:sbahn"));
+		assertEquals(0, index.getNoPhotos("un:alice"));
+	}
+
+	@Test
+	public void testVersionChangesOnlyWithIndex() {
+		long version = index.getVersion();
+		index.updatePhoto(first);
+		assertEquals(version, index.getVersion());
+
+		first.setStatus(first.getStatus().asFlagged(true));
+		index.updatePhoto(first);
+		assertTrue(index.getVersion() > version);
+	}
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test cases for the PhotoUtil class.
+ */
+public class PhotoUtilTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testGetScalingSources() {
+		Map<PhotoSize, PhotoSize> scalingSources = PhotoUtil.getScalingSources(Arrays.asList(PhotoSize.values()),
+				2000, 3000);
+
+		assertNull(scalingSources.get(PhotoSize.EXTRA_LARGE));
+		assertEquals(PhotoSize.EXTRA_LARGE, scalingSources.get(PhotoSize.LARGE));
+		assertEquals(PhotoSize.EXTRA_LARGE, scalingSources.get(PhotoSize.MEDIUM));
+		assertEquals(PhotoSize.LARGE, scalingSources.get(PhotoSize.SMALL));
+		assertEquals(PhotoSize.MEDIUM, scalingSources.get(PhotoSize.EXTRA_SMALL));
+		assertEquals(PhotoSize.EXTRA_SMALL, scalingSources.get(PhotoSize.THUMB));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testGetScalingSourcesOfSmallPhoto() {
+		Map<PhotoSize, PhotoSize> scalingSources = PhotoUtil.getScalingSources(Arrays.asList(PhotoSize.THUMB,
+				PhotoSize.EXTRA_SMALL, PhotoSize.SMALL), 300, 400);
+
+		assertNull(scalingSources.get(PhotoSize.SMALL));
+		assertEquals(PhotoSize.SMALL, scalingSources.get(PhotoSize.EXTRA_SMALL));
+		assertEquals(PhotoSize.EXTRA_SMALL, scalingSources.get(PhotoSize.THUMB));
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test cases for the ThumbSpriteSheet class.
+ */
+public class ThumbSpriteSheetTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testCreateSheets() {
+		List<Photo> photos = createPhotos(ThumbSpriteSheet.MAX_NO_THUMBS + 3);
+		List<ThumbSpriteSheet> sheets = ThumbSpriteSheet.createSheets(photos);
+
+		assertEquals(2, sheets.size());
+		assertEquals(ThumbSpriteSheet.MAX_NO_THUMBS, sheets.get(0).size());
+		assertEquals(3, sheets.get(1).size());
+		assertEquals(2, sheets.get(1).indexOf(photos.get(ThumbSpriteSheet.MAX_NO_THUMBS + 2).getId()));
+		assertEquals(-1, sheets.get(1).indexOf(photos.get(0).getId()));
+
+		assertEquals(ThumbSpriteSheet.NO_COLUMNS * ThumbSpriteSheet.CELL_WIDTH, sheets.get(0).getWidth());
+		assertEquals(3 * ThumbSpriteSheet.CELL_WIDTH, sheets.get(1).getWidth());
+		assertEquals(ThumbSpriteSheet.CELL_HEIGHT, sheets.get(1).getHeight());
+		assertEquals(2 * ThumbSpriteSheet.CELL_WIDTH, ThumbSpriteSheet.getX(ThumbSpriteSheet.NO_COLUMNS + 2));
+		assertEquals(ThumbSpriteSheet.CELL_HEIGHT, ThumbSpriteSheet.getY(ThumbSpriteSheet.NO_COLUMNS + 2));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testKeyAndVersion() {
+		List<Photo> photos = createPhotos(3);
+		ThumbSpriteSheet sheet = new ThumbSpriteSheet(photos);
+
+		assertEquals(sheet.getPhotoIds(), ThumbSpriteSheet.getPhotoIdsFromKey(sheet.getKey()));
+		assertEquals(sheet.getVersion(), new ThumbSpriteSheet(photos).getVersion());
+		assertNull(ThumbSpriteSheet.getPhotoIdsFromKey(""));
+		assertNull(ThumbSpriteSheet.getPhotoIdsFromKey(sheet.getKey() + ThumbSpriteSheet.KEY_SEPARATOR));
+
+		photos.add(0, photos.remove(2));
+		assertFalse(sheet.getVersion().equals(new ThumbSpriteSheet(photos).getVersion()));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLeftOutPhotosKeepId() {
+		List<Photo> photos = createPhotos(3);
+		ThumbSpriteSheet sheet = new ThumbSpriteSheet(photos);
+		List<Photo> shownPhotos = new ArrayList<Photo>(photos);
+		shownPhotos.set(1, null);
+		ThumbSpriteSheet partialSheet = new ThumbSpriteSheet(sheet.getPhotoIds(), shownPhotos, false);
+
+		assertEquals(sheet.getId(), partialSheet.getId());
+		assertEquals(sheet.getKey(), partialSheet.getKey());
+		assertFalse(sheet.getVersion().equals(partialSheet.getVersion()));
+		assertFalse(sheet.getId().equals(new ThumbSpriteSheet(photos.subList(0, 2)).getId()));
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testPhotoForEachId() {
+		List<Photo> photos = createPhotos(3);
+		new ThumbSpriteSheet(ThumbSpriteSheet.getPhotoIds(photos), photos.subList(0, 2), false);
+	}
+
+	/**
+	 *
+	 */
+	protected List<Photo> createPhotos(int noPhotos) {
+		List<Photo> result = new ArrayList<Photo>();
+		for (int i = 0; i < noPhotos; i++) {
+			result.add(new Photo(PhotoId.getIdFromInt(PhotoId.getNextIdAsInt())));
+		}
+		return result;
+	}
+
+}
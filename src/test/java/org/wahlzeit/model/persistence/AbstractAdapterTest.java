@@ -9,6 +9,10 @@ import org.junit.Test;
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.fail;
 
@@ -104,6 +108,23 @@ public abstract class AbstractAdapterTest {
 		assert image == null;
 	}
 
+	@Test
+	public void testSourceImage() {
+		try {
+			imageStorage.writeImage(smallTestImage, "source", ImageStorage.SOURCE_IMAGE_SIZE);
+			assert imageStorage.doesImageExist("source", ImageStorage.SOURCE_IMAGE_SIZE);
+			assert imageStorage.readImage("source", ImageStorage.SOURCE_IMAGE_SIZE) != null;
+			assert imageStorage.readImage("source", 1) == null;
+		} catch (IOException e) {
+			fail("IOException should not be thrown!");
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidImageSize() throws IOException {
+		imageStorage.readImage("blub", -2);
+	}
+
 	@Test
 	public void testImageExistence() {
 		boolean exists;
@@ -128,4 +149,20 @@ public abstract class AbstractAdapterTest {
 		exists = imageStorage.doesImageExist("wrong file name", 1);
 		assert !exists;
 	}
+
+	@Test
+	public void testExistingImageSizes() {
+		try {
+			imageStorage.writeImage(smallTestImage, "sizes", 0);
+			imageStorage.writeImage(smallTestImage, "sizes", 2);
+		} catch (IOException e) {
+			fail("IOException should not be thrown!");
+		}
+
+		Map<String, Set<Integer>> sizes = imageStorage.getExistingImageSizes(Arrays.asList("sizes", "noSizes"));
+
+		assert sizes.size() == 1;
+		assert sizes.get("sizes").equals(new HashSet<Integer>(Arrays.asList(0, 2)));
+		assert !sizes.containsKey("noSizes");
+	}
 }
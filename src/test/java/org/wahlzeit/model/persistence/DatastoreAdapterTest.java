@@ -2,16 +2,25 @@ package org.wahlzeit.model.persistence;
 
 import com.google.appengine.api.images.Image;
 import com.google.appengine.api.images.ImagesServiceFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.rules.RuleChain;
 import org.junit.rules.TestRule;
+import org.wahlzeit.services.OfyService;
 import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
 import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -38,12 +47,156 @@ public class DatastoreAdapterTest extends AbstractAdapterTest {
 	}
 
 
-	@Test(expected = ArrayIndexOutOfBoundsException.class)
-	public void testUpperSizeLimit() {
+	@Test
+	public void testLargeImagesAreStoredInChunks() {
 		try {
 			imageStorage.writeImage(tooLargeTestImage, "blub", 1);
+
+			Image image = (Image) imageStorage.readImage("blub", 1);
+			assertArrayEquals(tooLargeTestImage.getImageData(), image.getImageData());
+
+			CachedImage imageData = imageStorage.readImageData("blub", 1);
+			assertEquals(tooLargeTestImage.getImageData().length, imageData.getLength());
+			assertTrue(imageStorage.doesImageExist("blub", 1));
 		} catch (IOException e) {
 			fail("IOException should not be thrown!");
 		}
 	}
+
+	@Test
+	public void testImageDataIsReadInBatches() throws IOException {
+		imageStorage.writeImage(tooLargeTestImage, "batchLarge", 1);
+		imageStorage.writeImage(ImagesServiceFactory.makeImage(new byte[] {1, 2, 3}), "batchSmall", 1);
+
+		Map<String, CachedImage> images =
+				imageStorage.readImageData(Arrays.asList("batchLarge", "batchSmall", "batchMissing"), 1);
+		assertEquals(2, images.size());
+		assertEquals(tooLargeTestImage.getImageData().length, images.get("batchLarge").getLength());
+		assertArrayEquals(new byte[] {1, 2, 3}, images.get("batchSmall").asByteArray());
+		assertTrue(imageStorage.readImageData(Arrays.asList("batchSmall"), 2).isEmpty());
+	}
+
+	@Test
+	public void testImagesAboveChunkSizeAreChunked() {
+		byte[] imageData = new byte[DatastoreAdapter.ImageChunk.CHUNK_SIZE + 1];
+		imageData[imageData.length - 1] = 42;
+		DatastoreAdapter datastoreAdapter = (DatastoreAdapter) imageStorage;
+		String blobId = DatastoreAdapter.asBlobId(imageData);
+		datastoreAdapter.writeBlob(blobId, imageData);
+
+		assertTrue(datastoreAdapter.doesEntityExist(DatastoreAdapter.ImageChunk.class,
+				DatastoreAdapter.asImageChunkId(blobId, 1)));
+		CachedImage cachedImage = datastoreAdapter.readImageWrapperData(blobId);
+		assertEquals(imageData.length, cachedImage.getLength());
+
+		byte[] smallData = new byte[DatastoreAdapter.ImageChunk.CHUNK_SIZE];
+		String smallBlobId = DatastoreAdapter.asBlobId(smallData);
+		datastoreAdapter.writeBlob(smallBlobId, smallData);
+		assertFalse(datastoreAdapter.doesEntityExist(DatastoreAdapter.ImageChunk.class,
+				DatastoreAdapter.asImageChunkId(smallBlobId, 0)));
+	}
+
+	@Test
+	public void testIdenticalImagesAreStoredOnce() {
+		try {
+			imageStorage.writeImage(tooLargeTestImage, "blub", 1);
+			imageStorage.writeImage(tooLargeTestImage, "blab", 2);
+			assertTrue(imageStorage.doesImageExist("blab", 2));
+
+			DatastoreAdapter datastoreAdapter = (DatastoreAdapter) imageStorage;
+			assertEquals(0, datastoreAdapter.collectGarbage());
+
+			imageStorage.writeImage(ImagesServiceFactory.makeImage(new byte[] {1, 2, 3}), "blub", 1);
+			imageStorage.writeImage(ImagesServiceFactory.makeImage(new byte[] {1, 2, 3}), "blab", 2);
+			datastoreAdapter.setGracePeriodInMillis(0);
+			assertEquals(0, datastoreAdapter.collectGarbage()); // marks the orphaned blob
+			assertEquals(1, datastoreAdapter.collectGarbage());
+
+			CachedImage imageData = imageStorage.readImageData("blab", 2);
+			assertEquals(3, imageData.getLength());
+		} catch (IOException e) {
+			fail("IOException should not be thrown!");
+		}
+	}
+
+	@Test
+	public void testRewrittenImageKeepsMarkedBlob() throws IOException {
+		DatastoreAdapter datastoreAdapter = (DatastoreAdapter) imageStorage;
+		datastoreAdapter.setGracePeriodInMillis(0);
+		Image image = ImagesServiceFactory.makeImage(new byte[] {4, 5, 6});
+		imageStorage.writeImage(image, "blub", 1);
+		imageStorage.writeImage(ImagesServiceFactory.makeImage(new byte[] {7}), "blub", 1);
+		assertEquals(0, datastoreAdapter.collectGarbage()); // marks the blob of the first image
+
+		imageStorage.writeImage(image, "blab", 2);
+		final String blobId = DatastoreAdapter.asBlobId(image.getImageData());
+		assertFalse(datastoreAdapter.doesEntityExist(DatastoreAdapter.OrphanedImageBlob.class, blobId));
+		assertEquals(0, datastoreAdapter.collectGarbage());
+		assertEquals(3, imageStorage.readImageData("blab", 2).getLength());
+	}
+
+	@Test
+	public void testOrphanedBlobIsKeptIfReferencedOrRemarked() {
+		final DatastoreAdapter datastoreAdapter = (DatastoreAdapter) imageStorage;
+		final byte[] imageData = {8, 9};
+		final String blobId = DatastoreAdapter.asBlobId(imageData);
+		datastoreAdapter.writeBlob(blobId, imageData);
+
+		boolean isDeleted = ObjectifyService.run(new Work<Boolean>() {
+			@Override
+			public Boolean run() {
+				OfyService.ofy().save().entity(new DatastoreAdapter.OrphanedImageBlob(blobId, 2)).now();
+				return datastoreAdapter.deleteOrphanedBlob(new DatastoreAdapter.OrphanedImageBlob(blobId, 1));
+			}
+		});
+		assertFalse(isDeleted); // the mark was renewed meanwhile
+
+		isDeleted = ObjectifyService.run(new Work<Boolean>() {
+			@Override
+			public Boolean run() {
+				OfyService.ofy().save().entity(new DatastoreAdapter.ImageReference("blub-1", blobId)).now();
+				return datastoreAdapter.deleteOrphanedBlob(new DatastoreAdapter.OrphanedImageBlob(blobId, 2));
+			}
+		});
+		assertFalse(isDeleted); // referenced again
+		assertFalse(datastoreAdapter.doesEntityExist(DatastoreAdapter.OrphanedImageBlob.class, blobId));
+		assertTrue(datastoreAdapter.doesEntityExist(DatastoreAdapter.ImageWrapper.class, blobId));
+
+		isDeleted = ObjectifyService.run(new Work<Boolean>() {
+			@Override
+			public Boolean run() {
+				OfyService.ofy().delete().type(DatastoreAdapter.ImageReference.class).id("blub-1").now();
+				OfyService.ofy().save().entity(new DatastoreAdapter.OrphanedImageBlob(blobId, 3)).now();
+				return datastoreAdapter.deleteOrphanedBlob(new DatastoreAdapter.OrphanedImageBlob(blobId, 3));
+			}
+		});
+		assertTrue(isDeleted);
+		assertFalse(datastoreAdapter.doesEntityExist(DatastoreAdapter.ImageWrapper.class, blobId));
+	}
+
+	@Test
+	public void testGarbageCollectionPagesThroughBlobs() throws IOException {
+		DatastoreAdapter datastoreAdapter = (DatastoreAdapter) imageStorage;
+		datastoreAdapter.setGracePeriodInMillis(0);
+		datastoreAdapter.gcPageSize = 2;
+		datastoreAdapter.collectGarbage();
+		datastoreAdapter.collectGarbage(); // blobs left by other tests
+		for (int i = 0; i < 5; i++) {
+			imageStorage.writeImage(ImagesServiceFactory.makeImage(new byte[] {10, (byte) i}), "x" + i, 1);
+		}
+		for (int i = 0; i < 3; i++) {
+			imageStorage.writeImage(ImagesServiceFactory.makeImage(new byte[] {11, (byte) i}), "x" + i, 1);
+		}
+
+		assertEquals(0, datastoreAdapter.collectGarbage());
+		assertEquals(3, datastoreAdapter.collectGarbage());
+		for (int i = 0; i < 5; i++) {
+			assertTrue(imageStorage.doesImageExist("x" + i, 1));
+		}
+	}
+
+	@Test(expected = ArrayIndexOutOfBoundsException.class)
+	public void testImageWrapperUpperSizeLimit() {
+		new DatastoreAdapter.ImageWrapper("blub").setImage(tooLargeTestImage);
+	}
 }
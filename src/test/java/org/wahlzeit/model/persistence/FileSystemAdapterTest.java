@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model.persistence;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for {@link FileSystemAdapter}
+ */
+public class FileSystemAdapterTest extends AbstractAdapterTest {
+
+	private Path rootDir;
+
+	@Override
+	protected void storageDependentSetUp() {
+		try {
+			rootDir = Files.createTempDirectory("wahlzeit-images");
+			imageStorage = new FileSystemAdapter(rootDir);
+		} catch (IOException e) {
+			fail("IOException should not be thrown!");
+		}
+	}
+
+	@Override
+	protected void storageDependentTearDown() {
+		deleteRecursively(rootDir.toFile());
+	}
+
+	@Test
+	public void testImageFiles() throws IOException {
+		assertNull(imageStorage.getImageFile("blub", 1));
+
+		imageStorage.writeImage(smallTestImage, "blub", 1);
+		imageStorage.writeImage(smallTestImage, "blub", 1);
+
+		Path file = imageStorage.getImageFile("blub", 1);
+		assertEquals(rootDir, file.getParent().getParent().getParent());
+		assertEquals(1, file.getParent().toFile().list().length); // no temporary files left
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CachedImage image = CachedImage.wrap(file);
+		assertEquals(smallTestImage.getImageData().length, image.getLength());
+		image.writeTo(out);
+		image.release();
+		assertArrayEquals(smallTestImage.getImageData(), out.toByteArray());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPathsInPhotoIdsAreRejected() {
+		imageStorage.doesImageExist("../blub", 1);
+	}
+
+	private void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
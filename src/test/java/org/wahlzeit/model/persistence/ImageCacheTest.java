@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model.persistence;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test cases for the ImageCache class.
+ */
+public class ImageCacheTest {
+
+	private static final int SLAB_SIZE = 1024;
+
+	private ImageCache imageCache;
+
+	@Before
+	public void setUp() {
+		// two slabs; images of more than 960 bytes need a chunk of a whole slab
+		imageCache = new ImageCache(2 * SLAB_SIZE, SLAB_SIZE, 256);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testGetCountsHitsAndMisses() throws IOException {
+		byte[] data = createData(100, 1);
+		imageCache.put("x1", 0, data);
+
+		CachedImage image = imageCache.get("x1", 0);
+		assertNotNull(image);
+		assertFalse(image.getData().hasArray()); // off the heap
+		assertArrayEquals(data, image.asByteArray());
+		image.release();
+
+		assertNull(imageCache.get("x1", 1));
+		assertEquals(1, imageCache.getNoHits());
+		assertEquals(1, imageCache.getNoMisses());
+		assertEquals(100, imageCache.getUsedBytes());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testWriteTo() throws IOException {
+		byte[] data = createData(700, 2);
+		imageCache.put("x1", 0, data);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CachedImage image = imageCache.get("x1", 0);
+		image.writeTo(out);
+		image.release();
+		assertArrayEquals(data, out.toByteArray());
+
+		out.reset();
+		CachedImage.wrap(data).writeTo(out);
+		assertArrayEquals(data, out.toByteArray());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testWrapChunks() throws IOException {
+		CachedImage image = CachedImage.wrap(Arrays.asList(createData(3, 1), createData(2, 2)));
+		byte[] expected = {1, 1, 1, 2, 2};
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		image.writeTo(out);
+		assertArrayEquals(expected, out.toByteArray());
+		assertArrayEquals(expected, image.asByteArray());
+		assertEquals(5, image.getLength());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testEvictsLeastRecentlyUsedOfSizeClass() throws IOException {
+		imageCache.put("x1", 0, createData(1000, 1));
+		imageCache.put("x2", 0, createData(1000, 2));
+		imageCache.get("x1", 0).release();
+		imageCache.put("x3", 0, createData(1000, 3));
+
+		assertNull(imageCache.get("x2", 0));
+		CachedImage image = imageCache.get("x1", 0);
+		assertArrayEquals(createData(1000, 1), image.asByteArray());
+		image.release();
+		assertEquals(1, imageCache.getNoEvictions());
+		assertEquals(2 * SLAB_SIZE, imageCache.getReservedBytes());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPinnedImagesAreNotOverwritten() throws IOException {
+		imageCache.put("x1", 0, createData(1000, 1));
+		imageCache.put("x2", 0, createData(1000, 2));
+		CachedImage image1 = imageCache.get("x1", 0);
+		CachedImage image2 = imageCache.get("x2", 0);
+
+		imageCache.put("x3", 0, createData(1000, 3));
+		assertEquals(1, imageCache.getNoRejections());
+		assertNull(imageCache.get("x3", 0));
+
+		imageCache.remove("x1");
+		imageCache.put("x3", 0, createData(1000, 3));
+		assertEquals(2, imageCache.getNoRejections());
+		assertArrayEquals(createData(1000, 1), image1.asByteArray());
+
+		image1.release();
+		image2.release();
+		imageCache.put("x3", 0, createData(1000, 3));
+		CachedImage image3 = imageCache.get("x3", 0);
+		assertArrayEquals(createData(1000, 3), image3.asByteArray());
+		image3.release();
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testIdenticalImagesShareData() throws IOException {
+		imageCache.put("x1", 0, createData(300, 1));
+		imageCache.put("x2", 0, createData(300, 1));
+		assertEquals(2, imageCache.getNoImages());
+		assertEquals(1, imageCache.getNoContents());
+		assertEquals(300, imageCache.getUsedBytes());
+		assertEquals(1, imageCache.getNoSharedImages());
+
+		imageCache.remove("x1");
+		CachedImage image = imageCache.get("x2", 0);
+		assertArrayEquals(createData(300, 1), image.asByteArray());
+		image.release();
+
+		imageCache.remove("x2");
+		assertEquals(0, imageCache.getNoContents());
+		assertEquals(0, imageCache.getUsedBytes());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReplaceAndRemove() {
+		imageCache.put("x1", 0, new byte[300]);
+		imageCache.put("x1", 0, new byte[200]);
+		imageCache.put("x1", 1, new byte[100]);
+		imageCache.put("x11", 0, new byte[50]);
+		assertEquals(350, imageCache.getUsedBytes());
+
+		imageCache.remove("x1");
+		assertEquals(1, imageCache.getNoImages());
+		assertEquals(50, imageCache.getUsedBytes());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testImagesLargerThanSlabAreNotCached() {
+		imageCache.put("x1", 0, new byte[SLAB_SIZE + 1]);
+		assertNull(imageCache.get("x1", 0));
+		assertEquals(0, imageCache.getUsedBytes());
+		assertEquals(1, imageCache.getNoRejections());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLargeImagesTakeOverSlabsOfSmallImages() throws IOException {
+		for (int i = 0; i < 8; i++) {
+			imageCache.put("x" + i, 0, createData(200, i)); // four to a slab
+		}
+		assertEquals(2 * SLAB_SIZE, imageCache.getReservedBytes());
+		for (int i = 4; i < 8; i++) {
+			imageCache.get("x" + i, 0).release();
+		}
+
+		imageCache.put("y1", 0, createData(1000, 1));
+		CachedImage image = imageCache.get("y1", 0);
+		assertArrayEquals(createData(1000, 1), image.asByteArray());
+		image.release();
+		assertEquals(1, imageCache.getNoReassignedSlabs());
+		assertEquals(4, imageCache.getNoEvictions());
+		assertNull(imageCache.get("x0", 0));
+		image = imageCache.get("x4", 0);
+		assertArrayEquals(createData(200, 4), image.asByteArray());
+		image.release();
+
+		imageCache.get("y1", 0).release(); // now the small images are the least recently used
+		imageCache.put("y2", 0, createData(1000, 2));
+		assertEquals(2, imageCache.getNoReassignedSlabs());
+		assertEquals(0, imageCache.getNoRejections());
+		assertEquals(2 * SLAB_SIZE, imageCache.getReservedBytes());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPinnedSlabsAreNotReassigned() throws IOException {
+		for (int i = 0; i < 8; i++) {
+			imageCache.put("x" + i, 0, createData(200, i));
+		}
+		CachedImage image0 = imageCache.get("x0", 0);
+		CachedImage image4 = imageCache.get("x4", 0);
+
+		imageCache.put("y1", 0, createData(1000, 1));
+		assertNull(imageCache.get("y1", 0));
+		assertEquals(1, imageCache.getNoRejections());
+		assertArrayEquals(createData(200, 0), image0.asByteArray());
+
+		image4.release();
+		imageCache.put("y1", 0, createData(1000, 1));
+		assertArrayEquals(createData(200, 0), image0.asByteArray());
+		image0.release();
+		CachedImage image = imageCache.get("y1", 0);
+		assertArrayEquals(createData(1000, 1), image.asByteArray());
+		image.release();
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReleaseAfterResizeKeepsBudget() throws IOException {
+		imageCache.put("x1", 0, createData(1000, 1));
+		CachedImage image1 = imageCache.get("x1", 0);
+		imageCache.remove("x1");
+		imageCache.setMaxBytes(2 * SLAB_SIZE);
+		image1.release();
+
+		for (int i = 2; i <= 4; i++) {
+			imageCache.put("x" + i, 0, createData(1000, i));
+		}
+		assertEquals(2, imageCache.getNoImages());
+		assertEquals(1, imageCache.getNoEvictions());
+		CachedImage image4 = imageCache.get("x4", 0);
+		assertArrayEquals(createData(1000, 4), image4.asByteArray());
+		image4.release();
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidMaxBytes() {
+		new ImageCache(SLAB_SIZE - 1, SLAB_SIZE, 256);
+	}
+
+	/**
+	 *
+	 */
+	private byte[] createData(int length, int value) {
+		byte[] result = new byte[length];
+		Arrays.fill(result, (byte) value);
+		return result;
+	}
+}
@@ -30,7 +30,9 @@ import org.junit.runners.*;
 	 * 'org.wahlzeit.model.persistence.AbstractAdapterTest.class,'
 	 * here since it is an abstract class.
 	 */
-	DatastoreAdapterTest.class
+	DatastoreAdapterTest.class,
+	FileSystemAdapterTest.class,
+	ImageCacheTest.class
 })
 
 public class PersistenceTests {}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.services;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.model.Tag;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the batched writes of the ObjectManager class.
+ */
+public class ObjectManagerTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	/**
+	 *
+	 */
+	@Test
+	public void testChunkBoundaries() {
+		final TestObjectManager objectManager = new TestObjectManager(2);
+		final List<Tag> tags = createTags(5);
+		Tag clean = new Tag("clean", "x1");
+		clean.resetWriteCount();
+		final List<Tag> objects = new ArrayList<Tag>(tags);
+		objects.add(2, clean);
+		objects.add(4, null);
+
+		BatchWriteReport report = updateObjects(objectManager, objects);
+		assertTrue(report.isSuccess());
+		assertEquals(3, report.getNoChunks());
+		assertEquals(Arrays.asList(2, 2, 1), getChunkSizes(report));
+		assertEquals(5, report.getNoWrittenObjects());
+		assertEquals(1, report.getNoSkippedObjects());
+		for (Tag tag : tags) {
+			assertFalse(tag.isDirty());
+		}
+
+		// exactly one full chunk, no empty trailing chunk
+		report = updateObjects(objectManager, createTags(2));
+		assertEquals(Arrays.asList(2), getChunkSizes(report));
+		assertEquals(0, updateObjects(objectManager, tags).getNoChunks());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFailedChunkStaysDirty() {
+		TestObjectManager objectManager = new TestObjectManager(2);
+		objectManager.failingChunk = 1;
+		List<Tag> tags = createTags(5);
+
+		BatchWriteReport report = updateObjects(objectManager, tags);
+		assertFalse(report.isSuccess());
+		assertEquals(3, report.getNoChunks());
+		assertNull(report.getChunks().get(0).getFailure());
+		assertNotNull(report.getChunks().get(1).getFailure());
+		assertTrue(report.getChunks().get(2).isSuccess());
+		assertEquals(2, report.getNoFailedObjects());
+		assertEquals(3, report.getNoWrittenObjects());
+		assertFalse(tags.get(0).isDirty());
+		assertTrue(tags.get(2).isDirty());
+		assertTrue(tags.get(3).isDirty());
+		assertFalse(tags.get(4).isDirty());
+
+		// the next update writes only the objects of the failed chunk
+		objectManager.failingChunk = -1;
+		report = updateObjects(objectManager, tags);
+		assertTrue(report.isSuccess());
+		assertEquals(Arrays.asList(2), getChunkSizes(report));
+		assertEquals(3, report.getNoSkippedObjects());
+		assertFalse(tags.get(2).isDirty());
+	}
+
+	/**
+	 *
+	 */
+	protected BatchWriteReport updateObjects(final ObjectManager objectManager,
+			final Collection<? extends Persistent> objects) {
+		return ObjectifyService.run(new Work<BatchWriteReport>() {
+			@Override
+			public BatchWriteReport run() {
+				return objectManager.updateObjects(objects);
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	protected List<Tag> createTags(int noTags) {
+		List<Tag> result = new ArrayList<Tag>();
+		for (int i = 0; i < noTags; i++) {
+			result.add(new Tag("chunk" + i, "x" + i));
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	protected List<Integer> getChunkSizes(BatchWriteReport report) {
+		List<Integer> result = new ArrayList<Integer>();
+		for (BatchWriteReport.Chunk chunk : report.getChunks()) {
+			result.add(chunk.getSize());
+		}
+		return result;
+	}
+
+	/**
+	 * ObjectManager with a small batch size whose dependents fail to update for one chunk.
+	 */
+	protected static class TestObjectManager extends ObjectManager {
+
+		protected final int writeBatchSize;
+		protected int failingChunk = -1;
+		protected int noChunks = 0;
+
+		public TestObjectManager(int writeBatchSize) {
+			this.writeBatchSize = writeBatchSize;
+		}
+
+		@Override
+		protected BatchWriteReport updateObjects(Collection<? extends Persistent> collection) {
+			noChunks = 0;
+			return super.updateObjects(collection);
+		}
+
+		@Override
+		protected void updateDependents(Collection<? extends Persistent> chunk) {
+			if (noChunks++ == failingChunk) {
+				throw new IllegalStateException("dependents of chunk " + failingChunk + " failed");
+			}
+		}
+
+		@Override
+		protected int getWriteBatchSize() {
+			return writeBatchSize;
+		}
+	}
+
+}
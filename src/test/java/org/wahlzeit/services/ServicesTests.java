@@ -26,7 +26,8 @@ import org.junit.runners.*;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
 	EmailAddressTest.class,
-	LogBuilderTest.class
+	LogBuilderTest.class,
+	ObjectManagerTest.class
 })
 
 public class ServicesTests {}
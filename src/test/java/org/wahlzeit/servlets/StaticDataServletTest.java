@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.servlets;
+
+import org.apache.http.HttpStatus;
+import org.junit.Before;
+import org.junit.Test;
+import org.wahlzeit.model.persistence.CachedImage;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test cases for the byte-range and conditional requests of the StaticDataServlet.
+ */
+public class StaticDataServletTest {
+
+	protected static final String E_TAG = "\"x1-1-2\"";
+
+	/**
+	 * A JPEG header followed by the numbers 3 to 9
+	 */
+	protected static final byte[] IMAGE_DATA = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 3, 4, 5, 6, 7, 8, 9};
+
+	protected StaticDataServlet servlet;
+	protected HttpServletRequest request;
+	protected HttpServletResponse response;
+	protected ByteArrayOutputStream body;
+
+	/**
+	 *
+	 */
+	@Before
+	public void setUp() throws IOException {
+		servlet = new StaticDataServlet();
+		request = mock(HttpServletRequest.class);
+		when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+		response = mock(HttpServletResponse.class);
+		body = new ByteArrayOutputStream();
+		when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+			@Override
+			public void write(int b) {
+				body.write(b);
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testByteRanges() {
+		assertArrayEquals(new int[] {0, 499}, StaticDataServlet.getByteRange("bytes=0-499", 1000));
+		assertArrayEquals(new int[] {500, 999}, StaticDataServlet.getByteRange("bytes=500-", 1000));
+		assertArrayEquals(new int[] {700, 999}, StaticDataServlet.getByteRange("bytes=-300", 1000));
+		assertArrayEquals(new int[] {0, 999}, StaticDataServlet.getByteRange("bytes=-2000", 1000));
+		assertArrayEquals(new int[] {900, 999}, StaticDataServlet.getByteRange("bytes=900-2000", 1000));
+		assertArrayEquals(new int[] {999, 999}, StaticDataServlet.getByteRange("bytes=999-999", 1000));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testUnsatisfiableByteRanges() {
+		assertTrue(StaticDataServlet.getByteRange("bytes=1000-", 1000) == StaticDataServlet.UNSATISFIABLE_RANGE);
+		assertTrue(StaticDataServlet.getByteRange("bytes=1500-1600", 1000) == StaticDataServlet.UNSATISFIABLE_RANGE);
+		assertTrue(StaticDataServlet.getByteRange("bytes=-0", 1000) == StaticDataServlet.UNSATISFIABLE_RANGE);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMalformedOrMultipleByteRangesAreIgnored() {
+		String[] rangeHeaders = {null, "bytes=0-1,5-6", "items=0-1", "bytes=abc", "bytes=x-", "bytes=0-y",
+				"bytes=5-2", "bytes=--5"};
+		for (String rangeHeader : rangeHeaders) {
+			assertTrue(rangeHeader, StaticDataServlet.getByteRange(rangeHeader, 1000) == null);
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPartialImageIsWritten() throws IOException {
+		when(request.getHeader("Range")).thenReturn("bytes=2-5");
+		servlet.writeImage(request, response, CachedImage.wrap(IMAGE_DATA), E_TAG);
+
+		verify(response).setStatus(HttpStatus.SC_PARTIAL_CONTENT);
+		verify(response).setHeader("Content-Range", "bytes 2-5/10");
+		verify(response).setContentLength(4);
+		verify(response).setContentType("image/jpeg");
+		assertArrayEquals(Arrays.copyOfRange(IMAGE_DATA, 2, 6), body.toByteArray());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRangeBeyondImageIsNotSatisfiable() throws IOException {
+		when(request.getHeader("Range")).thenReturn("bytes=10-");
+		servlet.writeImage(request, response, CachedImage.wrap(IMAGE_DATA), E_TAG);
+
+		verify(response).setStatus(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+		verify(response).setHeader("Content-Range", "bytes */10");
+		assertEquals(0, body.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMultipleRangesGetWholeImage() throws IOException {
+		when(request.getHeader("Range")).thenReturn("bytes=0-1,4-5");
+		servlet.writeImage(request, response, CachedImage.wrap(IMAGE_DATA), E_TAG);
+
+		verify(response).setStatus(HttpStatus.SC_OK);
+		verify(response, never()).setHeader(eq("Content-Range"), anyString());
+		assertArrayEquals(IMAGE_DATA, body.toByteArray());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testIfRangeMismatchGetsWholeImage() throws IOException {
+		when(request.getHeader("Range")).thenReturn("bytes=2-5");
+		when(request.getHeader("If-Range")).thenReturn("\"x1-1-1\"");
+		servlet.writeImage(request, response, CachedImage.wrap(IMAGE_DATA), E_TAG);
+
+		verify(response).setStatus(HttpStatus.SC_OK);
+		verify(response).setContentLength(IMAGE_DATA.length);
+		assertArrayEquals(IMAGE_DATA, body.toByteArray());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testIfRangeMatchGetsPartialImage() throws IOException {
+		when(request.getHeader("Range")).thenReturn("bytes=-3");
+		when(request.getHeader("If-Range")).thenReturn(E_TAG);
+		servlet.writeImage(request, response, CachedImage.wrap(IMAGE_DATA), E_TAG);
+
+		verify(response).setStatus(HttpStatus.SC_PARTIAL_CONTENT);
+		verify(response).setHeader("Content-Range", "bytes 7-9/10");
+		assertArrayEquals(Arrays.copyOfRange(IMAGE_DATA, 7, 10), body.toByteArray());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testIfNoneMatch() {
+		String[] matchingHeaders = {E_TAG, "W/" + E_TAG, "\"other\", W/" + E_TAG, "\"other\"," + E_TAG, "*"};
+		for (String ifNoneMatch : matchingHeaders) {
+			when(request.getHeader("If-None-Match")).thenReturn(ifNoneMatch);
+			assertTrue(ifNoneMatch, StaticDataServlet.isNotModified(request, E_TAG, 1000));
+		}
+
+		when(request.getHeader("If-None-Match")).thenReturn("\"other\", W/\"x1-1-1\"");
+		assertFalse(StaticDataServlet.isNotModified(request, E_TAG, 1000));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testIfNoneMatchWinsOverIfModifiedSince() {
+		when(request.getDateHeader("If-Modified-Since")).thenReturn(5000L);
+		assertTrue(StaticDataServlet.isNotModified(request, E_TAG, 4000));
+
+		when(request.getHeader("If-None-Match")).thenReturn("\"other\"");
+		assertFalse(StaticDataServlet.isNotModified(request, E_TAG, 4000));
+
+		when(request.getHeader("If-None-Match")).thenReturn(E_TAG);
+		assertTrue(StaticDataServlet.isNotModified(request, E_TAG, 9000));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testIfModifiedSince() {
+		assertFalse(StaticDataServlet.isNotModified(request, E_TAG, 4000));
+
+		when(request.getDateHeader("If-Modified-Since")).thenReturn(4000L);
+		assertTrue(StaticDataServlet.isNotModified(request, E_TAG, 4999)); // dates only have a precision of seconds
+		assertFalse(StaticDataServlet.isNotModified(request, E_TAG, 5000));
+
+		when(request.getDateHeader("If-Modified-Since")).thenThrow(new IllegalArgumentException("no date"));
+		assertFalse(StaticDataServlet.isNotModified(request, E_TAG, 4000));
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the BKTree class.
+ */
+public class BKTreeTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAddAndRemove() {
+		BKTree tree = new BKTree();
+		assertTrue(tree.findWithin(0L, 64).isEmpty());
+
+		tree.add(0L, 1);
+		tree.add(0L, 2);
+		tree.add(0x7L, 3);
+		assertEquals(3, tree.size());
+
+		List<BKTree.Match> matches = tree.findWithin(0x1L, 1);
+		assertEquals(2, matches.size());
+		assertEquals(1, matches.get(0).getDistance());
+
+		matches = tree.findWithin(0x7L, 3);
+		assertEquals(3, matches.size());
+		assertEquals(3, matches.get(0).getValue());
+		assertEquals(0, matches.get(0).getDistance());
+
+		assertTrue(tree.remove(0L, 1));
+		assertFalse(tree.remove(0L, 1));
+		assertFalse(tree.remove(0x3L, 3));
+		assertEquals(2, tree.size());
+		assertEquals(1, tree.findWithin(0L, 0).size());
+		assertEquals(2, tree.findWithin(0L, 0).get(0).getValue());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFindWithinMatchesLinearScan() {
+		Random random = new Random(42);
+		BKTree tree = new BKTree();
+		long[] keys = new long[2000];
+		for (int i = 0; i < keys.length; i++) {
+			// clusters of similar keys, like hashes of re-uploaded photos
+			keys[i] = i % 2 == 0 ? random.nextLong() : keys[i - 1] ^ (1L << random.nextInt(64));
+			tree.add(keys[i], i);
+		}
+
+		for (int i = 0; i < 50; i++) {
+			long key = keys[random.nextInt(keys.length)] ^ (1L << random.nextInt(64));
+			int maxDistance = random.nextInt(6);
+
+			Set<Integer> expected = new HashSet<Integer>();
+			for (int j = 0; j < keys.length; j++) {
+				if (BKTree.getDistance(key, keys[j]) <= maxDistance) {
+					expected.add(j);
+				}
+			}
+
+			List<BKTree.Match> matches = tree.findWithin(key, maxDistance);
+			List<Integer> actual = new ArrayList<Integer>();
+			for (int j = 0; j < matches.size(); j++) {
+				actual.add(matches.get(j).getValue());
+				if (j > 0) {
+					assertTrue(matches.get(j - 1).getDistance() <= matches.get(j).getDistance());
+				}
+			}
+			assertEquals(expected, new HashSet<Integer>(actual));
+			assertEquals(expected.size(), actual.size());
+		}
+	}
+
+}
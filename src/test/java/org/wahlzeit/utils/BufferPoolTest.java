@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test cases for the BufferPool class.
+ */
+public class BufferPoolTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testBuffersAreReused() {
+		BufferPool bufferPool = new BufferPool(16, 1);
+		byte[] first = bufferPool.acquire();
+		byte[] second = bufferPool.acquire();
+		assertNotSame(first, second);
+		assertEquals(16, first.length);
+
+		bufferPool.release(first);
+		bufferPool.release(second);
+		assertEquals(1, bufferPool.getNoPooledBuffers());
+
+		assertSame(first, bufferPool.acquire());
+		assertEquals(0, bufferPool.getNoPooledBuffers());
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testForeignBuffer() {
+		new BufferPool(16, 1).release(new byte[8]);
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the CompressedBitmap class.
+ */
+public class CompressedBitmapTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAddRemoveContains() {
+		CompressedBitmap bitmap = new CompressedBitmap();
+		assertTrue(bitmap.isEmpty());
+
+		assertTrue(bitmap.add(70000));
+		assertTrue(bitmap.add(3));
+		assertFalse(bitmap.add(3));
+		assertTrue(bitmap.contains(3));
+		assertTrue(bitmap.contains(70000));
+		assertFalse(bitmap.contains(4));
+		assertEquals(2, bitmap.size());
+		assertArrayEquals(new int[]{3, 70000}, bitmap.toArray());
+
+		assertTrue(bitmap.remove(70000));
+		assertFalse(bitmap.remove(70000));
+		assertArrayEquals(new int[]{3}, bitmap.toArray());
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeValue() {
+		new CompressedBitmap().add(-1);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testDenseContainer() {
+		CompressedBitmap bitmap = new CompressedBitmap();
+		for (int i = 0; i < 10000; i++) {
+			bitmap.add(i * 2);
+		}
+		assertEquals(10000, bitmap.size());
+		assertTrue(bitmap.contains(19998));
+		assertFalse(bitmap.contains(19999));
+		assertEquals(4000, bitmap.select(2000));
+
+		for (int i = 0; i < 9000; i++) {
+			bitmap.remove(i * 2);
+		}
+		assertEquals(1000, bitmap.size());
+		assertEquals(18000, bitmap.select(0));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSetOperations() {
+		CompressedBitmap a = CompressedBitmap.of(1, 2, 3, 65536, 131072);
+		CompressedBitmap b = CompressedBitmap.of(2, 3, 4, 131072);
+
+		assertArrayEquals(new int[]{2, 3, 131072}, CompressedBitmap.and(a, b).toArray());
+		assertArrayEquals(new int[]{1, 65536}, CompressedBitmap.andNot(a, b).toArray());
+		assertArrayEquals(new int[]{1, 2, 3, 4, 65536, 131072}, CompressedBitmap.or(a, b).toArray());
+		assertArrayEquals(new int[]{1, 2, 3, 65536, 131072}, a.toArray());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSetOperationsOnDenseContainers() {
+		CompressedBitmap even = new CompressedBitmap();
+		CompressedBitmap all = new CompressedBitmap();
+		for (int i = 0; i < 20000; i++) {
+			all.add(i);
+			if (i % 2 == 0) {
+				even.add(i);
+			}
+		}
+
+		assertEquals(10000, CompressedBitmap.and(all, even).size());
+		assertEquals(10000, CompressedBitmap.andNot(all, even).size());
+		assertTrue(CompressedBitmap.andNot(all, even).contains(19999));
+		assertEquals(20000, CompressedBitmap.or(even, CompressedBitmap.andNot(all, even)).size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSerialization() throws Exception {
+		CompressedBitmap bitmap = CompressedBitmap.of(5, 17, 100000);
+		for (int i = 200000; i < 210000; i++) {
+			bitmap.add(i);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(bitmap);
+		out.close();
+
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		CompressedBitmap copy = (CompressedBitmap) in.readObject();
+
+		assertEquals(bitmap, copy);
+		assertEquals(bitmap.size(), copy.size());
+		assertTrue(copy.add(6));
+	}
+
+}
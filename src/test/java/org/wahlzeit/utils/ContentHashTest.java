@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Test cases for the ContentHash class.
+ */
+public class ContentHashTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAsHexString() {
+		assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+				ContentHash.asHexString(new byte[0]));
+		assertEquals(ContentHash.asHexString(new byte[] {1, 2, 3}), ContentHash.asHexString(new byte[] {1, 2, 3}));
+		assertNotEquals(ContentHash.asHexString(new byte[] {1, 2, 3}), ContentHash.asHexString(new byte[] {1, 2, 4}));
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullData() {
+		ContentHash.asHexString(null);
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the DifferenceHash class.
+ */
+public class DifferenceHashTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSimilarImagesHaveCloseHashes() throws IOException {
+		BufferedImage image = createImage(640, 480, 0);
+		long hash = DifferenceHash.compute(asJpeg(image));
+
+		BufferedImage scaled = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = scaled.createGraphics();
+		graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		graphics.drawImage(image, 0, 0, 320, 240, null);
+		graphics.dispose();
+		assertTrue(BKTree.getDistance(hash, DifferenceHash.compute(asJpeg(scaled))) <= 4);
+
+		BufferedImage brighter = createImage(640, 480, 20);
+		assertTrue(BKTree.getDistance(hash, DifferenceHash.compute(asJpeg(brighter))) <= 4);
+
+		BufferedImage other = createImage(480, 640, 0);
+		assertTrue(BKTree.getDistance(hash, DifferenceHash.compute(other)) > 10);
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IOException.class)
+	public void testInvalidData() throws IOException {
+		DifferenceHash.compute(new byte[] {1, 2, 3, 4});
+	}
+
+	/**
+	 * Draws some shapes; portrait images get a different layout than landscape ones.
+	 */
+	protected BufferedImage createImage(int width, int height, int brightness) {
+		BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = result.createGraphics();
+		Color dark = new Color(20 + brightness, 40 + brightness, 90 + brightness);
+		Color light = new Color(120 + brightness, 160 + brightness, 210 + brightness);
+		graphics.setPaint(new GradientPaint(0, 0, dark, width, height / 2, light));
+		graphics.fillRect(0, 0, width, height);
+		graphics.setColor(new Color(200 + brightness, 180 + brightness, 40 + brightness));
+		if (width > height) {
+			graphics.fillOval(width / 8, height / 4, width / 3, height / 2);
+			graphics.fillRect(width * 5 / 8, 0, width / 4, height * 3 / 4);
+		} else {
+			graphics.fillRect(0, height / 2, width, height / 6);
+			graphics.fillOval(width / 2, height / 8, width / 3, height / 4);
+		}
+		graphics.dispose();
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	protected byte[] asJpeg(BufferedImage image) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpg", result);
+		return result.toByteArray();
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the FenwickTree class.
+ */
+public class FenwickTreeTest {
+
+	private static final double DELTA = 1e-9;
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPrefixSums() {
+		FenwickTree tree = new FenwickTree(2);
+		tree.setWeight(0, 1);
+		tree.setWeight(1, 2);
+		tree.setWeight(5, 4); // grows the tree
+
+		assertEquals(7, tree.getTotalWeight(), DELTA);
+		assertEquals(0, tree.getPrefixSum(0), DELTA);
+		assertEquals(3, tree.getPrefixSum(2), DELTA);
+		assertEquals(7, tree.getPrefixSum(6), DELTA);
+
+		tree.setWeight(1, 0);
+		assertEquals(5, tree.getTotalWeight(), DELTA);
+		assertEquals(1, tree.getPrefixSum(5), DELTA);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFindIndex() {
+		FenwickTree tree = new FenwickTree();
+		assertEquals(-1, tree.findIndex(0));
+
+		tree.setWeight(0, 1);
+		tree.setWeight(2, 2);
+		tree.setWeight(3, 1);
+
+		assertEquals(0, tree.findIndex(0));
+		assertEquals(0, tree.findIndex(0.99));
+		assertEquals(2, tree.findIndex(1));
+		assertEquals(2, tree.findIndex(2.99));
+		assertEquals(3, tree.findIndex(3));
+		assertEquals(3, tree.findIndex(3.99));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testWeightedSelection() {
+		FenwickTree tree = new FenwickTree();
+		tree.setWeight(0, 1);
+		tree.setWeight(1, 9);
+
+		Random random = new Random(7);
+		int[] counts = new int[2];
+		for (int i = 0; i < 10000; i++) {
+			counts[tree.findIndex(random.nextDouble() * tree.getTotalWeight())]++;
+		}
+		assertTrue(counts[1] > 8 * counts[0]);
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeWeight() {
+		new FenwickTree().setWeight(0, -1);
+	}
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test cases for the ImageFormat class.
+ */
+public class ImageFormatTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testGetFromHeader() {
+		assertEquals(ImageFormat.JPEG, ImageFormat.getFromHeader(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 0}));
+		assertEquals(ImageFormat.PNG, ImageFormat.getFromHeader(new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A,
+				'\n'}));
+		assertEquals(ImageFormat.GIF, ImageFormat.getFromHeader("GIF89a".getBytes()));
+		assertEquals(ImageFormat.UNKNOWN, ImageFormat.getFromHeader(new byte[] {(byte) 0xFF, (byte) 0xD8}));
+		assertEquals(ImageFormat.UNKNOWN, ImageFormat.getFromHeader(new byte[0]));
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullHeader() {
+		ImageFormat.getFromHeader(null);
+	}
+}
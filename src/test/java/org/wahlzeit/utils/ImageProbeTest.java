@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2018 by Benjamin Fischer
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test cases for the ImageProbe class.
+ */
+public class ImageProbeTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testProbe() throws IOException {
+		for (String format : new String[] {"jpeg", "png", "gif"}) {
+			ImageProbe imageProbe = ImageProbe.probe(createImage(format, 321, 123));
+			assertEquals("image/" + format, imageProbe.getFormat().getMimeType());
+			assertEquals(321, imageProbe.getWidth());
+			assertEquals(123, imageProbe.getHeight());
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testProbeInvalidData() throws IOException {
+		assertNull(ImageProbe.probe(new byte[0]));
+		assertNull(ImageProbe.probe("no image at all".getBytes()));
+
+		byte[] jpeg = createImage("jpeg", 10, 10);
+		assertNull(ImageProbe.probe(Arrays.copyOf(jpeg, 30)));
+	}
+
+	/**
+	 *
+	 */
+	private static byte[] createImage(String format, int width, int height) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), format, result);
+		return result.toByteArray();
+	}
+}
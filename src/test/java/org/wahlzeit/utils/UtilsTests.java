@@ -25,6 +25,14 @@ import org.junit.runners.*;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+	BKTreeTest.class,
+	BufferPoolTest.class,
+	CompressedBitmapTest.class,
+	ContentHashTest.class,
+	DifferenceHashTest.class,
+	FenwickTreeTest.class,
+	ImageFormatTest.class,
+	ImageProbeTest.class,
 	StringUtilTest.class,
 	VersionTest.class
 })